@@ -0,0 +1,13 @@
+@echo off
+echo Large file check: moves a file over 4 GB with a 32 MB heap
+
+:: Compile the sources and the checks
+javac -d out src/*.java bench/*.java
+if %ERRORLEVEL% NEQ 0 (
+    echo Compilation failed.
+    exit /b 1
+)
+
+:: Needs about 4.5 GB of free space in the temporary directory
+java -Xmx32m -cp out LargeFileCheck %*
+exit /b %ERRORLEVEL%
@@ -13,8 +13,7 @@ if not exist server_keystore.jks (
 
 :: Compile the Java files
 echo Compiling Java files...
-javac -d out src/Server.java
-javac -d out src/Client.java
+javac -d out src/*.java
 
 :: Check if compilation was successful
 if %ERRORLEVEL% EQU 0 (
@@ -0,0 +1,210 @@
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that a file larger than 4 GiB survives an upload and a download with
+ * a small heap.
+ *
+ *   java -Xmx32m -cp out LargeFileCheck [size in MiB] [directory]
+ *
+ * The file is generated rather than read from disk. It is encrypted as the
+ * client does (ChunkedCipher) and sent over a loopback connection. The
+ * receiving end stores the ciphertext as the server does (WriteBehind) in a
+ * temporary file in directory (default java.io.tmpdir). The file is then
+ * sent back (FileTransfer), decrypted, and compared byte for byte with the
+ * generated data. The default size is 4 GiB + 300 MiB, so the ciphertext
+ * takes about that much disk space while the check runs. Prints the peak heap
+ * use and exits with 1 if anything differs.
+ */
+public class LargeFileCheck {
+    private static final long MIB = 1024 * 1024;
+    private static final long SEED = 0x5EC0DE5EEDL;
+
+    // Deterministic bytes, so the download can be compared without keeping a copy
+    private static final class GeneratedInputStream extends InputStream {
+        private final long length;
+        private long position;
+        private long state = SEED;
+        private long word;
+
+        GeneratedInputStream(long length) {
+            this.length = length;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= length) {
+                return -1;
+            }
+            int n = (int) Math.min(len, length - position);
+            for (int i = 0; i < n; i++) {
+                if ((position & 7) == 0) {
+                    // xorshift64
+                    state ^= state << 13;
+                    state ^= state >>> 7;
+                    state ^= state << 17;
+                    word = state;
+                }
+                b[off + i] = (byte) (word >>> ((position & 7) * 8));
+                position++;
+            }
+            return n;
+        }
+    }
+
+    // Compares what is written with the generated data
+    private static final class ComparingOutputStream extends OutputStream {
+        private final GeneratedInputStream expected;
+        private byte[] buffer = new byte[64 * 1024];
+        long count;
+        long firstDifference = -1;
+
+        ComparingOutputStream(long length) {
+            expected = new GeneratedInputStream(length);
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (buffer.length < len) {
+                buffer = new byte[len];
+            }
+            int n = expected.read(buffer, 0, len);
+            for (int i = 0; i < len; i++) {
+                if (firstDifference < 0 && (i >= n || buffer[i] != b[off + i])) {
+                    firstDifference = count + i;
+                }
+            }
+            count += len;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long size = args.length > 0 ? Long.parseLong(args[0]) * MIB : 4096 * MIB + 300 * MIB;
+        Path dir = Paths.get(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        SecretKey key = generator.generateKey();
+        long encryptedLength = ChunkedCipher.encryptedLength(size);
+
+        System.out.println("Moving " + size / MIB + " MiB with a heap of at most "
+                + Runtime.getRuntime().maxMemory() / MIB + " MiB");
+        Path stored = Files.createTempFile(dir, "large", ".blob");
+        ExecutorService receiver = Executors.newSingleThreadExecutor();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            long start = System.nanoTime();
+            Future<?> upload = receiver.submit(serve(server, socket -> {
+                try (FileChannel file = FileChannel.open(stored, StandardOpenOption.WRITE)) {
+                    WriteBehind.receive(socket.getInputStream(), encryptedLength, file, 0,
+                            TransferScheduler.UNLIMITED);
+                    WriteBehind.commit(file);
+                }
+            }));
+            try (Socket socket = new Socket(server.getInetAddress(), server.getLocalPort())) {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                ChunkedCipher.encrypt(key, new GeneratedInputStream(size), size, out);
+                out.flush();
+                finish(upload);
+            }
+            long storedLength = Files.size(stored);
+            System.out.printf("Uploaded in %.1f s, stored %d bytes%n", (System.nanoTime() - start) / 1e9,
+                    storedLength);
+            if (storedLength != encryptedLength) {
+                fail("expected " + encryptedLength + " stored bytes");
+            }
+
+            start = System.nanoTime();
+            Future<?> download = receiver.submit(serve(server, socket -> {
+                try (FileChannel file = FileChannel.open(stored, StandardOpenOption.READ)) {
+                    FileTransfer.send(file, 0, encryptedLength, socket.getOutputStream(),
+                            TransferScheduler.UNLIMITED);
+                }
+            }));
+            ComparingOutputStream result = new ComparingOutputStream(size);
+            try (Socket socket = new Socket(server.getInetAddress(), server.getLocalPort())) {
+                ChunkedCipher.decrypt(key, new BufferedInputStream(socket.getInputStream(), 64 * 1024), result);
+                finish(download);
+            }
+            System.out.printf("Downloaded in %.1f s, %d bytes%n", (System.nanoTime() - start) / 1e9, result.count);
+            if (result.firstDifference >= 0) {
+                fail("downloaded data differs at byte " + result.firstDifference);
+            }
+            if (result.count != size) {
+                fail("expected " + size + " bytes, downloaded " + result.count);
+            }
+        } finally {
+            receiver.shutdownNow();
+            Files.deleteIfExists(stored);
+        }
+        System.out.println("Peak heap use: " + peakHeap() / MIB + " MiB");
+        System.out.println("OK");
+    }
+
+    private interface Handler {
+        void handle(Socket socket) throws IOException;
+    }
+
+    // Accepts one connection and hands it to handler
+    private static Callable<Void> serve(ServerSocket server, Handler handler) {
+        return () -> {
+            try (Socket socket = server.accept()) {
+                handler.handle(socket);
+            }
+            return null;
+        };
+    }
+
+    private static void finish(Future<?> side) throws Exception {
+        try {
+            side.get();
+        } catch (ExecutionException e) {
+            fail("receiving end failed: " + e.getCause());
+        }
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static void fail(String message) {
+        System.err.println("FAILED: " + message);
+        System.exit(1);
+    }
+}
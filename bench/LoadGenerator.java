@@ -0,0 +1,484 @@
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator: many concurrent, logged-in sessions against a running
+ * server, with a mix of UPLOAD, DOWNLOAD and LIST, reporting throughput and
+ * latency percentiles per operation as the run goes.
+ *
+ *   java -Dload.sessions=500 -Dload.duration=120 -cp out LoadGenerator
+ *
+ * Options (all -Dload.*):
+ *   host, port         server to load (default localhost:8444)
+ *   user, password     account all sessions log in as (default Wild/password123)
+ *   sessions           concurrent sessions, each its own connection (default 100)
+ *   duration           seconds to run after every session has logged in (default 60)
+ *   mode               closed: every session runs its next operation when the
+ *                      previous one is done, after the think time; open:
+ *                      operations arrive at a fixed rate whether or not the
+ *                      server keeps up (default closed)
+ *   rate               operations per second in open mode (default 100)
+ *   think              mean think time in milliseconds in closed mode,
+ *                      exponentially distributed (default 0)
+ *   mix                operation weights (default upload=20,download=70,list=10)
+ *   sizes              file sizes and weights (default 4k=70,256k=25,4m=5)
+ *   listOptions        options sent with LIST (default limit=100)
+ *   interval           seconds between reports (default 5)
+ *   out                results are written to <out>.csv and <out>.json
+ *                      (default load-<start time>)
+ *
+ * In open mode a latency is measured from when the operation was due, not
+ * from when a session was free to run it, so a server that falls behind
+ * shows it in the percentiles instead of in fewer requests.
+ *
+ * Uploads send a payload encrypted once at start, so the load generator's
+ * own CPU goes to the protocol rather than to AES. Each session uploads to
+ * its own files, load-<session>-<size>; downloads read load-seed-<size>,
+ * which are uploaded first.
+ */
+public class LoadGenerator {
+    private static final String[] OPERATIONS = {"UPLOAD", "DOWNLOAD", "LIST"};
+    private static final int CONNECT_THREADS = 16;
+
+    private final String host = System.getProperty("load.host", "localhost");
+    private final int port = Integer.getInteger("load.port", 8444);
+    private final String user = System.getProperty("load.user", "Wild");
+    private final String password = System.getProperty("load.password", "password123");
+    private final int sessionCount = Integer.getInteger("load.sessions", 100);
+    private final long durationSeconds = Long.getLong("load.duration", 60);
+    private final boolean openLoop = "open".equalsIgnoreCase(System.getProperty("load.mode", "closed"));
+    private final double rate = Double.parseDouble(System.getProperty("load.rate", "100"));
+    private final double thinkMillis = Double.parseDouble(System.getProperty("load.think", "0"));
+    private final String listOptions = System.getProperty("load.listOptions", "limit=100");
+    private final long intervalSeconds = Long.getLong("load.interval", 5);
+    private final String mixOption = System.getProperty("load.mix", "upload=20,download=70,list=10");
+    private final String sizesOption = System.getProperty("load.sizes", "4k=70,256k=25,4m=5");
+
+    private final Weighted<String> mix = Weighted.parse(mixOption, String::toUpperCase);
+    private final Weighted<Long> sizes = Weighted.parse(sizesOption, LoadGenerator::parseSize);
+    private final Map<Long, byte[]> payloads = new LinkedHashMap<>();
+    private final Map<String, OperationStats> stats = new LinkedHashMap<>();
+    private final OperationStats connects = new OperationStats("CONNECT");
+    // Open mode: operations that are due but have not started
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final StringBuilder csv = new StringBuilder(
+            "elapsed_s,operation,count,ops_per_s,mean_ms,p50_ms,p99_ms,p999_ms,max_ms,errors\n");
+    private final List<String> jsonIntervals = new ArrayList<>();
+
+    // Weighted random choice between values
+    private static final class Weighted<T> {
+        interface Parser<T> {
+            T parse(String text);
+        }
+
+        final List<T> values = new ArrayList<>();
+        final List<Integer> cumulative = new ArrayList<>();
+        int total;
+
+        static <T> Weighted<T> parse(String option, Parser<T> parser) {
+            Weighted<T> weighted = new Weighted<>();
+            for (String item : option.split(",")) {
+                String[] parts = item.trim().split("=");
+                int weight = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+                if (weight > 0) {
+                    weighted.values.add(parser.parse(parts[0]));
+                    weighted.total += weight;
+                    weighted.cumulative.add(weighted.total);
+                }
+            }
+            if (weighted.total == 0) {
+                throw new IllegalArgumentException("No weights in " + option);
+            }
+            return weighted;
+        }
+
+        T next() {
+            int point = ThreadLocalRandom.current().nextInt(total);
+            for (int i = 0; ; i++) {
+                if (point < cumulative.get(i)) {
+                    return values.get(i);
+                }
+            }
+        }
+    }
+
+    // Latencies of one operation: the current interval and the whole run
+    private static final class OperationStats {
+        final String name;
+        final AtomicReference<LatencyHistogram> interval = new AtomicReference<>(new LatencyHistogram());
+        final LatencyHistogram total = new LatencyHistogram();
+        final LongAdder intervalErrors = new LongAdder();
+        final LongAdder totalErrors = new LongAdder();
+
+        OperationStats(String name) {
+            this.name = name;
+        }
+
+        void record(long nanos) {
+            interval.get().record(nanos);
+            total.record(nanos);
+        }
+
+        void failed() {
+            intervalErrors.increment();
+            totalErrors.increment();
+        }
+    }
+
+    // One logged-in connection; reopened after an error
+    private final class Session {
+        final int id;
+        ClientConnection connection;
+
+        Session(int id) {
+            this.id = id;
+        }
+
+        void connect() throws IOException {
+            long start = System.nanoTime();
+            try {
+                connection = ClientConnection.open(host, port, user, password);
+            } catch (IOException e) {
+                connects.failed();
+                throw e;
+            }
+            connects.record(System.nanoTime() - start);
+        }
+
+        // Runs a random operation; due is when it should have started
+        void runOperation(long due) {
+            String operation = mix.next();
+            long size = sizes.next();
+            OperationStats operationStats = stats.get(operation);
+            try {
+                if (connection == null || !connection.isOpen()) {
+                    connect();
+                }
+                switch (operation) {
+                    case "UPLOAD":
+                        upload(connection, "load-" + id + "-" + size, payloads.get(size));
+                        break;
+                    case "DOWNLOAD":
+                        connection.openDownload("load-seed-" + size).drain();
+                        break;
+                    default:
+                        List<String> lines = connection.list(listOptions);
+                        if (!lines.get(0).startsWith("Files: ") && !lines.get(0).startsWith("No files")) {
+                            throw new IOException(lines.get(0));
+                        }
+                }
+                operationStats.record(System.nanoTime() - due);
+            } catch (Exception e) {
+                operationStats.failed();
+                if (connection != null) {
+                    connection.abort();
+                    connection = null;
+                }
+            }
+        }
+
+        void close() {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    connection.abort();
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("javax.net.ssl.trustStore") == null) {
+            System.setProperty("javax.net.ssl.trustStore", "client_truststore.jks");
+            System.setProperty("javax.net.ssl.trustStorePassword", "password");
+        }
+        new LoadGenerator().run();
+    }
+
+    private void run() throws Exception {
+        for (String operation : mix.values) {
+            if (!operation.equals("UPLOAD") && !operation.equals("DOWNLOAD") && !operation.equals("LIST")) {
+                throw new IllegalArgumentException("Unknown operation " + operation + " in -Dload.mix");
+            }
+        }
+        for (String operation : OPERATIONS) {
+            stats.put(operation, new OperationStats(operation));
+        }
+        String out = System.getProperty("load.out", "load-" + System.currentTimeMillis());
+
+        preparePayloads();
+        List<Session> sessions = connectAll();
+        System.out.printf("%d sessions logged in, %s loop, running for %d s%n", sessions.size(),
+                openLoop ? "open" : "closed", durationSeconds);
+        record(0, Long.MAX_VALUE, connects.name, connects.interval.getAndSet(new LatencyHistogram()),
+                connects.intervalErrors.sumThenReset(), true);
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        Thread reporter = new Thread(() -> reportLoop(start), "load-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+
+        if (openLoop) {
+            runOpenLoop(sessions, end);
+        } else {
+            runClosedLoop(sessions, end);
+        }
+
+        reporter.interrupt();
+        reporter.join();
+        long elapsed = System.nanoTime() - start;
+        for (Session session : sessions) {
+            session.close();
+        }
+
+        System.out.println("Totals:");
+        for (OperationStats operationStats : stats.values()) {
+            record(-1, elapsed, operationStats.name, operationStats.total, operationStats.totalErrors.sum(), false);
+        }
+        record(-1, Long.MAX_VALUE, connects.name, connects.total, connects.totalErrors.sum(), false);
+        writeResults(out, elapsed);
+    }
+
+    // Encrypts one payload per size and uploads it as the file downloads read
+    private void preparePayloads() throws Exception {
+        SecretKey key = Client.deriveKeyFromPassword(password);
+        Random random = new Random(1);
+        for (long size : sizes.values) {
+            byte[] plain = new byte[(int) size];
+            random.nextBytes(plain);
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            ChunkedCipher.encrypt(key, new ByteArrayInputStream(plain), plain.length, encrypted);
+            payloads.put(size, encrypted.toByteArray());
+        }
+
+        try (ClientConnection connection = ClientConnection.open(host, port, user, password)) {
+            for (Map.Entry<Long, byte[]> payload : payloads.entrySet()) {
+                upload(connection, "load-seed-" + payload.getKey(), payload.getValue());
+            }
+        }
+    }
+
+    private static void upload(ClientConnection connection, String name, byte[] payload) throws Exception {
+        String response = connection.request("UPLOAD " + name, payload.length, out -> out.write(payload));
+        if (!response.startsWith("SUCCESS")) {
+            throw new IOException(response);
+        }
+    }
+
+    // Logs every session in, a few at a time, so the logins themselves are measured
+    private List<Session> connectAll() throws InterruptedException {
+        List<Session> sessions = new ArrayList<>();
+        for (int i = 0; i < sessionCount; i++) {
+            sessions.add(new Session(i));
+        }
+        ExecutorService connectors = Executors.newFixedThreadPool(Math.min(CONNECT_THREADS, sessionCount));
+        for (Session session : sessions) {
+            connectors.execute(() -> {
+                try {
+                    session.connect();
+                } catch (IOException e) {
+                    System.err.println("Session " + session.id + " cannot log in: " + e.getMessage());
+                }
+            });
+        }
+        connectors.shutdown();
+        connectors.awaitTermination(1, TimeUnit.HOURS);
+        return sessions;
+    }
+
+    private void runClosedLoop(List<Session> sessions, long end) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (Session session : sessions) {
+            // Small stacks, so thousands of sessions fit
+            Thread thread = new Thread(null, () -> {
+                while (System.nanoTime() < end) {
+                    session.runOperation(System.nanoTime());
+                    if (thinkMillis > 0) {
+                        try {
+                            Thread.sleep((long) exponential(thinkMillis));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "load-session-" + session.id, 256 * 1024);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void runOpenLoop(List<Session> sessions, long end) throws InterruptedException {
+        BlockingQueue<Session> idle = new LinkedBlockingQueue<>(sessions);
+        ExecutorService workers = Executors.newFixedThreadPool(sessions.size(), task -> {
+            Thread thread = new Thread(null, task, "load-worker", 256 * 1024);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Poisson arrivals at the given rate
+        long due = System.nanoTime();
+        while (true) {
+            due += (long) exponential(1e9 / rate);
+            if (due >= end) {
+                break;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            long operationDue = due;
+            queued.incrementAndGet();
+            workers.execute(() -> {
+                try {
+                    Session session = idle.take();
+                    queued.decrementAndGet();
+                    try {
+                        session.runOperation(operationDue);
+                    } finally {
+                        idle.add(session);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        workers.shutdown();
+        // Operations still due at the end are finished, not dropped, so they are counted
+        workers.awaitTermination(1, TimeUnit.HOURS);
+    }
+
+    private static double exponential(double mean) {
+        return -mean * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+    }
+
+    private void reportLoop(long start) {
+        AtomicLong last = new AtomicLong(start);
+        while (true) {
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(intervalSeconds));
+            } catch (InterruptedException e) {
+                // Final interval, up to the end of the run
+                reportInterval(start, last.get());
+                return;
+            }
+            reportInterval(start, last.getAndSet(System.nanoTime()));
+        }
+    }
+
+    private void reportInterval(long start, long intervalStart) {
+        long now = System.nanoTime();
+        long elapsed = now - start;
+        for (OperationStats operationStats : stats.values()) {
+            LatencyHistogram histogram = operationStats.interval.getAndSet(new LatencyHistogram());
+            long errors = operationStats.intervalErrors.sumThenReset();
+            if (histogram.getCount() > 0 || errors > 0) {
+                record(elapsed, now - intervalStart, operationStats.name, histogram, errors, true);
+            }
+        }
+        if (openLoop) {
+            System.out.printf("%6.0fs queued=%d%n", elapsed / 1e9, queued.get());
+        }
+    }
+
+    // Prints and keeps one result line; elapsed < 0 marks the totals, and
+    // period is the time the count covers (Long.MAX_VALUE for no rate)
+    private synchronized void record(long elapsed, long period, String name, LatencyHistogram histogram,
+                                     long errors, boolean interval) {
+        double rate = period == Long.MAX_VALUE ? 0 : histogram.getCount() / (period / 1e9);
+        String label = elapsed < 0 ? "total" : String.format(Locale.ROOT, "%.0f", elapsed / 1e9);
+        System.out.printf(Locale.ROOT, "%6s%s %-8s ops=%d ops/s=%.1f p50=%.2f p99=%.2f p999=%.2f max=%.2f errors=%d%n",
+                label, elapsed < 0 ? "" : "s", name, histogram.getCount(), rate, histogram.getP50Millis(),
+                histogram.getP99Millis(), histogram.getP999Millis(), histogram.getMaxMillis(), errors);
+
+        csv.append(String.format(Locale.ROOT, "%s,%s,%d,%.2f,%.3f,%.3f,%.3f,%.3f,%.3f,%d%n", label, name,
+                histogram.getCount(), rate, histogram.getMeanMillis(), histogram.getP50Millis(),
+                histogram.getP99Millis(), histogram.getP999Millis(), histogram.getMaxMillis(), errors));
+        if (interval) {
+            jsonIntervals.add(String.format(Locale.ROOT, "{\"elapsed_s\": %s, %s}", label,
+                    jsonFields(name, histogram, rate, errors)));
+        }
+    }
+
+    private static String jsonFields(String name, LatencyHistogram histogram, double rate, long errors) {
+        return String.format(Locale.ROOT, "\"operation\": \"%s\", \"count\": %d, \"ops_per_s\": %.2f, "
+                        + "\"mean_ms\": %.3f, \"p50_ms\": %.3f, \"p99_ms\": %.3f, \"p999_ms\": %.3f, "
+                        + "\"max_ms\": %.3f, \"errors\": %d", name, histogram.getCount(), rate,
+                histogram.getMeanMillis(), histogram.getP50Millis(), histogram.getP99Millis(),
+                histogram.getP999Millis(), histogram.getMaxMillis(), errors);
+    }
+
+    private void writeResults(String out, long elapsed) throws IOException {
+        Files.write(Paths.get(out + ".csv"), csv.toString().getBytes(StandardCharsets.UTF_8));
+
+        try (PrintWriter json = new PrintWriter(Files.newBufferedWriter(Paths.get(out + ".json"),
+                StandardCharsets.UTF_8))) {
+            json.println("{");
+            json.printf(Locale.ROOT, "  \"config\": {\"host\": \"%s\", \"port\": %d, \"sessions\": %d, "
+                            + "\"duration_s\": %d, \"mode\": \"%s\", \"rate\": %.2f, \"think_ms\": %.1f, "
+                            + "\"mix\": \"%s\", \"sizes\": \"%s\", \"list_options\": \"%s\"},%n", host, port,
+                    sessionCount, durationSeconds, openLoop ? "open" : "closed", rate, thinkMillis, mixOption,
+                    sizesOption, listOptions);
+            json.printf(Locale.ROOT, "  \"elapsed_s\": %.3f,%n", elapsed / 1e9);
+            json.println("  \"intervals\": [");
+            for (int i = 0; i < jsonIntervals.size(); i++) {
+                json.println("    " + jsonIntervals.get(i) + (i < jsonIntervals.size() - 1 ? "," : ""));
+            }
+            json.println("  ],");
+            json.println("  \"totals\": [");
+            List<OperationStats> all = new ArrayList<>(stats.values());
+            all.add(connects);
+            for (int i = 0; i < all.size(); i++) {
+                OperationStats operationStats = all.get(i);
+                double rate = operationStats == connects ? 0 : operationStats.total.getCount() / (elapsed / 1e9);
+                json.println("    {" + jsonFields(operationStats.name, operationStats.total, rate,
+                        operationStats.totalErrors.sum()) + "}" + (i < all.size() - 1 ? "," : ""));
+            }
+            json.println("  ]");
+            json.println("}");
+        }
+        System.out.println("Results written to " + out + ".csv and " + out + ".json");
+    }
+
+    // 4096, 4k, 256k, 4m
+    private static long parseSize(String text) {
+        String value = text.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        if (value.endsWith("k")) {
+            unit = 1024;
+        } else if (value.endsWith("m")) {
+            unit = 1024 * 1024;
+        }
+        if (unit > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return Long.parseLong(value) * unit;
+    }
+}
@@ -0,0 +1,90 @@
+package benchmarks;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Access to the client and server classes.
+ *
+ * They are package-private classes in the default package, which code in a
+ * named package cannot refer to, and JMH only runs benchmarks in a named
+ * package. So benchmarks look the classes up by name and call them through
+ * reflection. Each benchmark looks up what it calls once, in its setup; the
+ * cost of a reflective call is a few nanoseconds, far below any of the
+ * operations measured.
+ */
+final class App {
+    private App() {
+    }
+
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Not on the class path: " + name, e);
+        }
+    }
+
+    /** A method or constructor of one of the application's classes. */
+    static final class Call {
+        private final Method method;
+        private final Constructor<?> constructor;
+
+        private Call(Method method, Constructor<?> constructor) {
+            this.method = method;
+            this.constructor = constructor;
+        }
+
+        // Calls the method on target (null for a static method), or the constructor
+        Object invoke(Object target, Object... args) throws Exception {
+            try {
+                return method != null ? method.invoke(target, args) : constructor.newInstance(args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : new IllegalStateException(cause);
+            }
+        }
+
+        Object newInstance(Object... args) throws Exception {
+            return invoke(null, args);
+        }
+    }
+
+    static Call method(String className, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = type(className).getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return new Call(method, null);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("No method " + className + "." + name, e);
+        }
+    }
+
+    static Call constructor(String className, Class<?>... parameterTypes) {
+        try {
+            Constructor<?> constructor = type(className).getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return new Call(null, constructor);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("No constructor of " + className, e);
+        }
+    }
+
+    // The value of a field; target is null for a static field
+    static Object field(Class<?> type, Object target, String name) {
+        try {
+            Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            return field.get(target);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No field " + type.getName() + "." + name, e);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Object enumConstant(String className, String name) {
+        return Enum.valueOf((Class) type(className), name);
+    }
+}
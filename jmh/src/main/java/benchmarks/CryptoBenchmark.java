@@ -0,0 +1,134 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload encryption and download decryption (ChunkedCipher, as the client
+ * uses it), on the calling thread and spread over -Dclient.cryptoThreads
+ * threads (ParallelCipher), next to the single-block AES that files from
+ * before chunked encryption are read with.
+ *
+ * Output goes to a stream that only counts bytes, so the results are the cost
+ * of the cipher and its buffering rather than of copying the result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+
+    // Counts what is written and throws it away
+    static final class CountingSink extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    @Param({"1024", "65536", "1048576", "16777216"})
+    public int size;
+
+    private SecretKey key;
+    private byte[] plain;
+    private byte[] ciphertext;
+    private byte[] legacyCiphertext;
+    private Object magic;
+    private App.Call encrypt;
+    private App.Call decrypt;
+
+    @Setup
+    public void setUp() throws Exception {
+        key = (SecretKey) App.method("Client", "deriveKeyFromPassword", String.class)
+                .invoke(null, "benchmark");
+        encrypt = App.method("ChunkedCipher", "encrypt", SecretKey.class, InputStream.class, long.class,
+                OutputStream.class, byte[].class, boolean.class);
+        decrypt = App.method("ChunkedCipher", "decrypt", SecretKey.class, InputStream.class, OutputStream.class,
+                boolean.class);
+        magic = App.field(App.type("ChunkedCipher"), null, "MAGIC");
+
+        plain = new byte[size];
+        new Random(size).nextBytes(plain);
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        encrypt.invoke(null, key, new ByteArrayInputStream(plain), (long) plain.length, encrypted, magic, false);
+        ciphertext = encrypted.toByteArray();
+
+        Cipher legacy = Cipher.getInstance("AES");
+        legacy.init(Cipher.ENCRYPT_MODE, key);
+        legacyCiphertext = legacy.doFinal(plain);
+    }
+
+    private long encrypt(boolean parallel) throws Exception {
+        CountingSink sink = new CountingSink();
+        encrypt.invoke(null, key, new ByteArrayInputStream(plain), (long) plain.length, sink, magic, parallel);
+        return sink.count;
+    }
+
+    private long decrypt(boolean parallel) throws Exception {
+        CountingSink sink = new CountingSink();
+        decrypt.invoke(null, key, new ByteArrayInputStream(ciphertext), sink, parallel);
+        return sink.count;
+    }
+
+    @Benchmark
+    public long encryptChunked() throws Exception {
+        return encrypt(false);
+    }
+
+    @Benchmark
+    public long encryptParallel() throws Exception {
+        return encrypt(true);
+    }
+
+    @Benchmark
+    public long decryptChunked() throws Exception {
+        return decrypt(false);
+    }
+
+    @Benchmark
+    public long decryptParallel() throws Exception {
+        return decrypt(true);
+    }
+
+    // Whole-file AES as before chunked encryption; decryptLegacy still reads these files
+    @Benchmark
+    public int encryptLegacy() throws Exception {
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        return cipher.doFinal(plain).length;
+    }
+
+    @Benchmark
+    public int decryptLegacy() throws Exception {
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.DECRYPT_MODE, key);
+        return cipher.doFinal(legacyCiphertext).length;
+    }
+}
@@ -0,0 +1,104 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending a file to a loopback connection: the server's old stream copy loop
+ * at 4 KB to 256 KB buffers against the FileTransfer paths (pooled buffer
+ * read, memory map, transferTo).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadBenchmark {
+    @Param({"65536", "1048576", "16777216"})
+    public long size;
+
+    @Param({"loop-4k", "loop-16k", "loop-64k", "loop-256k", "pooled", "mmap", "transferTo"})
+    public String path;
+
+    private Loopback loopback;
+    private Path file;
+    private Object unlimited;
+    private App.Call send;
+
+    @Setup
+    public void setUp() throws Exception {
+        loopback = new Loopback();
+        file = Files.createTempFile("download-bench", ".bin");
+        Loopback.writeRandomFile(file, size);
+        Class<?> transfer = App.type("TransferScheduler$Transfer");
+        unlimited = App.field(App.type("TransferScheduler"), null, "UNLIMITED");
+        switch (path) {
+            case "pooled":
+                send = App.method("FileTransfer", "sendBuffered", FileChannel.class, long.class, long.class,
+                        OutputStream.class, transfer);
+                break;
+            case "mmap":
+                send = App.method("FileTransfer", "sendMapped", FileChannel.class, long.class, long.class,
+                        OutputStream.class, transfer);
+                break;
+            case "transferTo":
+                send = App.method("FileTransfer", "send", FileChannel.class, long.class, long.class,
+                        WritableByteChannel.class, transfer);
+                break;
+            default:
+                send = null;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        loopback.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public void download() throws Exception {
+        loopback.transfer(this::send, peer -> Loopback.sink(peer, size));
+    }
+
+    private void send(SocketChannel socket) throws Exception {
+        if (send == null) {
+            // The copy loop the server used before FileTransfer
+            OutputStream out = Channels.newOutputStream(socket);
+            byte[] buffer = new byte[Integer.parseInt(path.substring("loop-".length(), path.length() - 1)) * 1024];
+            int bytesRead;
+            try (FileInputStream in = new FileInputStream(file.toFile())) {
+                while ((bytesRead = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, bytesRead);
+                }
+            }
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Object out = path.equals("transferTo") ? socket : Channels.newOutputStream(socket);
+            send.invoke(null, channel, 0L, size, out, unlimited);
+        }
+    }
+}
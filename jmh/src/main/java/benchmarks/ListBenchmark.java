@@ -0,0 +1,96 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LIST on large directories: the directory listing LIST answered with before
+ * the file index, a listing sorted by size without the index, and pages from
+ * a warm FileIndex. ListRestartBenchmark measures the first page after a
+ * restart.
+ *
+ * The files are created under java.io.tmpdir and deleted afterwards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int count;
+
+    private ListFixture fixture;
+    private File dir;
+    private Object index;
+    private String secondPage;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = new ListFixture(count);
+        dir = fixture.storageRoot.resolve(ListFixture.USER).toFile();
+        index = fixture.newIndex();
+        fixture.awaitHashes(index);
+        secondPage = fixture.cursor(fixture.page(index, "", false, false, null));
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.delete();
+    }
+
+    // What LIST did before the index: every name, in directory order
+    @Benchmark
+    public int directoryList() {
+        StringBuilder response = new StringBuilder();
+        String[] files = dir.list();
+        response.append("Files: ").append(files.length).append('\n');
+        for (String file : files) {
+            response.append(file).append('\n');
+        }
+        return response.length();
+    }
+
+    @Benchmark
+    public long statAndSortBySize() {
+        File[] files = dir.listFiles();
+        Arrays.sort(files, Comparator.comparingLong(File::length).reversed());
+        return files[0].length();
+    }
+
+    @Benchmark
+    public int indexFirstPageByName() throws Exception {
+        return fixture.entries(fixture.page(index, "", false, false, null)).size();
+    }
+
+    @Benchmark
+    public int indexFirstPageBySizeDescending() throws Exception {
+        return fixture.entries(fixture.page(index, "", true, true, null)).size();
+    }
+
+    @Benchmark
+    public int indexSecondPageByName() throws Exception {
+        return fixture.entries(fixture.page(index, "", false, false, secondPage)).size();
+    }
+
+    @Benchmark
+    public int indexPrefixPage() throws Exception {
+        return fixture.entries(fixture.page(index, "file-00", false, false, null)).size();
+    }
+}
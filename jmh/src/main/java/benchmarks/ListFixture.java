@@ -0,0 +1,117 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A storage root with one user's files for the LIST benchmarks, and the
+ * FileIndex calls they make.
+ */
+final class ListFixture {
+    static final int PAGE = 100;
+    static final String USER = "bench";
+
+    final Path storageRoot;
+    final Object layout;
+    private final App.Call newChunkStore;
+    private final App.Call newIndex;
+    private final App.Call list;
+    private final App.Call flushAll;
+    private final Class<?> pageType;
+    private final Class<?> entryType;
+    private final Object byName;
+    private final Object bySize;
+
+    ListFixture(int count) throws Exception {
+        storageRoot = Files.createTempDirectory("list-bench");
+        createFiles(storageRoot.resolve(USER), count);
+        layout = App.constructor("ShardedLayout", List.class, int.class)
+                .newInstance(Collections.singletonList(storageRoot), 0);
+        Class<?> layoutType = App.type("StorageLayout");
+        newChunkStore = App.constructor("ChunkStore", layoutType);
+        newIndex = App.constructor("FileIndex", layoutType, App.type("ChunkStore"));
+        Class<?> sortType = App.type("FileIndex$Sort");
+        list = App.method("FileIndex", "list", String.class, String.class, sortType, boolean.class, int.class,
+                String.class);
+        flushAll = App.method("FileIndex", "flushAll");
+        pageType = App.type("FileIndex$Page");
+        entryType = App.type("FileIndex$Entry");
+        byName = App.enumConstant("FileIndex$Sort", "NAME");
+        bySize = App.enumConstant("FileIndex$Sort", "SIZE");
+    }
+
+    // A FileIndex as a server starts with: empty until a user's listing is loaded
+    Object newIndex() throws Exception {
+        return newIndex.newInstance(layout, newChunkStore.newInstance(layout));
+    }
+
+    Object page(Object index, String prefix, boolean bySize, boolean descending, String cursor) throws Exception {
+        return list.invoke(index, USER, prefix, bySize ? this.bySize : byName, descending, PAGE, cursor);
+    }
+
+    List<?> entries(Object page) {
+        return (List<?>) App.field(pageType, page, "entries");
+    }
+
+    String cursor(Object page) {
+        return (String) App.field(pageType, page, "cursor");
+    }
+
+    void flush(Object index) throws Exception {
+        flushAll.invoke(index);
+    }
+
+    Path savedIndex() {
+        return storageRoot.resolve(".index").resolve(USER + ".idx");
+    }
+
+    // Lets the background hashing finish so it does not run during the measurements
+    void awaitHashes(Object index) throws Exception {
+        while (true) {
+            boolean done = true;
+            for (Object entry : entries(list.invoke(index, USER, "", byName, false, 0, null))) {
+                if (App.field(entryType, entry, "hash") == null) {
+                    done = false;
+                    break;
+                }
+            }
+            if (done) {
+                return;
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    void delete() {
+        deleteTree(storageRoot.toFile());
+    }
+
+    private static void createFiles(Path dir, int count) throws IOException {
+        Files.createDirectories(dir);
+        Random random = new Random(count);
+        // Modified in the past, so the index hashes them without waiting
+        long modified = System.currentTimeMillis() - 60_000;
+        for (int i = 0; i < count; i++) {
+            byte[] data = new byte[1 + random.nextInt(1024)];
+            random.nextBytes(data);
+            File file = dir.resolve(String.format("file-%06d", random.nextInt(1_000_000)) + "-" + i).toFile();
+            Files.write(file.toPath(), data);
+            file.setLastModified(modified + i);
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,73 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The first LIST page after a server restart, from the saved index or, with
+ * index=scan, after scanning the directory because there is none. Each
+ * measurement is one cold FileIndex, so this runs in single shot mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ListRestartBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int count;
+
+    @Param({"saved", "scan"})
+    public String index;
+
+    private ListFixture fixture;
+    private Object restarted;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = new ListFixture(count);
+        Object first = fixture.newIndex();
+        fixture.awaitHashes(first);
+        fixture.flush(first);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.delete();
+    }
+
+    @Setup(Level.Invocation)
+    public void restart() throws Exception {
+        if (index.equals("scan")) {
+            Files.deleteIfExists(fixture.savedIndex());
+        }
+        restarted = fixture.newIndex();
+    }
+
+    // A scan hashes every file again; finish that before the next measurement
+    @TearDown(Level.Invocation)
+    public void settle() throws Exception {
+        fixture.awaitHashes(restarted);
+        fixture.flush(restarted);
+    }
+
+    @Benchmark
+    public int firstPage() throws Exception {
+        return fixture.entries(fixture.page(restarted, "", false, false, null)).size();
+    }
+}
@@ -0,0 +1,93 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * A loopback TCP listener for the copy benchmarks: each transfer gets a fresh
+ * connection, with the server side on the benchmark thread and the other end
+ * on a peer thread that sends or swallows the data.
+ */
+final class Loopback implements AutoCloseable {
+    interface SocketTask {
+        void run(SocketChannel socket) throws Exception;
+    }
+
+    private final ServerSocketChannel listener;
+
+    Loopback() throws IOException {
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    // Runs local on a new connection while remote runs on the other end
+    void transfer(SocketTask local, SocketTask remote) throws Exception {
+        try (SocketChannel peer = SocketChannel.open(listener.getLocalAddress());
+             SocketChannel socket = listener.accept()) {
+            Exception[] failure = new Exception[1];
+            Thread peerThread = new Thread(() -> {
+                try {
+                    remote.run(peer);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+            peerThread.start();
+            local.run(socket);
+            peerThread.join();
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+    }
+
+    static void sink(SocketChannel peer, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        long total = 0;
+        while (total < size) {
+            buffer.clear();
+            int n = peer.read(buffer);
+            if (n == -1) {
+                throw new IOException("Peer closed early");
+            }
+            total += n;
+        }
+    }
+
+    static void source(SocketChannel peer, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        long total = 0;
+        while (total < size) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), size - total));
+            while (buffer.hasRemaining()) {
+                total += peer.write(buffer);
+            }
+        }
+    }
+
+    static void writeRandomFile(Path file, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] block = new byte[1024 * 1024];
+        try (RandomAccessFile out = new RandomAccessFile(file.toFile(), "rw")) {
+            out.setLength(0);
+            long written = 0;
+            while (written < size) {
+                random.nextBytes(block);
+                int n = (int) Math.min(block.length, size - written);
+                out.write(block, 0, n);
+                written += n;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        listener.close();
+    }
+}
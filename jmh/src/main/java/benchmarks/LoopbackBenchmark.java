@@ -0,0 +1,201 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole UPLOAD and DOWNLOAD round trips, with TLS, encryption and disk writes
+ * on both ends, through FileTransferClient against a Server on loopback, and
+ * connecting and logging in.
+ *
+ * The Server keeps its state in static fields and uses the working directory,
+ * so it runs as a child of the benchmark JVM in a temporary directory, with a
+ * test keystore generated there by keytool; it needs port 8444 to be free.
+ * Further server options can be given with -jvmArgs -Dbench.serverOpts="...".
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+    private static final int PORT = 8444;
+    private static final String PASSWORD = "password";
+    private static final long START_TIMEOUT_MILLIS = 30_000;
+    // The demo account the server creates on its first start
+    private static final String USER = "Wild";
+    private static final String USER_PASSWORD = "password123";
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        Path dir;
+        Process process;
+        Object client;
+        App.Call open;
+        App.Call upload;
+        App.Call download;
+
+        @Setup
+        public void start() throws Exception {
+            dir = Files.createTempDirectory("loopback-bench");
+            createKeystores(dir);
+            process = startServer(dir);
+            System.setProperty("javax.net.ssl.trustStore", dir.resolve("client_truststore.jks").toString());
+            System.setProperty("javax.net.ssl.trustStorePassword", PASSWORD);
+
+            open = App.method("ClientConnection", "open", String.class, int.class, String.class, String.class);
+            upload = App.method("FileTransferClient", "upload", File.class, String.class, boolean.class);
+            download = App.method("FileTransferClient", "download", String.class, File.class);
+            client = App.constructor("FileTransferClient", String.class, int.class, String.class, String.class,
+                    int.class).newInstance("localhost", PORT, USER, USER_PASSWORD, 1);
+        }
+
+        @TearDown
+        public void stop() throws Exception {
+            if (client != null) {
+                ((Closeable) client).close();
+            }
+            if (process != null) {
+                process.destroy();
+                process.waitFor();
+            }
+            deleteTree(dir.toFile());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Payload {
+        @Param({"4096", "1048576", "16777216"})
+        public long size;
+
+        File source;
+        File target;
+        String remoteName;
+
+        @Setup
+        public void create(Server server) throws Exception {
+            source = server.dir.resolve("source-" + size).toFile();
+            target = server.dir.resolve("target-" + size).toFile();
+            Loopback.writeRandomFile(source.toPath(), size);
+            remoteName = "bench-" + size;
+            // So download has something to fetch from the first invocation
+            server.upload.invoke(server.client, source, remoteName, false);
+        }
+
+        @TearDown
+        public void delete() {
+            source.delete();
+            target.delete();
+        }
+    }
+
+    @Benchmark
+    public void connectAndLogIn(Server server) throws Exception {
+        ((Closeable) server.open.invoke(null, "localhost", PORT, USER, USER_PASSWORD)).close();
+    }
+
+    @Benchmark
+    public void upload(Server server, Payload payload) throws Exception {
+        server.upload.invoke(server.client, payload.source, payload.remoteName, false);
+    }
+
+    @Benchmark
+    public long download(Server server, Payload payload) throws Exception {
+        server.download.invoke(server.client, payload.remoteName, payload.target);
+        return payload.target.length();
+    }
+
+    // The same keystore and truststore SetupKeystores.bat makes
+    private static void createKeystores(Path dir) throws Exception {
+        String keytool = new File(System.getProperty("java.home"), "bin/keytool").getPath();
+        keytool(dir, keytool, "-genkeypair", "-alias", "server", "-keyalg", "RSA", "-keysize", "2048",
+                "-validity", "30", "-keystore", "server_keystore.jks", "-storepass", PASSWORD,
+                "-keypass", PASSWORD, "-dname", "CN=localhost", "-noprompt");
+        keytool(dir, keytool, "-exportcert", "-alias", "server", "-keystore", "server_keystore.jks",
+                "-storepass", PASSWORD, "-file", "server.cer");
+        keytool(dir, keytool, "-importcert", "-alias", "server", "-file", "server.cer",
+                "-keystore", "client_truststore.jks", "-storepass", PASSWORD, "-noprompt");
+    }
+
+    private static void keytool(Path dir, String... command) throws Exception {
+        Process process = new ProcessBuilder(command).directory(dir.toFile()).redirectErrorStream(true)
+                .redirectOutput(dir.resolve("keytool.log").toFile()).start();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed: " + String.join(" ", Arrays.asList(command).subList(1, 3))
+                    + ", see " + dir.resolve("keytool.log"));
+        }
+    }
+
+    private static Process startServer(Path dir) throws Exception {
+        if (isListening()) {
+            throw new IOException("Port " + PORT + " is in use; stop the running server first");
+        }
+        String java = new File(System.getProperty("java.home"), "bin/java").getPath();
+        String serverOpts = System.getProperty("bench.serverOpts", "").trim();
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        if (!serverOpts.isEmpty()) {
+            command.addAll(Arrays.asList(serverOpts.split("\\s+")));
+        }
+        // Absolute, since the server runs in another directory
+        List<String> classPath = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.add(new File(entry).getAbsolutePath());
+        }
+        command.addAll(Arrays.asList("-cp", String.join(File.pathSeparator, classPath), "Server"));
+        Process server = new ProcessBuilder(command).directory(dir.toFile()).redirectErrorStream(true)
+                .redirectOutput(dir.resolve("server.log").toFile()).start();
+
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (!isListening()) {
+            if (!server.isAlive() || System.currentTimeMillis() > deadline) {
+                server.destroy();
+                throw new IOException("Server did not start:\n"
+                        + new String(Files.readAllBytes(dir.resolve("server.log"))));
+            }
+            Thread.sleep(100);
+        }
+        return server;
+    }
+
+    private static boolean isListening() {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("localhost", PORT), 1000);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
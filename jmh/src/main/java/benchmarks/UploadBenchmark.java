@@ -0,0 +1,108 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receiving a file from a loopback connection: the server's old stream copy
+ * loop at 4 KB to 256 KB buffers against WriteBehind, which the server
+ * receives with, from a stream (TLS) and from a channel. Run with
+ * -jvmArgs -Dserver.io.writeBehindBuffers=0 to measure WriteBehind writing
+ * inline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadBenchmark {
+    @Param({"65536", "1048576", "16777216"})
+    public long size;
+
+    @Param({"loop-4k", "loop-16k", "loop-64k", "loop-256k", "stream", "direct"})
+    public String path;
+
+    private Loopback loopback;
+    private Path file;
+    private Object unlimited;
+    private App.Call receive;
+
+    @Setup
+    public void setUp() throws Exception {
+        loopback = new Loopback();
+        file = Files.createTempFile("upload-bench", ".bin");
+        Class<?> transfer = App.type("TransferScheduler$Transfer");
+        unlimited = App.field(App.type("TransferScheduler"), null, "UNLIMITED");
+        switch (path) {
+            case "stream":
+                receive = App.method("WriteBehind", "receive", InputStream.class, long.class, FileChannel.class,
+                        long.class, transfer);
+                break;
+            case "direct":
+                receive = App.method("WriteBehind", "receive", ReadableByteChannel.class, long.class,
+                        FileChannel.class, long.class, transfer);
+                break;
+            default:
+                receive = null;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        loopback.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public void upload() throws Exception {
+        loopback.transfer(this::receive, peer -> Loopback.source(peer, size));
+    }
+
+    private void receive(SocketChannel socket) throws Exception {
+        if (receive == null) {
+            // The copy loop the server used before FileTransfer
+            InputStream in = Channels.newInputStream(socket);
+            byte[] buffer = new byte[Integer.parseInt(path.substring("loop-".length(), path.length() - 1)) * 1024];
+            long total = 0;
+            try (FileOutputStream out = new FileOutputStream(file.toFile())) {
+                while (total < size) {
+                    int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, size - total));
+                    if (bytesRead == -1) {
+                        throw new IOException("Peer closed early");
+                    }
+                    out.write(buffer, 0, bytesRead);
+                    total += bytesRead;
+                }
+            }
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Object in = path.equals("direct") ? socket : Channels.newInputStream(socket);
+            receive.invoke(null, in, size, channel, 0L, unlimited);
+        }
+    }
+}
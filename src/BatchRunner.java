@@ -0,0 +1,163 @@
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Non-interactive mode of the client: runs a manifest of operations over a
+ * FileTransferClient.
+ *
+ *   java -Dclient.username=Wild -cp out Client --batch operations.txt
+ *
+ * The password is taken from the SFT_PASSWORD environment variable, or read
+ * from the console. The manifest holds one command per line, in the same
+ * form as the interactive commands, with files in client_storage:
+ *
+ *   UPLOAD [codec=none|deflate] <filename>
+ *   DOWNLOAD <filename>
+ *   LIST [options]
+ *
+ * Blank lines and lines starting with # are skipped. Operations run at the
+ * same time on up to -Dclient.connections pooled connections, their results
+ * are printed in manifest order, and the exit status is 1 if any failed.
+ */
+class BatchRunner {
+    private final String storageDir;
+    private final FileTransferClient client;
+
+    private BatchRunner(String storageDir, FileTransferClient client) {
+        this.storageDir = storageDir;
+        this.client = client;
+    }
+
+    static int run(String host, int port, String storageDir, int connections, String manifest) {
+        String username = System.getProperty("client.username");
+        if (username == null) {
+            System.err.println("Set the user name with -Dclient.username");
+            return 1;
+        }
+
+        List<String> commands = new ArrayList<>();
+        String password;
+        try {
+            try (BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        commands.add(line);
+                    }
+                }
+            }
+            password = readPassword();
+        } catch (IOException e) {
+            System.err.println("Cannot read " + e.getMessage());
+            return 1;
+        }
+
+        long start = System.nanoTime();
+        int failed = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, connections));
+        try (FileTransferClient client = new FileTransferClient(host, port, username, password, connections)) {
+            BatchRunner runner = new BatchRunner(storageDir, client);
+            List<Future<String>> results = new ArrayList<>();
+            for (String command : commands) {
+                results.add(executor.submit(() -> runner.execute(command)));
+            }
+
+            for (int i = 0; i < commands.size(); i++) {
+                String result;
+                try {
+                    result = results.get(i).get();
+                } catch (ExecutionException e) {
+                    failed++;
+                    Throwable cause = e.getCause();
+                    result = cause.getMessage() != null ? cause.getMessage() : cause.toString();
+                    if (!result.startsWith("FAILED")) {
+                        result = "FAILED: " + result;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return 1;
+                }
+                System.out.println("[" + (i + 1) + "] " + commands.get(i) + ": " + result);
+            }
+
+            System.out.printf("%d operations, %d failed, in %.2f s over %d connections%n", commands.size(), failed,
+                    (System.nanoTime() - start) / 1e9, client.connectionsOpened());
+        } finally {
+            executor.shutdownNow();
+        }
+        return failed == 0 ? 0 : 1;
+    }
+
+    private static String readPassword() throws IOException {
+        String password = System.getenv("SFT_PASSWORD");
+        if (password != null) {
+            return password;
+        }
+        Console console = System.console();
+        if (console != null) {
+            return new String(console.readPassword("Password: "));
+        }
+        String line = new BufferedReader(new InputStreamReader(System.in)).readLine();
+        if (line == null) {
+            throw new IOException("password from standard input");
+        }
+        return line;
+    }
+
+    // Runs one command and returns its result line; failures are thrown
+    private String execute(String command) throws Exception {
+        String[] parts = command.split(" ", 2);
+        String action = parts[0].toUpperCase();
+        String arguments = parts.length < 2 ? "" : parts[1].trim();
+
+        switch (action) {
+            case "UPLOAD": {
+                boolean compress = false;
+                if (arguments.startsWith("codec=") && arguments.indexOf(' ') > 0) {
+                    String codec = arguments.substring(6, arguments.indexOf(' '));
+                    if (!codec.equalsIgnoreCase("deflate") && !codec.equalsIgnoreCase("none")) {
+                        throw new IOException("Unknown codec " + codec);
+                    }
+                    compress = codec.equalsIgnoreCase("deflate");
+                    arguments = arguments.substring(arguments.indexOf(' ') + 1);
+                }
+                File file = new File(storageDir, arguments);
+                if (!file.isFile()) {
+                    throw new IOException("File not found: " + arguments);
+                }
+                client.upload(file, arguments, compress);
+                return "uploaded";
+            }
+            case "DOWNLOAD":
+                if (arguments.isEmpty()) {
+                    throw new IOException("Missing filename");
+                }
+                client.download(arguments, new File(storageDir, arguments));
+                return "downloaded";
+            case "LIST": {
+                FileTransferClient.Listing listing = client.list(arguments);
+                StringBuilder result = new StringBuilder(listing.files.size() + " files");
+                for (String file : listing.files) {
+                    result.append(System.lineSeparator()).append("  ").append(file);
+                }
+                if (listing.cursor != null) {
+                    result.append(System.lineSeparator()).append("  more with cursor=").append(listing.cursor);
+                }
+                return result.toString();
+            }
+            default:
+                throw new IOException("Unknown command");
+        }
+    }
+}
@@ -0,0 +1,471 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded cache of hot downloads, held off-heap.
+ *
+ * Cached bytes live in direct memory, carved into fixed-size blocks from
+ * slabs that are allocated as the cache grows, so the budget is exact and the
+ * cache adds no GC pressure; only the small per-entry records are on the
+ * heap. Eviction is segmented LRU: new entries join a probation segment and
+ * move to a protected segment (80% of the budget) on their second hit.
+ * Admission follows TinyLFU: a count-min sketch estimates how often every key
+ * is requested, cached or not, and a new entry is only cached if it is
+ * requested more often than each entry it would evict, so a burst of one-off
+ * downloads does not flush the hot set.
+ *
+ * Entries are checked against the file's length and modification time on
+ * every lookup, and can be invalidated explicitly. An entry being sent is
+ * pinned; evicting it only returns its blocks once the last reader is done.
+ */
+class BlobCache implements BlobCacheMXBean {
+    static final int BLOCK_SIZE = 16 * 1024;
+    private static final int SLAB_BLOCKS = 4096;
+
+    /** Opens the data of an entry being loaded. */
+    interface Source {
+        ReadableByteChannel open() throws IOException;
+    }
+
+    static final class Entry {
+        private final String key;
+        private final long fileLength;
+        private final long modified;
+        private final long length;
+        private final int[] blocks;
+        private int pins;
+        private boolean removed;
+        private boolean protectedSegment;
+
+        private Entry(String key, long fileLength, long modified, long length, int[] blocks) {
+            this.key = key;
+            this.fileLength = fileLength;
+            this.modified = modified;
+            this.length = length;
+            this.blocks = blocks;
+        }
+
+        long length() {
+            return length;
+        }
+    }
+
+    private final long capacity;
+    private final long maxObjectSize;
+    private final int totalBlocks;
+    private final int protectedBlocks;
+    private final ByteBuffer[] slabs;
+
+    // Guarded by this
+    private final int[] freeBlocks;
+    private int freeCount;
+    private int nextUnused;
+    private int protectedUsed;
+    private long size;
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Entry> protectedEntries = new LinkedHashMap<>();
+    private final FrequencySketch sketch;
+
+    // Bumped by every invalidation, so a load that overlaps one is not cached
+    private final AtomicLong version = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    BlobCache(long capacity, long maxObjectSize) {
+        this.totalBlocks = (int) Math.min(Integer.MAX_VALUE - SLAB_BLOCKS, Math.max(0, capacity / BLOCK_SIZE));
+        this.capacity = (long) totalBlocks * BLOCK_SIZE;
+        this.maxObjectSize = Math.min(maxObjectSize, this.capacity);
+        this.protectedBlocks = (int) (totalBlocks * 0.8);
+        this.slabs = new ByteBuffer[(totalBlocks + SLAB_BLOCKS - 1) / SLAB_BLOCKS];
+        this.freeBlocks = new int[totalBlocks];
+        this.sketch = new FrequencySketch(totalBlocks);
+    }
+
+    boolean isEnabled() {
+        return totalBlocks > 0;
+    }
+
+    // Whether an object of this length could be cached at all
+    boolean accepts(long length) {
+        return isEnabled() && length <= maxObjectSize;
+    }
+
+    long version() {
+        return version.get();
+    }
+
+    /**
+     * Returns the pinned entry for key if it is cached for a file of this
+     * length and modification time, or null. Every lookup counts towards the
+     * key's frequency. A returned entry must be released.
+     */
+    Entry acquire(String key, long fileLength, long modified) {
+        if (!isEnabled()) {
+            return null;
+        }
+        synchronized (this) {
+            sketch.increment(key);
+            Entry entry = find(key);
+            if (entry != null && (entry.fileLength != fileLength || entry.modified != modified)) {
+                // Changed on disk without passing through the server
+                remove(entry);
+                invalidations.incrementAndGet();
+                entry = null;
+            }
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+
+            hits.incrementAndGet();
+            promote(entry);
+            entry.pins++;
+            return entry;
+        }
+    }
+
+    /**
+     * Reads length bytes from source into the cache for key and returns the
+     * pinned entry, or null if the entry was not admitted (source is then not
+     * opened). version is the value of version() taken before the file was
+     * examined; if an invalidation happened since, the data is still returned
+     * for this one transfer but not kept.
+     */
+    Entry load(String key, long fileLength, long modified, long length, long version, Source source)
+            throws IOException {
+        if (!accepts(length)) {
+            return null;
+        }
+
+        int[] blocks;
+        synchronized (this) {
+            blocks = reserve((int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE), sketch.frequency(key));
+            if (blocks == null) {
+                rejections.incrementAndGet();
+                return null;
+            }
+        }
+
+        Entry entry = new Entry(key, fileLength, modified, length, blocks);
+        boolean filled = false;
+        try {
+            try (ReadableByteChannel in = source.open()) {
+                for (ByteBuffer buffer : buffers(entry, 0, length)) {
+                    while (buffer.hasRemaining()) {
+                        if (in.read(buffer) == -1) {
+                            throw new EOFException("File shorter than expected");
+                        }
+                    }
+                }
+            }
+            filled = true;
+        } finally {
+            if (!filled) {
+                synchronized (this) {
+                    release(blocks);
+                }
+            }
+        }
+
+        synchronized (this) {
+            entry.pins = 1;
+            if (this.version.get() != version) {
+                // Only this transfer uses it; release() frees it
+                entry.removed = true;
+                return entry;
+            }
+            Entry old = find(key);
+            if (old != null) {
+                remove(old);
+            }
+            probation.put(key, entry);
+            size += length;
+            loads.incrementAndGet();
+            return entry;
+        }
+    }
+
+    void release(Entry entry) {
+        synchronized (this) {
+            entry.pins--;
+            if (entry.removed && entry.pins == 0) {
+                release(entry.blocks);
+            }
+        }
+    }
+
+    void invalidate(String key) {
+        if (!isEnabled()) {
+            return;
+        }
+        version.incrementAndGet();
+        synchronized (this) {
+            Entry entry = find(key);
+            if (entry != null) {
+                remove(entry);
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    // Read-only views of length bytes of entry from offset, one per block
+    List<ByteBuffer> buffers(Entry entry, long offset, long length) {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        long end = Math.min(entry.length, offset + length);
+        while (offset < end) {
+            int block = entry.blocks[(int) (offset / BLOCK_SIZE)];
+            int start = (int) (offset % BLOCK_SIZE);
+            int count = (int) Math.min(BLOCK_SIZE - start, end - offset);
+            ByteBuffer slab = slabs[block / SLAB_BLOCKS].duplicate();
+            int position = (block % SLAB_BLOCKS) * BLOCK_SIZE + start;
+            slab.limit(position + count).position(position);
+            buffers.add(slab.slice());
+            offset += count;
+        }
+        return buffers;
+    }
+
+    private Entry find(String key) {
+        Entry entry = probation.get(key);
+        return entry != null ? entry : protectedEntries.get(key);
+    }
+
+    // Moves a hit to the most recently used end, from probation into protected
+    private void promote(Entry entry) {
+        if (entry.protectedSegment) {
+            protectedEntries.remove(entry.key);
+            protectedEntries.put(entry.key, entry);
+            return;
+        }
+
+        probation.remove(entry.key);
+        protectedEntries.put(entry.key, entry);
+        entry.protectedSegment = true;
+        protectedUsed += entry.blocks.length;
+
+        // Overflow from protected goes back to probation
+        Iterator<Entry> oldest = protectedEntries.values().iterator();
+        while (protectedUsed > protectedBlocks && oldest.hasNext()) {
+            Entry demoted = oldest.next();
+            if (demoted == entry) {
+                break;
+            }
+            oldest.remove();
+            demoted.protectedSegment = false;
+            protectedUsed -= demoted.blocks.length;
+            probation.put(demoted.key, demoted);
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (entry.protectedSegment) {
+            protectedEntries.remove(entry.key);
+            protectedUsed -= entry.blocks.length;
+        } else {
+            probation.remove(entry.key);
+        }
+        size -= entry.length;
+        entry.removed = true;
+        if (entry.pins == 0) {
+            release(entry.blocks);
+        }
+    }
+
+    // Finds count free blocks, evicting less frequently used entries if the
+    // candidate is used more often than all of them; null if it is not
+    private int[] reserve(int count, int frequency) {
+        int available = freeCount + (totalBlocks - nextUnused);
+        if (available < count) {
+            List<Entry> victims = new ArrayList<>();
+            Iterator<Entry> candidates = new SegmentIterator();
+            while (available < count && candidates.hasNext()) {
+                Entry victim = candidates.next();
+                if (sketch.frequency(victim.key) >= frequency) {
+                    return null;
+                }
+                victims.add(victim);
+                if (victim.pins == 0) {
+                    available += victim.blocks.length;
+                }
+            }
+            if (available < count) {
+                return null;
+            }
+            for (Entry victim : victims) {
+                remove(victim);
+                evictions.incrementAndGet();
+            }
+        }
+
+        int[] blocks = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (freeCount > 0) {
+                blocks[i] = freeBlocks[--freeCount];
+            } else {
+                int block = nextUnused++;
+                if (slabs[block / SLAB_BLOCKS] == null) {
+                    int slabBlocks = Math.min(SLAB_BLOCKS, totalBlocks - block);
+                    slabs[block / SLAB_BLOCKS] = ByteBuffer.allocateDirect(slabBlocks * BLOCK_SIZE);
+                }
+                blocks[i] = block;
+            }
+        }
+        return blocks;
+    }
+
+    private void release(int[] blocks) {
+        for (int block : blocks) {
+            freeBlocks[freeCount++] = block;
+        }
+    }
+
+    // Eviction order: probation from its least recent end, then protected
+    private class SegmentIterator implements Iterator<Entry> {
+        private Iterator<Entry> current = probation.values().iterator();
+        private boolean inProtected;
+
+        @Override
+        public boolean hasNext() {
+            if (!current.hasNext() && !inProtected) {
+                current = protectedEntries.values().iterator();
+                inProtected = true;
+            }
+            return current.hasNext();
+        }
+
+        @Override
+        public Entry next() {
+            hasNext();
+            return current.next();
+        }
+    }
+
+    /*
+     * Count-min sketch of 4-bit counters in four rows. Every counter is halved
+     * once the number of increments reaches ten times the width, so the
+     * estimates follow recent popularity rather than all-time totals.
+     */
+    private static final class FrequencySketch {
+        private static final int[] SEEDS = {0x97cb3127, 0x0c4e92ad, 0x5ae3b1f9, 0x2f6f3d6b};
+        private static final int MAX_COUNT = 15;
+
+        private final byte[][] rows = new byte[SEEDS.length][];
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.max(256, Math.min(1 << 24, expectedEntries)) * 2 - 1);
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = new byte[width];
+            }
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int i = 0; i < rows.length; i++) {
+                int index = index(hash, i);
+                if (rows[i][index] < MAX_COUNT) {
+                    rows[i][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (byte[] row : rows) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] >>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < rows.length; i++) {
+                frequency = Math.min(frequency, rows[i][index(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash + SEEDS[row]) * SEEDS[row];
+            h ^= h >>> 16;
+            return h & mask;
+        }
+    }
+
+    @Override
+    public long getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public synchronized int getEntries() {
+        return probation.size() + protectedEntries.size();
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getLoads() {
+        return loads.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d of %d bytes in %d entries, %d hits, %d misses, %d evictions, %d rejected",
+                getSize(), capacity, getEntries(), getHits(), getMisses(), getEvictions(), getRejections());
+    }
+}
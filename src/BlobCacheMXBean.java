@@ -0,0 +1,30 @@
+/**
+ * Counters of the server's BlobCache, registered with the platform MBean
+ * server as SecureFileTransfer:type=BlobCache so the cache can be sized from
+ * jconsole or any JMX client.
+ */
+public interface BlobCacheMXBean {
+    long getCapacity();
+
+    long getSize();
+
+    int getEntries();
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRatio();
+
+    // Files read into the cache on a miss
+    long getLoads();
+
+    // Entries evicted to make room for others
+    long getEvictions();
+
+    // Misses not cached because the entries they would evict are used more often
+    long getRejections();
+
+    // Entries dropped because their file was uploaded again or changed on disk
+    long getInvalidations();
+}
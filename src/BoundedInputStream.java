@@ -0,0 +1,53 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Exposes at most a fixed number of bytes of the underlying stream
+class BoundedInputStream extends FilterInputStream {
+    private long remaining;
+
+    BoundedInputStream(InputStream in, long length) {
+        super(in);
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int b = in.read();
+        if (b != -1) {
+            remaining--;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int bytesRead = in.read(buffer, offset, (int) Math.min(length, remaining));
+        if (bytesRead != -1) {
+            remaining -= bytesRead;
+        }
+        return bytesRead;
+    }
+
+    long remaining() {
+        return remaining;
+    }
+
+    @Override
+    public void close() {
+        // The socket stream is shared and stays open
+    }
+
+    void drain() throws IOException {
+        byte[] buffer = new byte[8192];
+        while (read(buffer, 0, buffer.length) != -1) {
+            // Discard
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A shared pool of large I/O buffers.
+ *
+ * Each buffer is a direct ByteBuffer, which FileChannel and SocketChannel read
+ * and write without an extra copy. The stream-based (TLS) connections also
+ * need a heap array; it is allocated the first time a buffer is used that way
+ * and then kept with it. The pool bounds native memory: left to itself the
+ * JDK caches a temporary direct buffer per thread for every heap buffer
+ * written to a channel, which adds up with one thread per connection.
+ *
+ * At most maxBuffers direct buffers are ever allocated, so the pool holds at
+ * most maxBuffers * bufferSize bytes of native memory. Once all of them are
+ * in use, acquire hands out a heap buffer instead, so a transfer never waits
+ * for another to finish; it is dropped on release.
+ */
+class BufferPool {
+    static final class PooledBuffer {
+        // Direct, except for the heap buffers handed out while the pool is exhausted
+        final ByteBuffer direct;
+        private final boolean pooled;
+        private byte[] array;
+
+        private PooledBuffer(ByteBuffer direct, boolean pooled) {
+            this.direct = direct;
+            this.pooled = pooled;
+        }
+
+        // A heap array of the buffer's size, for copying to and from streams
+        byte[] array() {
+            if (array == null) {
+                array = direct.hasArray() ? direct.array() : new byte[direct.capacity()];
+            }
+            return array;
+        }
+    }
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final ArrayBlockingQueue<PooledBuffer> pool;
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    BufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = Math.max(1, maxBuffers);
+        this.pool = new ArrayBlockingQueue<>(this.maxBuffers);
+    }
+
+    PooledBuffer acquire() {
+        PooledBuffer buffer = pool.poll();
+        if (buffer == null) {
+            buffer = allocate();
+        }
+        buffer.direct.clear();
+        return buffer;
+    }
+
+    void release(PooledBuffer buffer) {
+        if (buffer.pooled) {
+            pool.offer(buffer);
+        }
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    private PooledBuffer allocate() {
+        while (true) {
+            int count = allocated.get();
+            if (count >= maxBuffers) {
+                return new PooledBuffer(ByteBuffer.allocate(bufferSize), false);
+            }
+            if (allocated.compareAndSet(count, count + 1)) {
+                return new PooledBuffer(ByteBuffer.allocateDirect(bufferSize), true);
+            }
+        }
+    }
+}
@@ -0,0 +1,367 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * CRC32C checksums of stored files, kept in .checksums/<user>/<name> of the
+ * storage root that holds the file (with the same fan-out, see StorageLayout).
+ *
+ * Uploads are checksummed while they are received: the whole file and every
+ * 64 KiB block of it. The record is saved with the length and modification
+ * time of the file, and is ignored once the file no longer matches them, so a
+ * file replaced by other means is never reported as damaged. The block
+ * checksums give DOWNLOAD_RANGE the checksum of any range by reading only the
+ * partial blocks at its two ends, and let VERIFY say where a file went bad.
+ */
+class Checksums {
+    static final int BLOCK_SIZE = 64 * 1024;
+    static final String CHECKSUM_DIR = ".checksums";
+    private static final byte[] MAGIC = {'S', 'F', 'C', 'K'};
+    // What the first version wrote, the same as ChunkedCipher.MAGIC; still read
+    private static final byte[] OLD_MAGIC = {'S', 'F', 'T', 'C'};
+    private static final int VERSION = 1;
+
+    /** Checksums of a file written from its start, fed every byte in order. */
+    static final class Builder {
+        private final Crc32c block = new Crc32c();
+        private int blockFill;
+        private long length;
+        // Checksum of the complete blocks so far
+        private long crc;
+        private int[] blocks = new int[16];
+        private int count;
+
+        void update(byte[] b, int off, int len) {
+            while (len > 0) {
+                int n = Math.min(len, BLOCK_SIZE - blockFill);
+                block.update(b, off, n);
+                advance(n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        // Adds the buffer's remaining bytes and moves its position to its limit
+        void update(ByteBuffer buffer) {
+            int limit = buffer.limit();
+            while (buffer.hasRemaining()) {
+                int n = Math.min(buffer.remaining(), BLOCK_SIZE - blockFill);
+                buffer.limit(buffer.position() + n);
+                block.update(buffer);
+                buffer.limit(limit);
+                advance(n);
+            }
+        }
+
+        private void advance(int n) {
+            blockFill += n;
+            length += n;
+            if (blockFill == BLOCK_SIZE) {
+                endBlock();
+            }
+        }
+
+        private void endBlock() {
+            long value = block.getValue();
+            if (count == blocks.length) {
+                blocks = Arrays.copyOf(blocks, count * 2);
+            }
+            blocks[count++] = (int) value;
+            crc = Crc32c.combine(crc, value, blockFill);
+            block.reset();
+            blockFill = 0;
+        }
+
+        long length() {
+            return length;
+        }
+
+        // The checksum of everything so far
+        long value() {
+            return blockFill == 0 ? crc : Crc32c.combine(crc, block.getValue(), blockFill);
+        }
+
+        // Ends the last, partial block; the builder takes no more bytes afterwards
+        Record finish(long modified) {
+            if (blockFill > 0) {
+                endBlock();
+            }
+            return new Record(length, modified, crc, Arrays.copyOf(blocks, count));
+        }
+
+        // A stream that checksums what is read through it
+        InputStream wrap(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        update(new byte[]{(byte) b}, 0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        update(b, off, n);
+                    }
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    // Every byte has to be seen
+                    byte[] skipped = new byte[(int) Math.min(n, 8192)];
+                    int read = read(skipped, 0, skipped.length);
+                    return Math.max(read, 0);
+                }
+            };
+        }
+
+        ReadableByteChannel wrap(ReadableByteChannel in) {
+            return new ReadableByteChannel() {
+                @Override
+                public int read(ByteBuffer dst) throws IOException {
+                    int start = dst.position();
+                    int n = in.read(dst);
+                    if (n > 0) {
+                        ByteBuffer read = dst.duplicate();
+                        read.limit(dst.position()).position(start);
+                        update(read);
+                    }
+                    return n;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return in.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    in.close();
+                }
+            };
+        }
+    }
+
+    static final class Record {
+        final long length;
+        final long modified;
+        final long crc;
+        private final int[] blocks;
+
+        Record(long length, long modified, long crc, int[] blocks) {
+            this.length = length;
+            this.modified = modified;
+            this.crc = crc;
+            this.blocks = blocks;
+        }
+
+        boolean matches(long length, long modified) {
+            return this.length == length && this.modified == modified;
+        }
+
+        // The first block that differs from other's, or -1 if all match
+        int firstMismatch(Record other) {
+            int common = Math.min(blocks.length, other.blocks.length);
+            for (int i = 0; i < common; i++) {
+                if (blocks[i] != other.blocks[i]) {
+                    return i;
+                }
+            }
+            return blocks.length == other.blocks.length ? -1 : common;
+        }
+
+        /**
+         * The checksum of a range of file, which this record describes. Whole
+         * blocks inside the range come from the record; only the partial
+         * blocks at its ends are read.
+         */
+        long range(FileChannel file, long offset, long length) throws IOException {
+            long end = offset + length;
+            if (offset == 0 && end == this.length) {
+                return crc;
+            }
+            int first = (int) ((offset + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            // The file's last block counts as whole when the range reaches the end of the file
+            int last = end == this.length ? blocks.length : (int) (end / BLOCK_SIZE);
+            if (first >= last) {
+                return read(file, offset, length);
+            }
+
+            long headEnd = (long) first * BLOCK_SIZE;
+            long value = read(file, offset, headEnd - offset);
+            for (int i = first; i < last; i++) {
+                long blockLength = Math.min(BLOCK_SIZE, this.length - (long) i * BLOCK_SIZE);
+                value = Crc32c.combine(value, blocks[i] & 0xFFFFFFFFL, blockLength);
+            }
+            long tailStart = Math.min((long) last * BLOCK_SIZE, this.length);
+            if (end > tailStart) {
+                value = Crc32c.combine(value, read(file, tailStart, end - tailStart), end - tailStart);
+            }
+            return value;
+        }
+
+        private static long read(FileChannel file, long position, long length) throws IOException {
+            Crc32c crc = new Crc32c();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, BLOCK_SIZE));
+            long end = position + length;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int n = file.read(buffer, position);
+                if (n < 0) {
+                    throw new EOFException("File shorter than its checksum record");
+                }
+                buffer.flip();
+                crc.update(buffer);
+                position += n;
+            }
+            return crc.getValue();
+        }
+    }
+
+    private final StorageLayout layout;
+
+    Checksums(StorageLayout layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * Saves what builder has seen as the record of a stored file, unless the
+     * file has a different length by now (it was replaced meanwhile).
+     */
+    Record save(String user, String name, Builder builder) throws IOException {
+        Path file = stored(user, name);
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        if (attributes.size() != builder.length()) {
+            return null;
+        }
+        Record record = builder.finish(attributes.lastModifiedTime().toMillis());
+        write(file, record);
+        return record;
+    }
+
+    // Reads a stored file and saves its record, for files not written through a Builder
+    Record compute(String user, String name) throws IOException {
+        Path file = stored(user, name);
+        Builder builder = new Builder();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                builder.update(buffer);
+                buffer.clear();
+            }
+        }
+        return save(user, name, builder);
+    }
+
+    // The saved record of a stored file, or null if there is none or it no longer fits the file
+    Record get(String user, String name) {
+        Path file = layout.locate(user, name);
+        if (file == null) {
+            return null;
+        }
+        Record record = read(file);
+        if (record == null) {
+            return null;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return record.matches(attributes.size(), attributes.lastModifiedTime().toMillis()) ? record : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private Path stored(String user, String name) throws NoSuchFileException {
+        Path file = layout.locate(user, name);
+        if (file == null) {
+            throw new NoSuchFileException(user + "/" + name);
+        }
+        return file;
+    }
+
+    /*
+     * Format: magic "SFCK" (files written with the legacy magic "SFTC" are
+     * still read), version (int), the file's length and modification time
+     * (longs), its checksum, the block size and the block count (ints), then
+     * the checksum of each block (ints).
+     */
+    private void write(Path file, Record record) throws IOException {
+        Path target = layout.companion(file, CHECKSUM_DIR);
+        Path dir = target.getParent();
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, ".checksum", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(record.length);
+                out.writeLong(record.modified);
+                out.writeInt((int) record.crc);
+                out.writeInt(BLOCK_SIZE);
+                out.writeInt(record.blocks.length);
+                for (int block : record.blocks) {
+                    out.writeInt(block);
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private Record read(Path file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(layout.companion(file, CHECKSUM_DIR))))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!(MessageDigest.isEqual(magic, MAGIC) || MessageDigest.isEqual(magic, OLD_MAGIC))
+                    || in.readInt() != VERSION) {
+                throw new IOException("not a checksum file of this version");
+            }
+            long length = in.readLong();
+            long modified = in.readLong();
+            long crc = in.readInt() & 0xFFFFFFFFL;
+            if (in.readInt() != BLOCK_SIZE) {
+                throw new IOException("different block size");
+            }
+            int[] blocks = new int[in.readInt()];
+            if (blocks.length != (length + BLOCK_SIZE - 1) / BLOCK_SIZE) {
+                throw new IOException("bad block count");
+            }
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = in.readInt();
+            }
+            return new Record(length, modified, crc, blocks);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            String reason = e instanceof EOFException ? "truncated" : e.getMessage();
+            System.err.println("Ignoring checksum of " + file + ": " + reason);
+            return null;
+        }
+    }
+}
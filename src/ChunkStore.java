@@ -0,0 +1,235 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Content-addressed chunk storage for deduplicated uploads.
+ *
+ * Each encrypted chunk is stored once per user under the SHA-256 of its bytes,
+ * in .chunks/<user>/<first two hex digits>/<id> of the first storage root. A
+ * file uploaded this way is stored where the storage layout puts the user's
+ * files, as a manifest listing its chunks (see DedupCipher), and is expanded
+ * back into a stream of entries and blobs when it is downloaded. Chunks are
+ * written to a temporary file and renamed into place, so a chunk that exists
+ * is always complete.
+ */
+class ChunkStore {
+    private static final String CHUNKS_DIR = ".chunks";
+    private static final String STAGING_DIR = ".staging";
+
+    private final StorageLayout layout;
+
+    ChunkStore(StorageLayout layout) {
+        this.layout = layout;
+    }
+
+    boolean has(String user, byte[] id) {
+        return Files.exists(chunkPath(user, id));
+    }
+
+    // Stores a blob under id; returns false if the blob does not hash to id
+    boolean put(String user, byte[] id, byte[] blob, int length) throws IOException {
+        if (!MessageDigest.isEqual(DedupCipher.chunkId(blob, length), id)) {
+            return false;
+        }
+        Path target = chunkPath(user, id);
+        if (Files.exists(target)) {
+            return true;
+        }
+
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), "chunk", ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+                out.write(blob, 0, length);
+                out.getFD().sync();
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return true;
+    }
+
+    /**
+     * Reads a manifest of the given length from body and stores it as the
+     * user's file name once every chunk it lists is present. The whole body is
+     * read even when the manifest is rejected, so the connection stays in sync.
+     */
+    void putManifest(String user, String name, InputStream body, long length) throws IOException {
+        DataInputStream in = new DataInputStream(body);
+        // On the root the manifest goes to, so it can be renamed into place
+        Path staging = layout.root(user, name).resolve(STAGING_DIR).resolve(user);
+        Files.createDirectories(staging);
+        Path temp = Files.createTempFile(staging, "manifest", ".tmp");
+
+        try {
+            String error = null;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp.toFile())))) {
+                byte[] header = new byte[DedupCipher.MANIFEST_HEADER_LENGTH];
+                long count = -1;
+                if (length >= header.length) {
+                    in.readFully(header);
+                    out.write(header);
+                    count = ByteBuffer.wrap(header).getLong(DedupCipher.MANIFEST_MAGIC.length);
+                }
+                if (!DedupCipher.hasManifestMagic(header) || count < 0
+                        || length != header.length + count * DedupCipher.ENTRY_LENGTH + DedupCipher.MAC_LENGTH) {
+                    skipFully(in, length - (length >= header.length ? header.length : 0));
+                    throw new IOException("Invalid manifest");
+                }
+
+                byte[] entry = new byte[DedupCipher.ENTRY_LENGTH];
+                for (long i = 0; i < count; i++) {
+                    in.readFully(entry);
+                    out.write(entry);
+                    byte[] id = Arrays.copyOf(entry, DedupCipher.ID_LENGTH);
+                    if (error == null && !has(user, id)) {
+                        error = "Missing chunk " + DedupCipher.hex(id);
+                    }
+                }
+                byte[] mac = new byte[DedupCipher.MAC_LENGTH];
+                in.readFully(mac);
+                out.write(mac);
+            }
+            if (error != null) {
+                throw new IOException(error);
+            }
+
+            layout.store(temp, user, name);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void skipFully(DataInputStream in, long length) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (length > 0) {
+            int n = (int) Math.min(buffer.length, length);
+            in.readFully(buffer, 0, n);
+            length -= n;
+        }
+    }
+
+    static boolean isManifest(File file) throws IOException {
+        byte[] magic = new byte[DedupCipher.MANIFEST_MAGIC.length];
+        try (FileInputStream in = new FileInputStream(file)) {
+            return ChunkedCipher.readFully(in, magic, 0, magic.length) == magic.length
+                    && DedupCipher.hasManifestMagic(magic);
+        }
+    }
+
+    // Size of the stream openExpanded returns: the manifest plus every blob it lists
+    long expandedLength(File manifest) throws IOException {
+        long length = manifest.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)))) {
+            in.skipBytes(DedupCipher.MANIFEST_MAGIC.length);
+            long count = in.readLong();
+            byte[] entry = new byte[DedupCipher.ENTRY_LENGTH];
+            for (long i = 0; i < count; i++) {
+                in.readFully(entry);
+                length += ByteBuffer.wrap(entry).getInt(DedupCipher.ID_LENGTH);
+            }
+        }
+        return length;
+    }
+
+    InputStream openExpanded(String user, File manifest) throws IOException {
+        return new ExpandedStream(user, manifest);
+    }
+
+    private Path chunkPath(String user, byte[] id) {
+        String hex = DedupCipher.hex(id);
+        return layout.home().resolve(CHUNKS_DIR).resolve(user).resolve(hex.substring(0, 2)).resolve(hex);
+    }
+
+    // The manifest header, then each entry followed by its blob, then the MAC
+    private class ExpandedStream extends InputStream {
+        private final String user;
+        private final DataInputStream manifest;
+        private long entriesLeft;
+        private byte[] pendingId;
+        private boolean finished;
+        private InputStream current;
+
+        ExpandedStream(String user, File file) throws IOException {
+            this.user = user;
+            this.manifest = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            byte[] header = new byte[DedupCipher.MANIFEST_HEADER_LENGTH];
+            manifest.readFully(header);
+            entriesLeft = ByteBuffer.wrap(header).getLong(DedupCipher.MANIFEST_MAGIC.length);
+            current = new ByteArrayInputStream(header);
+        }
+
+        // Moves on to the next section; returns false after the MAC
+        private boolean advance() throws IOException {
+            current.close();
+            if (pendingId != null) {
+                current = new FileInputStream(chunkPath(user, pendingId).toFile());
+                pendingId = null;
+            } else if (entriesLeft > 0) {
+                byte[] entry = new byte[DedupCipher.ENTRY_LENGTH];
+                manifest.readFully(entry);
+                pendingId = Arrays.copyOf(entry, DedupCipher.ID_LENGTH);
+                entriesLeft--;
+                current = new ByteArrayInputStream(entry);
+            } else if (!finished) {
+                byte[] mac = new byte[DedupCipher.MAC_LENGTH];
+                manifest.readFully(mac);
+                finished = true;
+                current = new ByteArrayInputStream(mac);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (true) {
+                int b = current.read();
+                if (b != -1) {
+                    return b;
+                }
+                if (!advance()) {
+                    return -1;
+                }
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (true) {
+                int bytesRead = current.read(buffer, offset, length);
+                if (bytesRead != -1) {
+                    return bytesRead;
+                }
+                if (!advance()) {
+                    return -1;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            current.close();
+            manifest.close();
+        }
+    }
+}
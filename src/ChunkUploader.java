@@ -0,0 +1,167 @@
+import javax.crypto.Mac;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Builds a manifest on the server one chunk at a time.
+ *
+ * New chunks are encrypted and collected into batches; each batch is offered
+ * with CHUNK_QUERY and only the chunks the server lacks are sent with
+ * CHUNK_PUT. Chunks the server is known to hold already can be added by id
+ * without sending anything. The manifest entries are kept in a temporary file,
+ * so memory does not grow with the file, and sent with MANIFEST_PUT on commit.
+ */
+class ChunkUploader implements Closeable {
+    private static final int BATCH_CHUNKS = 256;
+
+    private final ClientConnection connection;
+    private final DedupCipher cipher;
+    private final File entries;
+    private final DataOutputStream entriesOut;
+    private final byte[] blob = new byte[DedupCipher.MAX_BLOB_LENGTH];
+
+    // Batch of encrypted chunks waiting to be offered
+    private final List<byte[]> batchIds = new ArrayList<>();
+    private final List<byte[]> batchBlobs = new ArrayList<>();
+    private final Set<String> batchHex = new HashSet<>();
+
+    private long chunks;
+    private long chunksSent;
+    private long bytes;
+    private long bytesSent;
+
+    ChunkUploader(ClientConnection connection, DedupCipher cipher) throws IOException {
+        this.connection = connection;
+        this.cipher = cipher;
+        this.entries = File.createTempFile("manifest", ".tmp");
+        this.entriesOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(entries)));
+    }
+
+    // Encrypts a chunk and appends it, sending it later if the server lacks it
+    void add(byte[] plain, int offset, int length) throws Exception {
+        int blobLength = cipher.encrypt(plain, offset, length, blob);
+        byte[] id = DedupCipher.chunkId(blob, blobLength);
+        appendEntry(id, blobLength, cipher.maskWeak(id, RollingChecksum.of(plain, offset, length)));
+
+        // A chunk repeated within the batch only needs offering once
+        if (batchHex.add(DedupCipher.hex(id))) {
+            batchIds.add(id);
+            batchBlobs.add(Arrays.copyOf(blob, blobLength));
+            if (batchIds.size() == BATCH_CHUNKS) {
+                sendBatch();
+            }
+        }
+    }
+
+    // Appends a chunk the server already stores, as listed in a manifest entry
+    void addExisting(byte[] entry) throws IOException {
+        ByteBuffer fields = ByteBuffer.wrap(entry);
+        appendEntry(Arrays.copyOf(entry, DedupCipher.ID_LENGTH), fields.getInt(DedupCipher.ID_LENGTH),
+                fields.getInt(DedupCipher.ID_LENGTH + 4));
+    }
+
+    private void appendEntry(byte[] id, int blobLength, int maskedWeak) throws IOException {
+        entriesOut.write(id);
+        entriesOut.writeInt(blobLength);
+        entriesOut.writeInt(maskedWeak);
+        chunks++;
+        bytes += blobLength;
+    }
+
+    // Offers the batched ids and sends the chunks the server does not have
+    private void sendBatch() throws Exception {
+        if (batchIds.isEmpty()) {
+            return;
+        }
+
+        StringBuilder query = new StringBuilder("CHUNK_QUERY");
+        for (byte[] id : batchIds) {
+            query.append(' ').append(DedupCipher.hex(id));
+        }
+        String response = connection.request(query.toString());
+        if (!response.startsWith("MISSING")) {
+            throw new IOException(response);
+        }
+
+        List<Integer> missing = new ArrayList<>();
+        for (String index : response.substring(7).trim().split(" ")) {
+            if (!index.isEmpty()) {
+                missing.add(Integer.parseInt(index));
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            long length = 0;
+            for (int index : missing) {
+                length += DedupCipher.ID_LENGTH + 4 + batchBlobs.get(index).length;
+            }
+            response = connection.request("CHUNK_PUT", length, out -> {
+                DataOutputStream dataOut = new DataOutputStream(out);
+                for (int index : missing) {
+                    byte[] blob = batchBlobs.get(index);
+                    dataOut.write(batchIds.get(index));
+                    dataOut.writeInt(blob.length);
+                    dataOut.write(blob);
+                    chunksSent++;
+                    bytesSent += blob.length;
+                }
+                dataOut.flush();
+            });
+            if (!response.startsWith("SUCCESS")) {
+                throw new IOException(response);
+            }
+        }
+
+        batchIds.clear();
+        batchBlobs.clear();
+        batchHex.clear();
+    }
+
+    // Sends the remaining chunks and then the manifest; returns the server's response
+    String commit(String filename) throws Exception {
+        sendBatch();
+        entriesOut.close();
+
+        byte[] header = ByteBuffer.allocate(DedupCipher.MANIFEST_HEADER_LENGTH)
+                .put(DedupCipher.MANIFEST_MAGIC).putLong(chunks).array();
+        long length = header.length + entries.length() + DedupCipher.MAC_LENGTH;
+
+        return connection.request("MANIFEST_PUT " + filename, length, out -> {
+            Mac mac = cipher.newManifestMac();
+            out.write(header);
+            mac.update(header);
+
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            try (InputStream in = new FileInputStream(entries)) {
+                while ((bytesRead = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, bytesRead);
+                    mac.update(buffer, 0, bytesRead);
+                }
+            }
+            out.write(mac.doFinal());
+        });
+    }
+
+    String summary() {
+        return String.format("Sent %d of %d chunks (%.1f of %.1f MB)", chunksSent, chunks, bytesSent / 1e6, bytes / 1e6);
+    }
+
+    @Override
+    public void close() throws IOException {
+        entriesOut.close();
+        entries.delete();
+    }
+}
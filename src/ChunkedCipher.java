@@ -0,0 +1,314 @@
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Streaming file encryption in fixed-size AES-GCM chunks.
+ *
+ * Layout: a 16 byte header (magic, chunk size, random file id) followed by
+ * records of IV + ciphertext + tag. Every record except the last holds exactly
+ * one full chunk; the last record is always shorter (possibly empty), so a
+ * truncated stream fails to authenticate. The header, chunk index and last
+ * flag are bound into each record's AAD, which stops records being reordered
+ * or spliced between files.
+ *
+ * Records are independent of each other, so encrypt and decrypt spread large
+ * files over the cores with ParallelCipher.
+ *
+ * A file compressed before encryption has the magic "SFTZ" instead: its
+ * plaintext is the file as a zlib (Deflate) stream, which decrypt inflates. The
+ * magic is part of the authenticated header, so it cannot be changed.
+ */
+public class ChunkedCipher {
+    static final byte[] MAGIC = {'S', 'F', 'T', 'C'};
+    static final byte[] DEFLATE_MAGIC = {'S', 'F', 'T', 'Z'};
+    static final int HEADER_LENGTH = 16;
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    static final int IV_LENGTH = 12;
+    static final int TAG_LENGTH = 16;
+    static final int CHUNK_OVERHEAD = IV_LENGTH + TAG_LENGTH;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final SecureRandom random = new SecureRandom();
+
+    private ChunkedCipher() {
+    }
+
+    // Number of records needed for a plaintext; the last one is always partial
+    static long chunkCount(long plainLength, int chunkSize) {
+        return plainLength / chunkSize + 1;
+    }
+
+    static long encryptedLength(long plainLength) {
+        return encryptedLength(plainLength, DEFAULT_CHUNK_SIZE);
+    }
+
+    static long encryptedLength(long plainLength, int chunkSize) {
+        return HEADER_LENGTH + plainLength + chunkCount(plainLength, chunkSize) * CHUNK_OVERHEAD;
+    }
+
+    static long plainLength(long encryptedLength, int chunkSize) {
+        long records = (encryptedLength - HEADER_LENGTH + chunkSize + CHUNK_OVERHEAD - 1) / (chunkSize + CHUNK_OVERHEAD);
+        return encryptedLength - HEADER_LENGTH - records * CHUNK_OVERHEAD;
+    }
+
+    // Where record index starts in the encrypted file
+    static long recordOffset(long index, int chunkSize) {
+        return HEADER_LENGTH + index * (chunkSize + CHUNK_OVERHEAD);
+    }
+
+    // Whether data starts a file whose plaintext offsets are the file's own
+    static boolean hasMagic(byte[] data) {
+        return startsWith(data, MAGIC);
+    }
+
+    static boolean hasDeflateMagic(byte[] data) {
+        return startsWith(data, DEFLATE_MAGIC);
+    }
+
+    private static boolean startsWith(byte[] data, byte[] magic) {
+        if (data.length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (data[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Name of the compression applied before encryption, from the start of a stored file
+    static String codec(byte[] data) {
+        return hasDeflateMagic(data) ? "deflate" : "none";
+    }
+
+    static byte[] newHeader(int chunkSize) {
+        return newHeader(chunkSize, MAGIC);
+    }
+
+    static byte[] newHeader(int chunkSize, byte[] magic) {
+        byte[] fileId = new byte[8];
+        random.nextBytes(fileId);
+        return ByteBuffer.allocate(HEADER_LENGTH).put(magic).putInt(chunkSize).put(fileId).array();
+    }
+
+    static int chunkSize(byte[] header) throws IOException {
+        if (header.length != HEADER_LENGTH || !(hasMagic(header) || hasDeflateMagic(header))) {
+            throw new IOException("Not a chunked encrypted file");
+        }
+        int chunkSize = ByteBuffer.wrap(header).getInt(MAGIC.length);
+        if (chunkSize <= 0 || chunkSize > 64 * 1024 * 1024) {
+            throw new IOException("Invalid chunk size: " + chunkSize);
+        }
+        return chunkSize;
+    }
+
+    /**
+     * Encrypts exactly {@code plainLength} bytes from {@code in} to {@code out}
+     * using one chunk-sized buffer, regardless of the file size.
+     */
+    static void encrypt(SecretKey key, InputStream in, long plainLength, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        encrypt(key, in, plainLength, out, MAGIC);
+    }
+
+    // As above, for plaintext that is already compressed with the codec DEFLATE_MAGIC stands for
+    static void encrypt(SecretKey key, InputStream in, long plainLength, OutputStream out, byte[] magic)
+            throws IOException, GeneralSecurityException {
+        encrypt(key, in, plainLength, out, magic, ParallelCipher.THREADS > 1);
+    }
+
+    // parallel spreads files of a few chunks or more over the cores, see ParallelCipher
+    static void encrypt(SecretKey key, InputStream in, long plainLength, OutputStream out, byte[] magic,
+                        boolean parallel) throws IOException, GeneralSecurityException {
+        int chunkSize = DEFAULT_CHUNK_SIZE;
+        byte[] header = newHeader(chunkSize, magic);
+        out.write(header);
+        if (parallel && chunkCount(plainLength, chunkSize) >= ParallelCipher.MIN_CHUNKS) {
+            ParallelCipher.encrypt(key, header, in, plainLength, out);
+            return;
+        }
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        DataInputStream dataIn = new DataInputStream(in);
+        byte[] plain = new byte[chunkSize];
+        byte[] record = new byte[chunkSize + CHUNK_OVERHEAD];
+        long chunks = chunkCount(plainLength, chunkSize);
+
+        for (long index = 0; index < chunks; index++) {
+            boolean last = index == chunks - 1;
+            int length = last ? (int) (plainLength % chunkSize) : chunkSize;
+            dataIn.readFully(plain, 0, length);
+            int recordLength = encryptChunk(cipher, key, header, index, last, plain, length, record);
+            out.write(record, 0, recordLength);
+        }
+    }
+
+    /**
+     * Decrypts a stream written by {@link #encrypt}, inflating it if it was
+     * compressed. {@code in} must end where the encrypted data ends.
+     */
+    static void decrypt(SecretKey key, InputStream in, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        decrypt(key, in, out, ParallelCipher.THREADS > 1);
+    }
+
+    static void decrypt(SecretKey key, InputStream in, OutputStream out, boolean parallel)
+            throws IOException, GeneralSecurityException {
+        byte[] header = new byte[HEADER_LENGTH];
+        if (readFully(in, header, 0, HEADER_LENGTH) != HEADER_LENGTH) {
+            throw new IOException("Truncated encrypted file header");
+        }
+        int chunkSize = chunkSize(header);
+        if (hasDeflateMagic(header)) {
+            Inflater inflater = new Inflater();
+            try {
+                InflaterOutputStream inflated = new InflaterOutputStream(out, inflater, chunkSize);
+                decryptRecords(key, header, chunkSize, in, inflated, parallel);
+                inflated.finish();
+                if (!inflater.finished()) {
+                    throw new IOException("Truncated compressed data");
+                }
+            } finally {
+                inflater.end();
+            }
+        } else {
+            decryptRecords(key, header, chunkSize, in, out, parallel);
+        }
+    }
+
+    private static void decryptRecords(SecretKey key, byte[] header, int chunkSize, InputStream in, OutputStream out,
+                                       boolean parallel) throws IOException, GeneralSecurityException {
+        if (parallel) {
+            ParallelCipher.decrypt(key, header, in, out);
+            return;
+        }
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        byte[] record = new byte[chunkSize + CHUNK_OVERHEAD];
+        byte[] plain = new byte[chunkSize];
+
+        for (long index = 0; ; index++) {
+            int recordLength = readFully(in, record, 0, record.length);
+            boolean last = recordLength < record.length;
+            if (recordLength < CHUNK_OVERHEAD) {
+                throw new IOException("Truncated encrypted file");
+            }
+            int length = decryptChunk(cipher, key, header, index, last, record, recordLength, plain);
+            out.write(plain, 0, length);
+            if (last) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Encrypts {@code count} consecutive records starting at {@code firstIndex},
+     * reading each chunk's plaintext from its offset in {@code in}. Together
+     * with the header, the ranges of one file concatenate to the same layout
+     * {@link #encrypt} produces.
+     */
+    static void encryptRange(SecretKey key, byte[] header, long plainLength, long firstIndex, long count,
+                             FileChannel in, OutputStream out) throws IOException, GeneralSecurityException {
+        int chunkSize = chunkSize(header);
+        long chunks = chunkCount(plainLength, chunkSize);
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        byte[] plain = new byte[chunkSize];
+        byte[] record = new byte[chunkSize + CHUNK_OVERHEAD];
+
+        for (long index = firstIndex; index < firstIndex + count; index++) {
+            boolean last = index == chunks - 1;
+            int length = last ? (int) (plainLength % chunkSize) : chunkSize;
+
+            ByteBuffer buffer = ByteBuffer.wrap(plain, 0, length);
+            long position = index * chunkSize;
+            while (buffer.hasRemaining()) {
+                int bytesRead = in.read(buffer, position);
+                if (bytesRead == -1) {
+                    throw new IOException("File shrank while encrypting");
+                }
+                position += bytesRead;
+            }
+
+            int recordLength = encryptChunk(cipher, key, header, index, last, plain, length, record);
+            out.write(record, 0, recordLength);
+        }
+    }
+
+    /**
+     * Decrypts {@code count} consecutive records starting at {@code firstIndex}
+     * and writes the plaintext at its own offset in {@code out}, so ranges of
+     * one file can be fetched and decrypted independently.
+     */
+    static void decryptRange(SecretKey key, byte[] header, long totalChunks, long firstIndex, long count,
+                             InputStream in, FileChannel out) throws IOException, GeneralSecurityException {
+        int chunkSize = chunkSize(header);
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        byte[] record = new byte[chunkSize + CHUNK_OVERHEAD];
+        byte[] plain = new byte[chunkSize];
+
+        for (long index = firstIndex; index < firstIndex + count; index++) {
+            boolean last = index == totalChunks - 1;
+            int recordLength = readFully(in, record, 0, record.length);
+            if (recordLength < CHUNK_OVERHEAD || (!last && recordLength < record.length)) {
+                throw new IOException("Truncated encrypted range");
+            }
+            int length = decryptChunk(cipher, key, header, index, last, record, recordLength, plain);
+
+            ByteBuffer buffer = ByteBuffer.wrap(plain, 0, length);
+            long position = index * chunkSize;
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer, position);
+            }
+        }
+    }
+
+    static int encryptChunk(Cipher cipher, SecretKey key, byte[] header, long index, boolean last,
+                            byte[] plain, int length, byte[] record) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+        cipher.updateAAD(associatedData(header, index, last));
+        System.arraycopy(iv, 0, record, 0, IV_LENGTH);
+        return IV_LENGTH + cipher.doFinal(plain, 0, length, record, IV_LENGTH);
+    }
+
+    static int decryptChunk(Cipher cipher, SecretKey key, byte[] header, long index, boolean last,
+                            byte[] record, int recordLength, byte[] plain) throws GeneralSecurityException {
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, record, 0, IV_LENGTH));
+        cipher.updateAAD(associatedData(header, index, last));
+        return cipher.doFinal(record, IV_LENGTH, recordLength - IV_LENGTH, plain, 0);
+    }
+
+    private static byte[] associatedData(byte[] header, long index, boolean last) {
+        return ByteBuffer.allocate(HEADER_LENGTH + 9)
+                .put(header)
+                .putLong(index)
+                .put((byte) (last ? 1 : 0))
+                .array();
+    }
+
+    // Reads until the buffer is full or the stream ends, returning the bytes read
+    static int readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int bytesRead = in.read(buffer, offset + total, length - total);
+            if (bytesRead == -1) {
+                break;
+            }
+            total += bytesRead;
+        }
+        return total;
+    }
+}
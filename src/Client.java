@@ -1,30 +1,47 @@
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 import java.io.*;
 import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 public class Client {
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 8444;
     private static final String CLIENT_STORAGE_DIR = "client_storage";
+    // Connections used by PUPLOAD, PDOWNLOAD and SYNCDIR, set with -Dclient.connections
+    private static final int PARALLEL_CONNECTIONS = Integer.getInteger("client.connections", 4);
+    // Codec for UPLOAD unless the command names one, set with -Dclient.codec
+    // (none or deflate), and the Deflate level, set with -Dclient.deflateLevel
+    private static final String DEFAULT_CODEC = System.getProperty("client.codec", "none");
+    private static final int DEFLATE_LEVEL = Integer.getInteger("client.deflateLevel", 6);
+    // Threads that compress and encrypt for SYNCDIR, set with -Dclient.syncWorkers
+    private static final int SYNC_WORKERS = Integer.getInteger("client.syncWorkers",
+            Runtime.getRuntime().availableProcessors());
     private static SecretKey encryptionKey;
 
-    private SSLSocket socket;
+    private Socket socket;
     private BufferedReader in;
     private PrintWriter out;
     private DataInputStream dataIn;
     private DataOutputStream dataOut;
     private Scanner scanner;
     private String username;
+    private String password;
+
+    // Set when the server accepted the binary frame protocol after login
+    private boolean framed;
+    private int nextRequestId = 1;
 
     public static void main(String[] args) {
         // Create client storage directory if it doesn't exist
@@ -34,6 +51,11 @@ public class Client {
         System.setProperty("javax.net.ssl.trustStore", "client_truststore.jks");
         System.setProperty("javax.net.ssl.trustStorePassword", "password");
 
+        // --batch <manifest> runs a file of commands without prompting
+        if (args.length == 2 && args[0].equals("--batch")) {
+            System.exit(BatchRunner.run(SERVER_HOST, SERVER_PORT, CLIENT_STORAGE_DIR, PARALLEL_CONNECTIONS, args[1]));
+        }
+
         Client client = new Client();
         client.start();
     }
@@ -55,6 +77,7 @@ public class Client {
         try {
             connectToServer();
             authenticate();
+            negotiateProtocol();
             commandLoop();
 
         } catch (IOException e) {
@@ -70,8 +93,7 @@ public class Client {
     }
 
     private void connectToServer() throws IOException {
-        SSLSocketFactory ssf = (SSLSocketFactory) SSLSocketFactory.getDefault();
-        socket = (SSLSocket) ssf.createSocket(SERVER_HOST, SERVER_PORT);
+        socket = ClientConnection.createSocket(SERVER_HOST, SERVER_PORT);
 
         // Set up the input and output streams
         in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
@@ -89,7 +111,7 @@ public class Client {
         System.out.print("Username: ");
         username = scanner.nextLine();
         System.out.print("Password: ");
-        String password = scanner.nextLine();
+        password = scanner.nextLine();
 
         // Derive encryption key from password
         try {
@@ -106,9 +128,24 @@ public class Client {
         if (!response.startsWith("SUCCESS")) {
             throw new IOException("Authentication failed");
         }
+
+        // The extra connections of PUPLOAD, SYNCDIR and the like log in with
+        // a session ticket instead of the password
+        out.println("TICKET");
+        response = in.readLine();
+        if (response != null) {
+            ClientConnection.rememberTicket(SERVER_HOST, SERVER_PORT, username, response);
+        }
     }
 
-    private static SecretKey deriveKeyFromPassword(String password) throws NoSuchAlgorithmException {
+    private void negotiateProtocol() throws IOException {
+        // Servers that only speak the text protocol answer with a failure
+        out.println("PROTOCOL " + Frames.VERSION);
+        String response = in.readLine();
+        framed = ("PROTOCOL " + Frames.VERSION).equals(response);
+    }
+
+    static SecretKey deriveKeyFromPassword(String password) throws NoSuchAlgorithmException {
         // In a real system, you would use a proper key derivation function like PBKDF2
         MessageDigest md = MessageDigest.getInstance("SHA-256");
         byte[] key = md.digest(password.getBytes());
@@ -118,33 +155,211 @@ public class Client {
     private void commandLoop() throws IOException {
         while (true) {
             System.out.println("\nAvailable commands:");
-            System.out.println("1. UPLOAD <filename> - Upload a file to the server");
+            System.out.println("1. UPLOAD [codec=none|deflate] <filename> - Upload a file to the server, optionally compressed");
             System.out.println("2. DOWNLOAD <filename> - Download a file from the server");
-            System.out.println("3. LIST - List all files on the server");
-            System.out.println("4. EXIT - Close the connection and exit");
+            System.out.println("3. PUPLOAD <filename> - Upload a large file over several connections, resuming if interrupted");
+            System.out.println("4. DUPLOAD <filename> - Upload a file, sending only the chunks the server does not already have");
+            System.out.println("5. SYNC <filename> - Upload a changed file, sending only what differs from the stored version");
+            System.out.println("6. PDOWNLOAD <filename> - Download a large file over several connections, resuming if interrupted");
+            System.out.println("7. SYNCDIR [codec=none|deflate] <directory> - Upload the files of a directory that changed since the last SYNCDIR");
+            System.out.println("8. LIST [prefix=<text>] [sort=name|size|mtime] [order=asc|desc] [limit=<n>] [cursor=<token>] [long] - List files on the server");
+            System.out.println("9. STATS - Show server metrics (administrators only)");
+            System.out.println("10. VERIFY [<filename>] - Check stored files against their checksums; VERIFY_STATUS shows what was found");
+            System.out.println("11. EXIT - Close the connection and exit");
+            System.out.println("Separate several commands with ';' to send them all at once");
             System.out.print("\nEnter command: ");
 
-            String command = scanner.nextLine();
+            List<String> commands = new ArrayList<>();
+            for (String command : scanner.nextLine().split(";")) {
+                if (!command.trim().isEmpty()) {
+                    commands.add(command.trim());
+                }
+            }
+
+            if (framed) {
+                if (!runPipelined(commands)) {
+                    break;
+                }
+                continue;
+            }
 
+            boolean exit = false;
+            for (String command : commands) {
+                if (!runCommand(command)) {
+                    exit = true;
+                    break;
+                }
+            }
+            if (exit) {
+                break;
+            }
+        }
+    }
+
+    // Runs one command over the text protocol; returns false after EXIT
+    private boolean runCommand(String command) throws IOException {
+        if (command.equalsIgnoreCase("EXIT")) {
+            out.println("EXIT");
+            String response = in.readLine();
+            System.out.println(response);
+            return false;
+        } else if (command.toUpperCase().startsWith("UPLOAD ")) {
+            handleUpload(command.substring(7));
+        } else if (command.toUpperCase().startsWith("PUPLOAD ")) {
+            handleParallelUpload(command.substring(8));
+        } else if (command.toUpperCase().startsWith("DUPLOAD ")) {
+            handleDedupUpload(command.substring(8));
+        } else if (command.toUpperCase().startsWith("SYNC ")) {
+            handleSync(command.substring(5));
+        } else if (command.toUpperCase().startsWith("SYNCDIR ")) {
+            handleDirectorySync(command.substring(8));
+        } else if (command.toUpperCase().startsWith("DOWNLOAD ")) {
+            handleDownload(command.substring(9));
+        } else if (command.toUpperCase().startsWith("PDOWNLOAD ")) {
+            if (!handleParallelDownload(command.substring(10))) {
+                handleDownload(command.substring(10));
+            }
+        } else if (isList(command)) {
+            out.println(command);
+            printListing(in::readLine);
+        } else if (command.equalsIgnoreCase("STATS")) {
+            out.println("STATS");
+            printReport("STATS", in::readLine);
+        } else if (isVerify(command)) {
+            out.println(command);
+            System.out.println(in.readLine());
+        } else if (command.equalsIgnoreCase("VERIFY_STATUS")) {
+            out.println("VERIFY_STATUS");
+            printReport("VERIFY", in::readLine);
+        } else {
+            System.out.println("Unknown command. Please try again.");
+        }
+        return true;
+    }
+
+    // Sends every request without waiting for answers, then reads the answers
+    // in order; returns false after EXIT
+    private boolean runPipelined(List<String> commands) throws IOException {
+        List<PipelinedRequest> requests = new ArrayList<>();
+        boolean exit = false;
+
+        for (String command : commands) {
             if (command.equalsIgnoreCase("EXIT")) {
-                out.println("EXIT");
-                String response = in.readLine();
-                System.out.println(response);
+                requests.add(new PipelinedRequest("EXIT"));
+                exit = true;
                 break;
             } else if (command.toUpperCase().startsWith("UPLOAD ")) {
-                handleUpload(command.substring(7));
+                String filename = uploadFilename(command.substring(7));
+                int level = uploadLevel(command.substring(7));
+                File file = new File(CLIENT_STORAGE_DIR + File.separator + filename);
+                if (level == INVALID_CODEC) {
+                    System.out.println("Unknown codec, use codec=none or codec=deflate");
+                } else if (!file.exists() || !file.isFile()) {
+                    System.out.println("File not found: " + filename);
+                } else {
+                    requests.add(new UploadRequest(filename, file, level));
+                }
+            } else if (command.toUpperCase().startsWith("PUPLOAD ")) {
+                // Runs on its own connections once the requests before it are answered
+                exchange(requests);
+                requests.clear();
+                handleParallelUpload(command.substring(8));
+            } else if (command.toUpperCase().startsWith("DUPLOAD ")) {
+                exchange(requests);
+                requests.clear();
+                handleDedupUpload(command.substring(8));
+            } else if (command.toUpperCase().startsWith("SYNC ")) {
+                exchange(requests);
+                requests.clear();
+                handleSync(command.substring(5));
+            } else if (command.toUpperCase().startsWith("SYNCDIR ")) {
+                exchange(requests);
+                requests.clear();
+                handleDirectorySync(command.substring(8));
             } else if (command.toUpperCase().startsWith("DOWNLOAD ")) {
-                handleDownload(command.substring(9));
-            } else if (command.equalsIgnoreCase("LIST")) {
-                out.println("LIST");
-                handleListResponse();
+                requests.add(new DownloadRequest(command.substring(9)));
+            } else if (command.toUpperCase().startsWith("PDOWNLOAD ")) {
+                // Runs on its own connections once the requests before it are answered
+                exchange(requests);
+                requests.clear();
+                String filename = command.substring(10);
+                if (!handleParallelDownload(filename)) {
+                    requests.add(new DownloadRequest(filename));
+                }
+            } else if (isList(command)) {
+                requests.add(new ListRequest(command));
+            } else if (command.equalsIgnoreCase("STATS")) {
+                requests.add(new ReportRequest("STATS", "STATS"));
+            } else if (isVerify(command)) {
+                requests.add(new PipelinedRequest(command));
+            } else if (command.equalsIgnoreCase("VERIFY_STATUS")) {
+                requests.add(new ReportRequest("VERIFY_STATUS", "VERIFY"));
             } else {
                 System.out.println("Unknown command. Please try again.");
             }
         }
+
+        exchange(requests);
+        return !exit;
+    }
+
+    private void exchange(List<PipelinedRequest> requests) throws IOException {
+        if (requests.isEmpty()) {
+            return;
+        }
+
+        // Requests go out on their own thread so the server can start
+        // answering the first one while later uploads are still being sent
+        Thread writer = new Thread(() -> {
+            try {
+                for (PipelinedRequest request : requests) {
+                    request.send();
+                }
+                dataOut.flush();
+            } catch (Exception e) {
+                System.err.println("Error sending request: " + e.getMessage());
+                try {
+                    // The stream is out of sync now, so give up on the connection
+                    socket.close();
+                } catch (IOException closeError) {
+                    closeError.printStackTrace();
+                }
+            }
+        }, "request-writer");
+        writer.start();
+
+        try {
+            for (PipelinedRequest request : requests) {
+                request.receive();
+            }
+        } finally {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void handleParallelUpload(String filename) {
+        File file = new File(CLIENT_STORAGE_DIR + File.separator + filename);
+
+        if (!file.exists() || !file.isFile()) {
+            System.out.println("File not found: " + filename);
+            return;
+        }
+
+        try {
+            ParallelUpload upload = new ParallelUpload(SERVER_HOST, SERVER_PORT, username, password,
+                    encryptionKey, PARALLEL_CONNECTIONS);
+            upload.upload(filename, file);
+        } catch (Exception e) {
+            System.err.println("Error uploading file: " + e.getMessage());
+            e.printStackTrace();
+        }
     }
 
-    private void handleUpload(String filename) throws IOException {
+    private void handleDedupUpload(String filename) {
         File file = new File(CLIENT_STORAGE_DIR + File.separator + filename);
 
         if (!file.exists() || !file.isFile()) {
@@ -153,15 +368,118 @@ public class Client {
         }
 
         try {
-            // Encrypt the file before sending
-            byte[] fileBytes = Files.readAllBytes(file.toPath());
-            byte[] encryptedBytes = encrypt(fileBytes);
+            new DedupUpload(SERVER_HOST, SERVER_PORT, username, password, encryptionKey).upload(filename, file);
+        } catch (Exception e) {
+            System.err.println("Error uploading file: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void handleSync(String filename) {
+        File file = new File(CLIENT_STORAGE_DIR + File.separator + filename);
+
+        if (!file.exists() || !file.isFile()) {
+            System.out.println("File not found: " + filename);
+            return;
+        }
+
+        try {
+            new DeltaSync(SERVER_HOST, SERVER_PORT, username, password, encryptionKey).sync(filename, file);
+        } catch (Exception e) {
+            System.err.println("Error syncing file: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    // SYNCDIR takes "[codec=none|deflate] <directory>", like UPLOAD
+    private void handleDirectorySync(String arguments) {
+        String dirname = uploadFilename(arguments);
+        int level = uploadLevel(arguments);
+        File dir = new File(CLIENT_STORAGE_DIR + File.separator + dirname);
+
+        if (level == INVALID_CODEC) {
+            System.out.println("Unknown codec, use codec=none or codec=deflate");
+            return;
+        }
+        if (!dir.isDirectory()) {
+            System.out.println("Directory not found: " + dirname);
+            return;
+        }
+
+        try {
+            new DirectorySync(SERVER_HOST, SERVER_PORT, username, password, encryptionKey, PARALLEL_CONNECTIONS,
+                    SYNC_WORKERS, level).sync(dir);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println("Error syncing directory: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    // Returns false if the file has to be fetched with a plain DOWNLOAD instead
+    private boolean handleParallelDownload(String filename) {
+        File outputFile = new File(CLIENT_STORAGE_DIR + File.separator + filename);
+        try {
+            ParallelDownload download = new ParallelDownload(SERVER_HOST, SERVER_PORT, username, password,
+                    encryptionKey, PARALLEL_CONNECTIONS);
+            if (download.download(filename, outputFile)) {
+                return true;
+            }
+            System.out.println("File cannot be fetched in ranges, downloading in one stream");
+        } catch (Exception e) {
+            System.err.println("Error downloading file: " + e.getMessage());
+            e.printStackTrace();
+            return true;
+        }
+        return false;
+    }
+
+    private static final int INVALID_CODEC = -2;
+
+    // UPLOAD takes "[codec=none|deflate] <filename>"
+    private static String uploadFilename(String arguments) {
+        return arguments.startsWith("codec=") && arguments.indexOf(' ') > 0
+                ? arguments.substring(arguments.indexOf(' ') + 1) : arguments;
+    }
+
+    // The Deflate level for an upload, -1 for no compression or INVALID_CODEC
+    private static int uploadLevel(String arguments) {
+        String codec = DEFAULT_CODEC;
+        if (arguments.startsWith("codec=") && arguments.indexOf(' ') > 0) {
+            codec = arguments.substring(6, arguments.indexOf(' '));
+        }
+        if (codec.equalsIgnoreCase("deflate")) {
+            return DEFLATE_LEVEL;
+        }
+        return codec.equalsIgnoreCase("none") ? -1 : INVALID_CODEC;
+    }
+
+    private void handleUpload(String arguments) throws IOException {
+        String filename = uploadFilename(arguments);
+        int level = uploadLevel(arguments);
+        File file = new File(CLIENT_STORAGE_DIR + File.separator + filename);
+
+        if (level == INVALID_CODEC) {
+            System.out.println("Unknown codec, use codec=none or codec=deflate");
+            return;
+        }
+        if (!file.exists() || !file.isFile()) {
+            System.out.println("File not found: " + filename);
+            return;
+        }
+
+        try (Compression.Prepared upload = Compression.prepare(file, level)) {
+            // Files are encrypted chunk by chunk while streaming, so the whole
+            // file never has to fit in memory
+            long plainLength = upload.length();
+            long encryptedLength = ChunkedCipher.encryptedLength(plainLength);
 
             // Send upload command
             out.println("UPLOAD " + filename);
 
             // Send file size
-            dataOut.writeLong(encryptedBytes.length);
+            dataOut.writeLong(encryptedLength);
 
             // Wait for server to be ready
             String response = in.readLine();
@@ -170,13 +488,17 @@ public class Client {
                 return;
             }
 
-            // Send the encrypted file
-            dataOut.write(encryptedBytes);
+            // Send the encrypted file, checksummed for comparison with what the server stored
+            CheckedOutputStream sent = new CheckedOutputStream(dataOut, new Crc32c());
+            try (InputStream fileIn = new BufferedInputStream(new FileInputStream(upload.source))) {
+                ChunkedCipher.encrypt(encryptionKey, fileIn, plainLength, sent, upload.magic);
+            }
             dataOut.flush();
 
             // Get the server's response
             response = in.readLine();
             System.out.println(response);
+            checkUpload(response, sent.getChecksum().getValue());
 
         } catch (Exception e) {
             System.err.println("Error uploading file: " + e.getMessage());
@@ -193,45 +515,103 @@ public class Client {
             return;
         }
 
-        long fileSize = Long.parseLong(response.substring(5));
+        long fileSize = ClientConnection.parseSize(response);
 
-        File outputFile = new File(CLIENT_STORAGE_DIR + File.separator + filename);
+        // Tell server we're ready to receive
+        out.println("READY");
 
+        BoundedInputStream body = new BoundedInputStream(dataIn, fileSize);
         try {
-            // Tell server we're ready to receive
-            out.println("READY");
-
-            // Read the encrypted file
-            byte[] encryptedBytes = new byte[(int) fileSize];
-            int bytesRead = 0;
-            int offset = 0;
-
-            while (offset < fileSize) {
-                bytesRead = dataIn.read(encryptedBytes, offset, (int) (fileSize - offset));
-                if (bytesRead == -1) break;
-                offset += bytesRead;
-            }
+            saveDownload(filename, body, fileSize, Crc32c.find(response));
+        } finally {
+            // Keep the connection in sync even if decryption failed part way
+            body.drain();
+        }
+    }
 
-            // Decrypt the file
-            byte[] decryptedBytes = decrypt(encryptedBytes);
+    // crc is the CRC32C the server gave for the body, or -1
+    private static void saveDownload(String filename, InputStream body, long fileSize, long crc) {
+        File outputFile = new File(CLIENT_STORAGE_DIR + File.separator + filename);
+        File partFile = new File(outputFile.getPath() + ".part");
 
-            // Save the decrypted file
-            try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-                fos.write(decryptedBytes);
+        try {
+            // Decrypt straight from the socket into a temporary file
+            CheckedInputStream received = new CheckedInputStream(body, new Crc32c());
+            try (OutputStream fos = new BufferedOutputStream(new FileOutputStream(partFile))) {
+                decryptTo(encryptionKey, received, fileSize, fos);
             }
+            checkDownload(received, crc);
+            Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
 
             System.out.println("File downloaded successfully: " + filename);
 
         } catch (Exception e) {
+            partFile.delete();
             System.err.println("Error downloading file: " + e.getMessage());
             e.printStackTrace();
         }
     }
 
-    private void handleListResponse() throws IOException {
-        String response = in.readLine();
+    // Reads what is left of a downloaded body and fails if the whole of it
+    // does not match the CRC32C the server gave, unless that was -1
+    static void checkDownload(CheckedInputStream body, long crc) throws IOException {
+        byte[] rest = new byte[8192];
+        while (body.read(rest) != -1) {
+            // Counted by the checksum
+        }
+        long received = body.getChecksum().getValue();
+        if (crc != -1 && received != crc) {
+            throw new IOException("Checksum mismatch: received crc32c=" + Crc32c.format(received) + ", server has "
+                    + Crc32c.format(crc));
+        }
+    }
+
+    // Warns if the server's answer to an upload names a different CRC32C than
+    // that of the bytes sent
+    static void checkUpload(String response, long crc) {
+        long stored = Crc32c.find(response);
+        if (stored != -1 && stored != crc) {
+            System.err.println("Checksum mismatch: sent crc32c=" + Crc32c.format(crc) + ", server stored "
+                    + Crc32c.format(stored) + ". Upload the file again.");
+        }
+    }
+
+    // Decrypts a downloaded file of any of the stored formats
+    static void decryptTo(SecretKey key, InputStream body, long fileSize, OutputStream fileOut) throws Exception {
+        byte[] magic = new byte[ChunkedCipher.MAGIC.length];
+        int magicLength = ChunkedCipher.readFully(body, magic, 0, magic.length);
+        InputStream encrypted = new SequenceInputStream(new ByteArrayInputStream(magic, 0, magicLength), body);
 
-        if (response.startsWith("No files")) {
+        if (magicLength == magic.length && (ChunkedCipher.hasMagic(magic) || ChunkedCipher.hasDeflateMagic(magic))) {
+            ChunkedCipher.decrypt(key, encrypted, fileOut);
+            return;
+        }
+        if (magicLength == magic.length && DedupCipher.hasManifestMagic(magic)) {
+            new DedupCipher(key).decrypt(encrypted, fileOut);
+            return;
+        }
+
+        // Files uploaded before chunked encryption are a single AES block
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IOException("Legacy encrypted file too large: " + fileSize);
+        }
+        byte[] encryptedBytes = new byte[(int) fileSize];
+        ChunkedCipher.readFully(encrypted, encryptedBytes, 0, encryptedBytes.length);
+        fileOut.write(decryptLegacy(key, encryptedBytes));
+    }
+
+    private interface LineSource {
+        String next() throws IOException;
+    }
+
+    private static boolean isList(String command) {
+        return command.equalsIgnoreCase("LIST") || command.toUpperCase().startsWith("LIST ");
+    }
+
+    private static void printListing(LineSource lines) throws IOException {
+        String response = lines.next();
+
+        if (response.startsWith("No files") || response.startsWith("FAILED")) {
             System.out.println(response);
             return;
         }
@@ -240,26 +620,179 @@ public class Client {
         System.out.println("Files available on server:");
 
         for (int i = 0; i < numFiles; i++) {
-            response = in.readLine();
+            response = lines.next();
             System.out.println("- " + response);
         }
 
-        // Read the "END" marker
-        in.readLine();
+        // Read the "END" marker, which carries a cursor when there are more files
+        String end = lines.next();
+        if (end.startsWith("END ")) {
+            System.out.println("More files: repeat the command with cursor=" + end.substring(4));
+        }
     }
 
-    private static byte[] encrypt(byte[] data) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.ENCRYPT_MODE, encryptionKey);
-        return cipher.doFinal(data);
+    private static boolean isVerify(String command) {
+        return command.equalsIgnoreCase("VERIFY") || command.toUpperCase().startsWith("VERIFY ");
+    }
+
+    // Prints a reply of "<header> <n>", n lines and "END", as STATS and VERIFY_STATUS answer
+    private static void printReport(String header, LineSource lines) throws IOException {
+        String response = lines.next();
+        if (!response.startsWith(header + " ")) {
+            System.out.println(response);
+            return;
+        }
+
+        int count = Integer.parseInt(response.substring(header.length() + 1));
+        for (int i = 0; i < count; i++) {
+            System.out.println(lines.next());
+        }
+        // Read the "END" marker
+        lines.next();
     }
 
-    private static byte[] decrypt(byte[] encryptedData) throws Exception {
+    private static byte[] decryptLegacy(SecretKey key, byte[] encryptedData) throws Exception {
         Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.DECRYPT_MODE, encryptionKey);
+        cipher.init(Cipher.DECRYPT_MODE, key);
         return cipher.doFinal(encryptedData);
     }
 
+    // A request in the frame protocol: send() runs on the writer thread,
+    // receive() reads this request's frames up to and including END
+    private class PipelinedRequest {
+        final int id = nextRequestId++;
+        final String command;
+
+        PipelinedRequest(String command) {
+            this.command = command;
+        }
+
+        void send() throws Exception {
+            Frames.writeRequest(dataOut, id, 0, command);
+        }
+
+        void receive() throws IOException {
+            Frames.Frame frame;
+            while ((frame = nextFrame()).type != Frames.END) {
+                onFrame(frame);
+            }
+        }
+
+        void onFrame(Frames.Frame frame) throws IOException {
+            System.out.println(frame.text());
+        }
+
+        Frames.Frame nextFrame() throws IOException {
+            Frames.Frame frame = Frames.read(dataIn);
+            if (frame == null) {
+                throw new EOFException("Connection closed by server");
+            }
+            if (frame.requestId != id || frame.type == Frames.REQUEST) {
+                throw new IOException("Unexpected frame for request " + id);
+            }
+            return frame;
+        }
+
+        String nextLine() throws IOException {
+            Frames.Frame frame = nextFrame();
+            if (frame.type != Frames.RESPONSE) {
+                throw new IOException("Unexpected frame for request " + id);
+            }
+            return frame.text();
+        }
+    }
+
+    private class UploadRequest extends PipelinedRequest {
+        private final File file;
+        private final int level;
+        // CRC32C of the body sent, set by send() before the answer is read
+        private volatile long crc;
+
+        UploadRequest(String filename, File file, int level) {
+            super("UPLOAD " + filename);
+            this.file = file;
+            this.level = level;
+        }
+
+        @Override
+        void send() throws Exception {
+            try (Compression.Prepared upload = Compression.prepare(file, level)) {
+                long plainLength = upload.length();
+                Frames.writeRequest(dataOut, id, ChunkedCipher.encryptedLength(plainLength), command);
+                CheckedOutputStream body = new CheckedOutputStream(new Frames.BodyOutputStream(dataOut, id),
+                        new Crc32c());
+                try (InputStream fileIn = new BufferedInputStream(new FileInputStream(upload.source))) {
+                    ChunkedCipher.encrypt(encryptionKey, fileIn, plainLength, body, upload.magic);
+                    // Known before the last of the body goes out, and so before the answer comes
+                    crc = body.getChecksum().getValue();
+                } finally {
+                    body.close();
+                }
+            }
+        }
+
+        @Override
+        void onFrame(Frames.Frame frame) throws IOException {
+            super.onFrame(frame);
+            if (frame.type == Frames.RESPONSE) {
+                checkUpload(frame.text(), crc);
+            }
+        }
+    }
+
+    private class DownloadRequest extends PipelinedRequest {
+        private final String filename;
+
+        DownloadRequest(String filename) {
+            super("DOWNLOAD " + filename);
+            this.filename = filename;
+        }
+
+        @Override
+        void onFrame(Frames.Frame frame) throws IOException {
+            String response = frame.text();
+            if (frame.type != Frames.RESPONSE || !response.startsWith("SIZE")) {
+                super.onFrame(frame);
+                return;
+            }
+
+            long fileSize = ClientConnection.parseSize(response);
+            Frames.BodyInputStream body = new Frames.BodyInputStream(dataIn, id, fileSize);
+            try {
+                saveDownload(filename, body, fileSize, Crc32c.find(response));
+            } finally {
+                body.drain();
+            }
+        }
+    }
+
+    private class ListRequest extends PipelinedRequest {
+        ListRequest(String command) {
+            super(command);
+        }
+
+        @Override
+        void receive() throws IOException {
+            printListing(this::nextLine);
+            super.receive();
+        }
+    }
+
+    private class ReportRequest extends PipelinedRequest {
+        private final String header;
+
+        ReportRequest(String command, String header) {
+            super(command);
+            this.header = header;
+        }
+
+        @Override
+        void receive() throws IOException {
+            printReport(header, this::nextLine);
+            super.receive();
+        }
+    }
+
     private void close() throws IOException {
         if (scanner != null) {
             scanner.close();
@@ -0,0 +1,297 @@
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An authenticated connection speaking the text protocol, used when the client
+ * spreads one transfer over several connections and by the pooled
+ * FileTransferClient.
+ */
+class ClientConnection implements Closeable {
+    // Stop using a ticket this long before it expires
+    private static final long TICKET_MARGIN_MILLIS = 60_000;
+
+    private static final class Ticket {
+        // Null if the server does not issue tickets
+        final String value;
+        final long expires;
+
+        Ticket(String value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+
+        boolean usable() {
+            return value != null && System.currentTimeMillis() < expires - TICKET_MARGIN_MILLIS;
+        }
+    }
+
+    // Session tickets by user@host:port, shared by every connection of this process
+    private static final ConcurrentMap<String, Ticket> tickets = new ConcurrentHashMap<>();
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final PrintWriter out;
+    private final DataInputStream dataIn;
+    private final DataOutputStream dataOut;
+    // CRC32C the server gave for the body opened last, or -1
+    private long bodyChecksum = -1;
+
+    // Writes a request body once the server has answered READY
+    interface BodyWriter {
+        void write(OutputStream out) throws Exception;
+    }
+
+    private ClientConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        this.out = new PrintWriter(socket.getOutputStream(), true);
+        this.dataIn = new DataInputStream(socket.getInputStream());
+        this.dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+    }
+
+    /**
+     * Opens a connection and logs in, with a session ticket if there is one
+     * for this user and server, or else with the password. After a password
+     * login a ticket is requested, so later connections skip the server's
+     * password check.
+     */
+    static ClientConnection open(String host, int port, String username, String password) throws IOException {
+        String ticketKey = username + "@" + host + ":" + port;
+        Ticket ticket = tickets.get(ticketKey);
+        if (ticket != null && ticket.usable()) {
+            ClientConnection connection = login(host, port, "TICKET " + ticket.value);
+            if (connection != null) {
+                return connection;
+            }
+            // Expired or revoked on the server
+            tickets.remove(ticketKey, ticket);
+        }
+
+        ClientConnection connection = login(host, port, username + ":" + password);
+        if (connection == null) {
+            throw new IOException("Authentication failed");
+        }
+        if (ticket == null || ticket.value != null) {
+            try {
+                rememberTicket(host, port, username, connection.request("TICKET"));
+            } catch (IOException e) {
+                connection.abort();
+                throw e;
+            }
+        }
+        return connection;
+    }
+
+    // Returns null if the server refused the credentials
+    private static ClientConnection login(String host, int port, String credentials) throws IOException {
+        ClientConnection connection = new ClientConnection(createSocket(host, port));
+        try {
+            connection.in.readLine();
+            connection.out.println(credentials);
+            String response = connection.in.readLine();
+            if (response == null || !response.startsWith("SUCCESS")) {
+                connection.socket.close();
+                return null;
+            }
+        } catch (IOException e) {
+            connection.socket.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * Keeps the answer to a TICKET command for later logins of this user.
+     * Servers without tickets answer with a failure, which is remembered too
+     * so that they are not asked again.
+     */
+    static void rememberTicket(String host, int port, String username, String response) {
+        String[] parts = response.split(" ");
+        Ticket ticket = parts.length == 3 && parts[0].equals("TICKET")
+                ? new Ticket(parts[1], Long.parseLong(parts[2])) : new Ticket(null, Long.MAX_VALUE);
+        tickets.put(username + "@" + host + ":" + port, ticket);
+    }
+
+    // -Dclient.plainPort connects to the server's plain (non-TLS) listener
+    // instead, for use on the same host or a trusted internal network
+    static Socket createSocket(String host, int tlsPort) throws IOException {
+        Integer plainPort = Integer.getInteger("client.plainPort");
+        if (plainPort != null) {
+            return new Socket(host, plainPort);
+        }
+        return SSLSocketFactory.getDefault().createSocket(host, tlsPort);
+    }
+
+    // Sends a command without a body and returns the one line response
+    String request(String command) throws IOException {
+        out.println(command);
+        return readResponse();
+    }
+
+    // Sends a command followed by a body of the given length and returns the response
+    String request(String command, long length, BodyWriter body) throws Exception {
+        // Command and length go out in one write; as two small writes the
+        // length would wait for the server's delayed ACK of the command
+        dataOut.write((command + System.lineSeparator()).getBytes());
+        dataOut.writeLong(length);
+        dataOut.flush();
+
+        String response = readResponse();
+        if (!"READY".equals(response)) {
+            return response;
+        }
+        body.write(dataOut);
+        dataOut.flush();
+        return readResponse();
+    }
+
+    /**
+     * Sends one part of an upload session with its CRC32C; returns the
+     * server's response, which starts with SUCCESS if the part was stored.
+     */
+    String uploadPart(String session, int part, long offset, long length, long crc, BodyWriter body)
+            throws Exception {
+        return request("UPLOAD_PART " + session + " " + part + " " + offset + " " + Crc32c.format(crc), length,
+                body);
+    }
+
+    // Returns the stored size of a file, or -1 if it does not exist
+    long stat(String filename) throws IOException {
+        out.println("STAT " + filename);
+        String response = readResponse();
+        return response.startsWith("SIZE ") ? parseSize(response) : -1;
+    }
+
+    // The size in a "SIZE <n> [crc32c=<hex>]" reply
+    static long parseSize(String response) {
+        return Long.parseLong(response.substring(5).split(" ", 2)[0]);
+    }
+
+    // The CRC32C the server gave for the body opened last, or -1 if it did not give one
+    long bodyChecksum() {
+        return bodyChecksum;
+    }
+
+    /**
+     * Requests a byte range of a stored file. The returned stream ends with the
+     * range and must be drained before the connection is used again.
+     */
+    BoundedInputStream openRange(String filename, long offset, long length) throws IOException {
+        out.println("DOWNLOAD_RANGE " + offset + " " + length + " " + filename);
+        String response = readResponse();
+        if (!response.startsWith("SIZE ")) {
+            throw new IOException(response);
+        }
+        long size = parseSize(response);
+        bodyChecksum = Crc32c.find(response);
+        out.println("READY");
+        return new BoundedInputStream(dataIn, size);
+    }
+
+    /**
+     * Requests a whole stored file. The returned stream ends with the file and
+     * must be drained before the connection is used again.
+     */
+    BoundedInputStream openDownload(String filename) throws IOException {
+        out.println("DOWNLOAD " + filename);
+        String response = readResponse();
+        if (!response.startsWith("SIZE ")) {
+            throw new IOException(response);
+        }
+        long size = parseSize(response);
+        bodyChecksum = Crc32c.find(response);
+        out.println("READY");
+        return new BoundedInputStream(dataIn, size);
+    }
+
+    // Sends LIST with options and returns every response line up to and including END
+    List<String> list(String options) throws IOException {
+        out.println(options.isEmpty() ? "LIST" : "LIST " + options);
+        List<String> lines = new ArrayList<>();
+        String line = readResponse();
+        lines.add(line);
+        if (line.startsWith("Files: ")) {
+            int count = Integer.parseInt(line.substring(7));
+            for (int i = 0; i <= count; i++) {
+                lines.add(readResponse());
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Switches the connection to the binary frame protocol. Returns false if
+     * the server only speaks the text protocol; otherwise only frames may be
+     * exchanged afterwards, through frameInput() and frameOutput().
+     */
+    boolean switchToFrames() throws IOException {
+        return ("PROTOCOL " + Frames.VERSION).equals(request("PROTOCOL " + Frames.VERSION));
+    }
+
+    DataInputStream frameInput() {
+        return dataIn;
+    }
+
+    DataOutputStream frameOutput() {
+        return dataOut;
+    }
+
+    boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    // Closes the socket at once, for a connection that may be out of step with the server
+    void abort() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closed anyway
+        }
+    }
+
+    /**
+     * Requests the block signatures (the manifest) of a file stored by SYNC or
+     * DUPLOAD. Returns null if the file does not exist or has no signatures.
+     */
+    BoundedInputStream openSignatures(String filename) throws IOException {
+        out.println("SIGNATURES " + filename);
+        String response = readResponse();
+        if (!response.startsWith("SIZE ")) {
+            return null;
+        }
+        long size = parseSize(response);
+        out.println("READY");
+        return new BoundedInputStream(dataIn, size);
+    }
+
+    private String readResponse() throws IOException {
+        String response = in.readLine();
+        if (response == null) {
+            throw new IOException("Connection closed by server");
+        }
+        return response;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.println("EXIT");
+            in.readLine();
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Optional Deflate stage in front of upload encryption.
+ *
+ * Ciphertext does not compress, so compression has to happen on the client
+ * before encrypting. The first SAMPLE_SIZE bytes of the file are compressed
+ * first; if that saves less than MIN_SAVING the file is sent as is, so
+ * archives, media and other already compressed data cost only the sample.
+ * Otherwise the whole file is compressed into a temporary file, because the
+ * protocol announces the body length before the body, and the result is
+ * encrypted with ChunkedCipher.DEFLATE_MAGIC in its header.
+ */
+class Compression {
+    static final int SAMPLE_SIZE = 256 * 1024;
+    static final double MIN_SAVING = 0.10;
+
+    /** The file to encrypt and send, and the magic its header gets. */
+    static final class Prepared implements Closeable {
+        final File source;
+        final byte[] magic;
+        private final boolean temporary;
+
+        private Prepared(File source, byte[] magic, boolean temporary) {
+            this.source = source;
+            this.magic = magic;
+            this.temporary = temporary;
+        }
+
+        long length() {
+            return source.length();
+        }
+
+        @Override
+        public void close() {
+            if (temporary) {
+                source.delete();
+            }
+        }
+    }
+
+    private Compression() {
+    }
+
+    // Compresses file at level (0-9) if the sample says it is worth it; a negative level sends it as is
+    static Prepared prepare(File file, int level) throws IOException {
+        if (level < 0) {
+            return new Prepared(file, ChunkedCipher.MAGIC, false);
+        }
+
+        double sample = sampleRatio(file, level);
+        if (sample > 1 - MIN_SAVING) {
+            System.out.printf("%s does not compress (sample %.1f%%), sending it uncompressed%n",
+                    file.getName(), sample * 100);
+            return new Prepared(file, ChunkedCipher.MAGIC, false);
+        }
+
+        File compressed = File.createTempFile("upload", ".deflate");
+        long start = System.nanoTime();
+        try (InputStream in = new FileInputStream(file);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(compressed), 64 * 1024)) {
+            deflate(in, Long.MAX_VALUE, level, out);
+        } catch (IOException e) {
+            compressed.delete();
+            throw e;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("Compressed %s: %.1f MB to %.1f MB (%.1f%%) in %.2f s, %.1f MB/s%n", file.getName(),
+                file.length() / 1e6, compressed.length() / 1e6,
+                file.length() == 0 ? 100.0 : 100.0 * compressed.length() / file.length(),
+                seconds, file.length() / 1e6 / Math.max(seconds, 1e-3));
+        return new Prepared(compressed, ChunkedCipher.DEFLATE_MAGIC, true);
+    }
+
+    // Compresses a file that is already in memory; returns null unless that saves at least MIN_SAVING
+    static byte[] compress(byte[] data, int level) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+        deflate(new ByteArrayInputStream(data), data.length, level, out);
+        return out.size() > (1 - MIN_SAVING) * data.length ? null : out.toByteArray();
+    }
+
+    // Compressed size of the start of file as a fraction of its size
+    static double sampleRatio(File file, int level) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream();
+        long sampled;
+        try (InputStream in = new FileInputStream(file)) {
+            sampled = deflate(in, SAMPLE_SIZE, level, counter);
+        }
+        return sampled == 0 ? 1 : (double) counter.count / sampled;
+    }
+
+    // Compresses up to limit bytes of in to out; returns the number of bytes read
+    private static long deflate(InputStream in, long limit, int level, OutputStream out) throws IOException {
+        Deflater deflater = new Deflater(level);
+        try {
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 64 * 1024);
+            byte[] buffer = new byte[64 * 1024];
+            long total = 0;
+            int bytesRead;
+            while (total < limit && (bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, limit - total))) != -1) {
+                deflated.write(buffer, 0, bytesRead);
+                total += bytesRead;
+            }
+            deflated.finish();
+            out.flush();
+            return total;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded pool of authenticated connections.
+ *
+ * Connections are opened on demand up to the limit and lent to one caller at
+ * a time; callers beyond the limit wait for one to come back. A connection
+ * whose request failed may be out of step with the server, so the caller
+ * discards it instead of releasing it. One that has been idle for a while is
+ * checked with PING before it is lent again, in case the server dropped it.
+ * Every connection comes from the default SSLContext, whose client session
+ * cache lets each handshake after the first resume the TLS session instead of
+ * repeating the full key exchange and certificate check.
+ */
+class ConnectionPool implements Closeable {
+    private static final long VALIDATE_AFTER_MILLIS = 10_000;
+
+    private static final class Idle {
+        final ClientConnection connection;
+        final long since;
+
+        Idle(ClientConnection connection, long since) {
+            this.connection = connection;
+            this.since = since;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final int maxConnections;
+
+    // Guarded by this
+    private final ArrayDeque<Idle> idle = new ArrayDeque<>();
+    private int open;
+    private long opened;
+    private boolean closed;
+
+    ConnectionPool(String host, int port, String username, String password, int maxConnections) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    ClientConnection borrow() throws IOException {
+        while (true) {
+            Idle reused = null;
+            synchronized (this) {
+                while (!closed && idle.isEmpty() && open >= maxConnections) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for a connection");
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Connection pool is closed");
+                }
+                if (!idle.isEmpty()) {
+                    // Most recently used first, so surplus connections stay idle
+                    reused = idle.pollFirst();
+                } else {
+                    open++;
+                }
+            }
+
+            if (reused == null) {
+                try {
+                    ClientConnection connection = ClientConnection.open(host, port, username, password);
+                    synchronized (this) {
+                        opened++;
+                    }
+                    return connection;
+                } catch (IOException e) {
+                    synchronized (this) {
+                        open--;
+                        notifyAll();
+                    }
+                    throw e;
+                }
+            }
+
+            if (usable(reused)) {
+                return reused.connection;
+            }
+            discard(reused.connection);
+        }
+    }
+
+    private static boolean usable(Idle idle) {
+        if (!idle.connection.isOpen()) {
+            return false;
+        }
+        if (System.currentTimeMillis() - idle.since < VALIDATE_AFTER_MILLIS) {
+            return true;
+        }
+        try {
+            idle.connection.request("PING");
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Returns a connection whose last request completed normally
+    void release(ClientConnection connection) {
+        synchronized (this) {
+            if (!closed) {
+                idle.addFirst(new Idle(connection, System.currentTimeMillis()));
+                notifyAll();
+                return;
+            }
+        }
+        discard(connection);
+    }
+
+    // Drops a connection that cannot be reused, without the EXIT exchange
+    void discard(ClientConnection connection) {
+        connection.abort();
+        synchronized (this) {
+            open--;
+            notifyAll();
+        }
+    }
+
+    // Number of connections opened so far, each a handshake and a login
+    synchronized long connectionsOpened() {
+        return opened;
+    }
+
+    @Override
+    public void close() {
+        List<ClientConnection> connections = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (Idle entry : idle) {
+                connections.add(entry.connection);
+            }
+            idle.clear();
+            notifyAll();
+        }
+        for (ClientConnection connection : connections) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Closed anyway
+            }
+            synchronized (this) {
+                open--;
+            }
+        }
+    }
+}
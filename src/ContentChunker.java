@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream into content-defined chunks with a Gear rolling hash.
+ *
+ * A boundary is placed where the hash of the last 64 bytes matches a mask, so
+ * an insertion or deletion only moves the boundaries next to it and the rest
+ * of a file still cuts into the same chunks. Chunks are between MIN_CHUNK_SIZE
+ * and MAX_CHUNK_SIZE bytes; a stricter mask before the average size and a
+ * looser one after it keeps most chunks close to AVERAGE_CHUNK_SIZE.
+ */
+class ContentChunker {
+    static final int MIN_CHUNK_SIZE = 2 * 1024;
+    static final int AVERAGE_CHUNK_SIZE = 8 * 1024;
+    static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    // Top bits of the hash, which depend on all of the last 64 bytes
+    private static final long MASK_STRICT = -1L << (64 - 15);
+    private static final long MASK_LOOSE = -1L << (64 - 11);
+
+    // Fixed seed: boundaries must come out the same on every run and machine
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5346544344434443L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[2 * MAX_CHUNK_SIZE];
+    private int position;
+    private int limit;
+    private boolean eof;
+
+    ContentChunker(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Copies the next chunk into chunk, which must hold MAX_CHUNK_SIZE bytes.
+     * Returns its length, or -1 at the end of the stream.
+     */
+    int next(byte[] chunk) throws IOException {
+        fill();
+        int available = limit - position;
+        if (available == 0) {
+            return -1;
+        }
+
+        int length = boundary(position, Math.min(available, MAX_CHUNK_SIZE));
+        System.arraycopy(buffer, position, chunk, 0, length);
+        position += length;
+        return length;
+    }
+
+    // Length of the chunk starting at start, given length bytes to choose from
+    private int boundary(int start, int length) {
+        if (length <= MIN_CHUNK_SIZE) {
+            return length;
+        }
+
+        long hash = 0;
+        int normal = Math.min(length, AVERAGE_CHUNK_SIZE);
+        int i = MIN_CHUNK_SIZE;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[buffer[start + i] & 0xff];
+            if ((hash & MASK_STRICT) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < length; i++) {
+            hash = (hash << 1) + GEAR[buffer[start + i] & 0xff];
+            if ((hash & MASK_LOOSE) == 0) {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+
+    // Keeps at least MAX_CHUNK_SIZE bytes buffered until the stream ends
+    private void fill() throws IOException {
+        if (eof || limit - position >= MAX_CHUNK_SIZE) {
+            return;
+        }
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+
+        while (limit < buffer.length) {
+            int bytesRead = in.read(buffer, limit, buffer.length - limit);
+            if (bytesRead == -1) {
+                eof = true;
+                return;
+            }
+            limit += bytesRead;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli), the checksum kept for every stored file.
+ *
+ * On Java 9 and later the work is done by java.util.zip.CRC32C, which the JVM
+ * runs with the processor's CRC instructions; on Java 8 a table driven
+ * version takes eight bytes per step. combine gives the checksum of two
+ * adjacent pieces from theirs, so a range made of stored block checksums
+ * needs no reading.
+ */
+final class Crc32c implements Checksum {
+    // Reversed Castagnoli polynomial
+    private static final int POLY = 0x82F63B78;
+    private static final int[][] TABLES = tables();
+    // x^(2^n) modulo the polynomial, for combine
+    private static final int[] X2N = powers();
+
+    private static final MethodHandle JDK_CONSTRUCTOR;
+    private static final MethodHandle JDK_UPDATE_BUFFER;
+
+    static {
+        MethodHandle constructor = null;
+        MethodHandle updateBuffer = null;
+        try {
+            Class<?> type = Class.forName("java.util.zip.CRC32C");
+            constructor = MethodHandles.publicLookup().findConstructor(type, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+            updateBuffer = MethodHandles.publicLookup().findVirtual(Checksum.class, "update",
+                    MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException e) {
+            // Java 8; the tables do the work
+        }
+        JDK_CONSTRUCTOR = constructor;
+        JDK_UPDATE_BUFFER = updateBuffer;
+    }
+
+    // The runtime's implementation, or null to use the tables
+    private final Checksum jdk;
+    private int crc = 0xFFFFFFFF;
+
+    Crc32c() {
+        Checksum checksum = null;
+        if (JDK_CONSTRUCTOR != null) {
+            try {
+                checksum = (Checksum) JDK_CONSTRUCTOR.invokeExact();
+            } catch (Throwable e) {
+                throw new IllegalStateException("Cannot create CRC32C", e);
+            }
+        }
+        this.jdk = checksum;
+    }
+
+    @Override
+    public void update(int b) {
+        if (jdk != null) {
+            jdk.update(b);
+        } else {
+            crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+        }
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        if (jdk != null) {
+            jdk.update(b, off, len);
+            return;
+        }
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int value = crc;
+        while (len >= 8) {
+            int low = (b[off] & 0xFF | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16
+                    | (b[off + 3] & 0xFF) << 24) ^ value;
+            int high = b[off + 4] & 0xFF | (b[off + 5] & 0xFF) << 8 | (b[off + 6] & 0xFF) << 16
+                    | (b[off + 7] & 0xFF) << 24;
+            value = t7[low & 0xFF] ^ t6[(low >>> 8) & 0xFF] ^ t5[(low >>> 16) & 0xFF] ^ t4[low >>> 24]
+                    ^ t3[high & 0xFF] ^ t2[(high >>> 8) & 0xFF] ^ t1[(high >>> 16) & 0xFF] ^ t0[high >>> 24];
+            off += 8;
+            len -= 8;
+        }
+        while (len-- > 0) {
+            value = (value >>> 8) ^ t0[(value ^ b[off++]) & 0xFF];
+        }
+        crc = value;
+    }
+
+    // Adds the buffer's remaining bytes and moves its position to its limit
+    public void update(ByteBuffer buffer) {
+        if (jdk != null) {
+            try {
+                JDK_UPDATE_BUFFER.invokeExact(jdk, buffer);
+            } catch (Throwable e) {
+                throw new IllegalStateException("CRC32C failed", e);
+            }
+        } else if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        } else {
+            byte[] bytes = new byte[Math.min(buffer.remaining(), 8192)];
+            while (buffer.hasRemaining()) {
+                int length = Math.min(buffer.remaining(), bytes.length);
+                buffer.get(bytes, 0, length);
+                update(bytes, 0, length);
+            }
+        }
+    }
+
+    @Override
+    public long getValue() {
+        return jdk != null ? jdk.getValue() : ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        if (jdk != null) {
+            jdk.reset();
+        } else {
+            crc = 0xFFFFFFFF;
+        }
+    }
+
+    // The checksum of a piece followed by another of length2 bytes, from the checksums of both
+    static long combine(long crc1, long crc2, long length2) {
+        if (length2 == 0) {
+            return crc1;
+        }
+        return (multiply(powerOfX(length2), (int) crc1) ^ (int) crc2) & 0xFFFFFFFFL;
+    }
+
+    // As used in replies and listings
+    static String format(long crc) {
+        return String.format("%08x", crc);
+    }
+
+    // The value of a "crc32c=<hex>" word in a reply, or -1 if there is none
+    static long find(String response) {
+        for (String word : response.split(" ")) {
+            if (word.startsWith("crc32c=")) {
+                try {
+                    return Long.parseLong(word.substring(7), 16);
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // a * b modulo the polynomial, in the reversed bit order of the CRC; a must not be 0
+    private static int multiply(int a, int b) {
+        int mask = 1 << 31;
+        int product = 0;
+        while (true) {
+            if ((a & mask) != 0) {
+                product ^= b;
+                if ((a & (mask - 1)) == 0) {
+                    return product;
+                }
+            }
+            mask >>>= 1;
+            b = (b & 1) != 0 ? (b >>> 1) ^ POLY : b >>> 1;
+        }
+    }
+
+    // x^(8 * bytes) modulo the polynomial
+    private static int powerOfX(long bytes) {
+        int power = 1 << 31;
+        int k = 3;
+        while (bytes != 0) {
+            if ((bytes & 1) != 0) {
+                power = multiply(X2N[k & 31], power);
+            }
+            bytes >>>= 1;
+            k++;
+        }
+        return power;
+    }
+
+    private static int[] powers() {
+        int[] powers = new int[32];
+        int power = 1 << 30;
+        powers[0] = power;
+        for (int n = 1; n < 32; n++) {
+            power = multiply(power, power);
+            powers[n] = power;
+        }
+        return powers;
+    }
+
+    private static int[][] tables() {
+        int[][] tables = new int[8][256];
+        for (int n = 0; n < 256; n++) {
+            int value = n;
+            for (int bit = 0; bit < 8; bit++) {
+                value = (value & 1) != 0 ? (value >>> 1) ^ POLY : value >>> 1;
+            }
+            tables[0][n] = value;
+        }
+        for (int n = 0; n < 256; n++) {
+            for (int k = 1; k < 8; k++) {
+                tables[k][n] = (tables[k - 1][n] >>> 8) ^ tables[0][tables[k - 1][n] & 0xFF];
+            }
+        }
+        return tables;
+    }
+}
@@ -0,0 +1,191 @@
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Convergent encryption of content-defined chunks, and the manifest format
+ * that lists them.
+ *
+ * A chunk is encrypted with AES-GCM under the user's key, with an IV derived
+ * from an HMAC of the plaintext. The same plaintext therefore always gives the
+ * same blob, and a blob is stored under the SHA-256 of its bytes, so the
+ * server can deduplicate and verify chunks without seeing their contents. The
+ * server does learn which chunks of a user's files are equal; that is the
+ * price of deduplication.
+ *
+ * Manifest layout: magic "SFTM", a long entry count, entries of chunk id, int
+ * blob length and int weak checksum, and an HMAC over everything before it.
+ * Downloads stream the manifest with each entry followed by its blob. The weak
+ * checksum is the rolling checksum SYNC matches blocks with, masked with a
+ * keyed hash of the chunk id so the server cannot read it.
+ */
+class DedupCipher {
+    static final byte[] MANIFEST_MAGIC = {'S', 'F', 'T', 'M'};
+    static final int MANIFEST_HEADER_LENGTH = 12;
+    static final int ID_LENGTH = 32;
+    static final int ENTRY_LENGTH = ID_LENGTH + 8;
+    static final int MAC_LENGTH = 32;
+    static final int MAX_BLOB_LENGTH = ContentChunker.MAX_CHUNK_SIZE + ChunkedCipher.CHUNK_OVERHEAD;
+
+    private static final byte[] CHUNK_AAD = {'S', 'F', 'T', 'D'};
+
+    private final SecretKey key;
+    private final Mac ivMac;
+    private final Mac weakMac;
+    private final SecretKeySpec manifestKey;
+    private Cipher cipher;
+    private byte[] lastIv;
+
+    DedupCipher(SecretKey key) throws GeneralSecurityException {
+        this.key = key;
+        // Separate keys for IV derivation and manifest authentication
+        this.ivMac = Mac.getInstance("HmacSHA256");
+        ivMac.init(new SecretKeySpec(derive(key, "chunk-iv"), "HmacSHA256"));
+        this.weakMac = Mac.getInstance("HmacSHA256");
+        weakMac.init(new SecretKeySpec(derive(key, "weak-checksum"), "HmacSHA256"));
+        this.manifestKey = new SecretKeySpec(derive(key, "manifest"), "HmacSHA256");
+        this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    }
+
+    private static byte[] derive(SecretKey key, String purpose) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+        return mac.doFinal(purpose.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Encrypts a chunk into blob (IV + ciphertext + tag) and returns its length
+    int encrypt(byte[] plain, int length, byte[] blob) throws GeneralSecurityException {
+        return encrypt(plain, 0, length, blob);
+    }
+
+    int encrypt(byte[] plain, int offset, int length, byte[] blob) throws GeneralSecurityException {
+        ivMac.update(plain, offset, length);
+        byte[] iv = Arrays.copyOf(ivMac.doFinal(), ChunkedCipher.IV_LENGTH);
+        if (Arrays.equals(iv, lastIv)) {
+            // A repeated chunk repeats its IV, which one Cipher refuses to
+            // encrypt with twice in a row; a fresh instance gives the same blob
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        }
+        lastIv = iv;
+        cipher.init(Cipher.ENCRYPT_MODE, key,
+                new GCMParameterSpec(ChunkedCipher.TAG_LENGTH * 8, iv));
+        cipher.updateAAD(CHUNK_AAD);
+        System.arraycopy(iv, 0, blob, 0, ChunkedCipher.IV_LENGTH);
+        return ChunkedCipher.IV_LENGTH + cipher.doFinal(plain, offset, length, blob, ChunkedCipher.IV_LENGTH);
+    }
+
+    int decrypt(byte[] blob, int length, byte[] plain) throws GeneralSecurityException {
+        cipher.init(Cipher.DECRYPT_MODE, key,
+                new GCMParameterSpec(ChunkedCipher.TAG_LENGTH * 8, blob, 0, ChunkedCipher.IV_LENGTH));
+        cipher.updateAAD(CHUNK_AAD);
+        return cipher.doFinal(blob, ChunkedCipher.IV_LENGTH, length - ChunkedCipher.IV_LENGTH, plain, 0);
+    }
+
+    // Masks or unmasks the weak checksum stored with a chunk
+    int maskWeak(byte[] id, int weak) {
+        return weak ^ ByteBuffer.wrap(weakMac.doFinal(id)).getInt();
+    }
+
+    Mac newManifestMac() throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(manifestKey);
+        return mac;
+    }
+
+    /**
+     * Decrypts a downloaded manifest stream, checking every blob against its id
+     * and the manifest against its HMAC. {@code in} must be positioned at the magic.
+     */
+    void decrypt(InputStream in, OutputStream out) throws IOException, GeneralSecurityException {
+        DataInputStream dataIn = new DataInputStream(in);
+        Mac mac = newManifestMac();
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+
+        byte[] header = new byte[MANIFEST_HEADER_LENGTH];
+        dataIn.readFully(header);
+        if (!hasManifestMagic(header)) {
+            throw new IOException("Not a manifest");
+        }
+        mac.update(header);
+        long count = ByteBuffer.wrap(header).getLong(MANIFEST_MAGIC.length);
+
+        byte[] entry = new byte[ENTRY_LENGTH];
+        byte[] blob = new byte[MAX_BLOB_LENGTH];
+        byte[] plain = new byte[ContentChunker.MAX_CHUNK_SIZE];
+        for (long i = 0; i < count; i++) {
+            dataIn.readFully(entry);
+            mac.update(entry);
+            int length = ByteBuffer.wrap(entry).getInt(ID_LENGTH);
+            if (length < ChunkedCipher.CHUNK_OVERHEAD || length > MAX_BLOB_LENGTH) {
+                throw new IOException("Invalid chunk length: " + length);
+            }
+
+            dataIn.readFully(blob, 0, length);
+            sha256.update(blob, 0, length);
+            if (!MessageDigest.isEqual(sha256.digest(), Arrays.copyOf(entry, ID_LENGTH))) {
+                throw new IOException("Chunk " + i + " does not match its id");
+            }
+            out.write(plain, 0, decrypt(blob, length, plain));
+        }
+
+        byte[] expected = new byte[MAC_LENGTH];
+        dataIn.readFully(expected);
+        if (!MessageDigest.isEqual(mac.doFinal(), expected)) {
+            throw new IOException("Manifest authentication failed");
+        }
+    }
+
+    static byte[] chunkId(byte[] blob, int length) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(blob, 0, length);
+            return sha256.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static boolean hasManifestMagic(byte[] data) {
+        if (data.length < MANIFEST_MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MANIFEST_MAGIC.length; i++) {
+            if (data[i] != MANIFEST_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    // Parses a chunk id; returns null unless it is exactly ID_LENGTH bytes of lower case hex
+    static byte[] parseId(String hex) {
+        if (!hex.matches("[0-9a-f]{" + (ID_LENGTH * 2) + "}")) {
+            return null;
+        }
+        byte[] id = new byte[ID_LENGTH];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return id;
+    }
+}
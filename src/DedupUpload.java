@@ -0,0 +1,49 @@
+import javax.crypto.SecretKey;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+/**
+ * Uploads a file as deduplicated chunks.
+ *
+ * The file is cut into content-defined chunks and each one is encrypted
+ * convergently (see DedupCipher). Only the chunks the server does not already
+ * hold are sent (see ChunkUploader), so uploading a new version of a file
+ * moves little more than the parts that changed. The manifest is sent last,
+ * and the server only accepts it once every chunk it lists is stored.
+ */
+class DedupUpload {
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final SecretKey key;
+
+    DedupUpload(String host, int port, String username, String password, SecretKey key) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.key = key;
+    }
+
+    void upload(String filename, File file) throws Exception {
+        try (ClientConnection connection = ClientConnection.open(host, port, username, password);
+             ChunkUploader uploader = new ChunkUploader(connection, new DedupCipher(key));
+             InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            ContentChunker chunker = new ContentChunker(in);
+            byte[] plain = new byte[ContentChunker.MAX_CHUNK_SIZE];
+            int length;
+            while ((length = chunker.next(plain)) != -1) {
+                uploader.add(plain, 0, length);
+            }
+
+            String response = uploader.commit(filename);
+            System.out.println(response);
+            if (response.startsWith("SUCCESS")) {
+                System.out.println(uploader.summary());
+            }
+        }
+    }
+}
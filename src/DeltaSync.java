@@ -0,0 +1,226 @@
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Re-uploads a changed file with the rsync algorithm.
+ *
+ * The server sends the manifest of the stored version, whose entries are the
+ * block signatures: a weak rolling checksum of each block's plaintext (masked,
+ * see DedupCipher) and the block's chunk id, the SHA-256 of its convergently
+ * encrypted bytes. The client slides a window over the new file; where the
+ * weak checksum matches, it encrypts the window and compares the resulting id,
+ * which is the strong check. Matched blocks are referenced by id and cost
+ * nothing to send, the bytes between them go up as new blocks, and the new
+ * manifest becomes the stored version. Blocks are BLOCK_SIZE bytes, so a file
+ * stored by SYNC gives good signatures for the next one.
+ */
+class DeltaSync {
+    static final int BLOCK_SIZE = 16 * 1024;
+
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final SecretKey key;
+
+    DeltaSync(String host, int port, String username, String password, SecretKey key) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.key = key;
+    }
+
+    void sync(String filename, File file) throws Exception {
+        DedupCipher cipher = new DedupCipher(key);
+        try (ClientConnection connection = ClientConnection.open(host, port, username, password);
+             ChunkUploader uploader = new ChunkUploader(connection, cipher)) {
+            Signatures base = loadSignatures(connection, filename, cipher);
+            if (base == null) {
+                System.out.println("No signatures for an earlier version, sending the whole file");
+            }
+
+            long reused = match(file, base, cipher, uploader);
+
+            String response = uploader.commit(filename);
+            System.out.println(response);
+            if (response.startsWith("SUCCESS")) {
+                System.out.println(uploader.summary() + ", " + reused + " blocks reused from the stored version");
+            }
+        }
+    }
+
+    // The signatures of the stored version, or null if it has none
+    private static Signatures loadSignatures(ClientConnection connection, String filename, DedupCipher cipher)
+            throws Exception {
+        BoundedInputStream in = connection.openSignatures(filename);
+        if (in == null) {
+            return null;
+        }
+
+        try {
+            DataInputStream data = new DataInputStream(in);
+            Mac mac = cipher.newManifestMac();
+            byte[] header = new byte[DedupCipher.MANIFEST_HEADER_LENGTH];
+            data.readFully(header);
+            mac.update(header);
+            long count = ByteBuffer.wrap(header).getLong(DedupCipher.MANIFEST_MAGIC.length);
+            if (!DedupCipher.hasManifestMagic(header) || count < 0 || count > Integer.MAX_VALUE) {
+                throw new IOException("Invalid signatures");
+            }
+
+            Signatures signatures = new Signatures((int) count);
+            for (int i = 0; i < count; i++) {
+                byte[] entry = new byte[DedupCipher.ENTRY_LENGTH];
+                data.readFully(entry);
+                mac.update(entry);
+                signatures.add(i, entry, cipher);
+            }
+
+            // The server could otherwise hand out signatures of blocks it does not hold
+            byte[] expected = new byte[DedupCipher.MAC_LENGTH];
+            data.readFully(expected);
+            if (!MessageDigest.isEqual(mac.doFinal(), expected)) {
+                throw new IOException("Signatures failed authentication");
+            }
+            return signatures;
+        } finally {
+            in.drain();
+        }
+    }
+
+    // Sends file as a mix of blocks reused from base and new blocks; returns the number reused
+    private static long match(File file, Signatures base, DedupCipher cipher, ChunkUploader uploader)
+            throws Exception {
+        // Holds the pending literal (under one block) and the window after it
+        byte[] buffer = new byte[4 * BLOCK_SIZE];
+        byte[] blob = new byte[DedupCipher.MAX_BLOB_LENGTH];
+        int literal = 0;
+        int position = 0;
+        int limit = 0;
+        boolean eof = false;
+
+        RollingChecksum checksum = null;
+        boolean slid = false;
+        byte outgoing = 0;
+        long reused = 0;
+
+        try (InputStream in = new FileInputStream(file)) {
+            while (true) {
+                if (!eof && limit - position < BLOCK_SIZE) {
+                    System.arraycopy(buffer, literal, buffer, 0, limit - literal);
+                    position -= literal;
+                    limit -= literal;
+                    literal = 0;
+                    while (limit < buffer.length) {
+                        int bytesRead = in.read(buffer, limit, buffer.length - limit);
+                        if (bytesRead == -1) {
+                            eof = true;
+                            break;
+                        }
+                        limit += bytesRead;
+                    }
+                }
+
+                int window = Math.min(BLOCK_SIZE, limit - position);
+                if (window == 0) {
+                    break;
+                }
+                if (slid && checksum.length() == window) {
+                    checksum.roll(outgoing, buffer[position + window - 1]);
+                } else {
+                    checksum = new RollingChecksum(buffer, position, window);
+                }
+                slid = false;
+
+                byte[] entry = base == null ? null : base.find(checksum.value(), buffer, position, window, cipher, blob);
+                if (entry != null) {
+                    if (position > literal) {
+                        uploader.add(buffer, literal, position - literal);
+                    }
+                    uploader.addExisting(entry);
+                    reused++;
+                    position += window;
+                    literal = position;
+                    continue;
+                }
+
+                if (window < BLOCK_SIZE) {
+                    // Only the end of the file is left and it matched nothing
+                    position = limit;
+                    break;
+                }
+
+                outgoing = buffer[position];
+                position++;
+                slid = true;
+                if (position - literal == BLOCK_SIZE) {
+                    uploader.add(buffer, literal, BLOCK_SIZE);
+                    literal = position;
+                }
+            }
+        }
+
+        while (literal < position) {
+            int length = Math.min(BLOCK_SIZE, position - literal);
+            uploader.add(buffer, literal, length);
+            literal += length;
+        }
+        return reused;
+    }
+
+    // Manifest entries of the stored version, looked up by weak checksum
+    private static class Signatures {
+        private final byte[][] entries;
+        private final int[] plainLengths;
+        private final Map<Integer, List<Integer>> byWeak = new HashMap<>();
+
+        Signatures(int count) {
+            entries = new byte[count][];
+            plainLengths = new int[count];
+        }
+
+        void add(int index, byte[] entry, DedupCipher cipher) {
+            ByteBuffer fields = ByteBuffer.wrap(entry);
+            byte[] id = new byte[DedupCipher.ID_LENGTH];
+            fields.get(id);
+            plainLengths[index] = fields.getInt() - ChunkedCipher.CHUNK_OVERHEAD;
+            int weak = cipher.maskWeak(id, fields.getInt());
+            entries[index] = entry;
+            byWeak.computeIfAbsent(weak, w -> new ArrayList<>(1)).add(index);
+        }
+
+        // Returns the entry of a stored block equal to the window, or null
+        byte[] find(int weak, byte[] data, int offset, int length, DedupCipher cipher, byte[] blob) throws Exception {
+            List<Integer> candidates = byWeak.get(weak);
+            if (candidates == null) {
+                return null;
+            }
+
+            byte[] id = null;
+            for (int index : candidates) {
+                if (plainLengths[index] != length) {
+                    continue;
+                }
+                if (id == null) {
+                    id = DedupCipher.chunkId(blob, cipher.encrypt(data, offset, length, blob));
+                }
+                if (ByteBuffer.wrap(entries[index], 0, DedupCipher.ID_LENGTH).equals(ByteBuffer.wrap(id))) {
+                    return entries[index];
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,527 @@
+import javax.crypto.SecretKey;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Uploads the files of a local directory tree that changed since its last
+ * sync, as a pipeline of stages joined by bounded queues:
+ *
+ *   scan -> read -> compress/encrypt -> send
+ *
+ * The scanner walks the tree and drops unchanged files: those with the size
+ * and modification time recorded after the last sync, which the server still
+ * lists with the size and time recorded then. A reader thread loads small
+ * files into memory, a pool of workers compresses and encrypts them, and one
+ * sender per connection writes them as frame-protocol requests back to back
+ * while a receiver thread collects the answers, so a run of small files is
+ * not held up by a round trip per file. Files over IN_MEMORY_LIMIT skip the
+ * read stage and are encrypted by their sender as they are sent.
+ *
+ * The server keeps each user's files in one directory, so the path of a file
+ * below the synced directory becomes part of its name, with '%', '/' and ' '
+ * escaped: photos/2024/a b.jpg is stored as photos%2F2024%2Fa%20b.jpg. The
+ * recorded sizes and times are kept in a .syncdir file next to the directory.
+ */
+class DirectorySync {
+    private static final long IN_MEMORY_LIMIT = 1024 * 1024;
+    private static final int QUEUE_CAPACITY = 16;
+    // Requests written to one connection before their answers are read
+    private static final int MAX_IN_FLIGHT = 64;
+
+    private static final class Job {
+        // Path below the synced directory, '/' separated
+        final String path;
+        final String remoteName;
+        final File file;
+        final long length;
+        final long modified;
+
+        int requestId;
+        // Set by the reader for small files, replaced by the ciphertext by a worker
+        byte[] data;
+        boolean encrypted;
+        // Set by a worker for large files
+        Compression.Prepared prepared;
+
+        Job(String path, String remoteName, File file, long length, long modified) {
+            this.path = path;
+            this.remoteName = remoteName;
+            this.file = file;
+            this.length = length;
+            this.modified = modified;
+        }
+    }
+
+    // Marks the end of the jobs in a queue; each stage passes it on once all its threads are done
+    private static final Job END_OF_JOBS = new Job(null, null, null, 0, 0);
+
+    private interface Stage {
+        void process(Job job) throws Exception;
+    }
+
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final SecretKey key;
+    private final int connections;
+    private final int workers;
+    private final int level;
+
+    private final BlockingQueue<Job> readQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<Job> encryptQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<Job> sendQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Map<String, Job> uploaded = new ConcurrentHashMap<>();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicInteger liveSenders = new AtomicInteger();
+
+    DirectorySync(String host, int port, String username, String password, SecretKey key, int connections,
+                  int workers, int level) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.key = key;
+        this.connections = Math.max(1, connections);
+        this.workers = Math.max(1, workers);
+        this.level = level;
+    }
+
+    void sync(File dir) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        String prefix = escape(dir.getName()) + "%2F";
+        File recordFile = new File(dir.getPath() + ".syncdir");
+        Properties record = loadRecord(recordFile);
+        Properties newRecord = new Properties();
+
+        try (ClientConnection control = ClientConnection.open(host, port, username, password)) {
+            Map<String, String> remote = listRemote(control, prefix);
+
+            List<ClientConnection> senders = new ArrayList<>();
+            try {
+                for (int i = 0; i < connections; i++) {
+                    senders.add(ClientConnection.open(host, port, username, password));
+                }
+            } catch (IOException e) {
+                for (ClientConnection connection : senders) {
+                    connection.abort();
+                }
+                throw e;
+            }
+
+            List<Thread> threads = new ArrayList<>();
+            threads.addAll(startStage("sync-read", 1, readQueue, encryptQueue, this::read));
+            threads.addAll(startStage("sync-encrypt", workers, encryptQueue, sendQueue, this::encrypt));
+            liveSenders.set(senders.size());
+            for (int i = 0; i < senders.size(); i++) {
+                Thread sender = new Thread(new Sender(senders.get(i)), "sync-send-" + i);
+                sender.start();
+                threads.add(sender);
+            }
+
+            int skipped = 0;
+            Path root = dir.toPath();
+            try (Stream<Path> paths = Files.walk(root)) {
+                Iterator<Path> iterator = paths.iterator();
+                while (iterator.hasNext()) {
+                    Path file = iterator.next();
+                    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    if (!attributes.isRegularFile()) {
+                        continue;
+                    }
+
+                    StringBuilder path = new StringBuilder();
+                    for (Path name : root.relativize(file)) {
+                        path.append(path.length() == 0 ? "" : "/").append(name);
+                    }
+                    Job job = new Job(path.toString(), prefix + escape(path.toString()), file.toFile(),
+                            attributes.size(), attributes.lastModifiedTime().toMillis());
+
+                    String previous = record.getProperty(job.path);
+                    if (previous != null && unchanged(previous, job, remote.get(job.remoteName))) {
+                        newRecord.setProperty(job.path, previous);
+                        skipped++;
+                    } else {
+                        readQueue.put(job);
+                    }
+                }
+            } finally {
+                readQueue.put(END_OF_JOBS);
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            }
+
+            // Record what the server now holds for every file that arrived
+            if (!uploaded.isEmpty()) {
+                remote = listRemote(control, prefix);
+                for (Job job : uploaded.values()) {
+                    String stored = remote.get(job.remoteName);
+                    if (stored != null) {
+                        newRecord.setProperty(job.path, job.length + " " + job.modified + " " + stored);
+                    }
+                }
+            }
+            try (Writer writer = new FileWriter(recordFile)) {
+                newRecord.store(writer, "Sync of " + dir.getName());
+            }
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Synced %s: %d uploaded (%.1f MB), %d unchanged, %d failed in %.2f s, %.1f MB/s%n",
+                    dir.getName(), uploaded.size(), uploadedBytes.get() / 1e6, skipped, failed.get(), seconds,
+                    uploadedBytes.get() / 1e6 / Math.max(seconds, 1e-3));
+        }
+    }
+
+    // "<local size> <local modified> <remote size> <remote modified>" against the file now
+    private static boolean unchanged(String previous, Job job, String stored) {
+        return stored != null && previous.equals(job.length + " " + job.modified + " " + stored);
+    }
+
+    // Remote name -> "<size> <modified>" for every file whose name starts with prefix
+    private static Map<String, String> listRemote(ClientConnection connection, String prefix) throws IOException {
+        Map<String, String> remote = new HashMap<>();
+        List<String> lines = connection.list("prefix=" + prefix + " long");
+        if (!lines.get(0).startsWith("Files: ")) {
+            return remote;
+        }
+        // <size> <modified> <sha-256 or -> <crc32c or -> <codec> <name>
+        for (String line : lines.subList(1, lines.size() - 1)) {
+            String[] fields = line.split(" ", 6);
+            remote.put(fields[5], fields[0] + " " + Instant.parse(fields[1]).toEpochMilli());
+        }
+        return remote;
+    }
+
+    private static String escape(String path) {
+        return path.replace("%", "%25").replace("/", "%2F").replace(" ", "%20");
+    }
+
+    private static Properties loadRecord(File recordFile) throws IOException {
+        Properties record = new Properties();
+        if (recordFile.exists()) {
+            try (Reader reader = new FileReader(recordFile)) {
+                record.load(reader);
+            }
+        }
+        return record;
+    }
+
+    // Runs a stage on its own threads; the last thread to finish passes END_OF_JOBS on
+    private List<Thread> startStage(String name, int threads, BlockingQueue<Job> input, BlockingQueue<Job> output,
+                                    Stage stage) {
+        AtomicInteger running = new AtomicInteger(threads);
+        List<Thread> started = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    while (true) {
+                        Job job = input.take();
+                        if (job == END_OF_JOBS) {
+                            // Leave it for the other threads of this stage
+                            input.put(END_OF_JOBS);
+                            break;
+                        }
+                        try {
+                            stage.process(job);
+                            output.put(job);
+                        } catch (InterruptedException e) {
+                            throw e;
+                        } catch (Exception e) {
+                            fail(job, e.toString());
+                        }
+                    }
+                    if (running.decrementAndGet() == 0) {
+                        output.put(END_OF_JOBS);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, name + "-" + i);
+            thread.start();
+            started.add(thread);
+        }
+        return started;
+    }
+
+    private void read(Job job) throws IOException {
+        if (job.length <= IN_MEMORY_LIMIT) {
+            job.data = Files.readAllBytes(job.file.toPath());
+        }
+    }
+
+    private void encrypt(Job job) throws Exception {
+        if (job.data == null) {
+            job.prepared = Compression.prepare(job.file, level);
+            return;
+        }
+
+        byte[] plain = job.data;
+        byte[] magic = ChunkedCipher.MAGIC;
+        if (level >= 0) {
+            byte[] compressed = Compression.compress(plain, level);
+            if (compressed != null) {
+                plain = compressed;
+                magic = ChunkedCipher.DEFLATE_MAGIC;
+            }
+        }
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream(
+                (int) ChunkedCipher.encryptedLength(plain.length));
+        ChunkedCipher.encrypt(key, new ByteArrayInputStream(plain), plain.length, encrypted, magic);
+        job.data = encrypted.toByteArray();
+        job.encrypted = true;
+    }
+
+    private void succeed(Job job) {
+        uploaded.put(job.path, job);
+        uploadedBytes.addAndGet(job.length);
+    }
+
+    private void fail(Job job, String reason) {
+        failed.incrementAndGet();
+        if (job.prepared != null) {
+            job.prepared.close();
+        }
+        System.err.println("Error uploading " + job.path + ": " + reason);
+    }
+
+    /**
+     * Sends jobs over one connection. With the frame protocol a receiver
+     * thread reads the answers while more requests are written; servers that
+     * only speak the text protocol get one request at a time.
+     */
+    private final class Sender implements Runnable {
+        private final ClientConnection connection;
+        private final BlockingQueue<Job> inFlight = new ArrayBlockingQueue<>(MAX_IN_FLIGHT);
+        private int nextRequestId = 1;
+        private boolean broken;
+
+        Sender(ClientConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void run() {
+            Thread receiver = null;
+            try {
+                boolean framed = false;
+                try {
+                    framed = connection.switchToFrames();
+                } catch (IOException e) {
+                    System.err.println("Error on sync connection: " + e.getMessage());
+                    if (leave()) {
+                        return;
+                    }
+                }
+                if (framed && !broken) {
+                    receiver = new Thread(this::receive, Thread.currentThread().getName() + "-receive");
+                    receiver.start();
+                }
+
+                while (true) {
+                    Job job = sendQueue.poll();
+                    if (job == null) {
+                        // Nothing ready to send, so push out what has been written
+                        flush(framed);
+                        job = sendQueue.take();
+                    }
+                    if (job == END_OF_JOBS) {
+                        sendQueue.put(END_OF_JOBS);
+                        break;
+                    }
+                    if (broken) {
+                        fail(job, "Connection lost");
+                        continue;
+                    }
+
+                    try {
+                        if (framed) {
+                            job.requestId = nextRequestId++;
+                            // The receiver reports the outcome, also if writing fails
+                            inFlight.put(job);
+                            write(job);
+                        } else {
+                            Job current = job;
+                            String response = connection.request("UPLOAD " + job.remoteName, bodyLength(job),
+                                    out -> writeBody(current, out));
+                            if (response.startsWith("SUCCESS")) {
+                                succeed(job);
+                            } else {
+                                fail(job, response);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        if (!framed) {
+                            fail(job, e.toString());
+                        }
+                        // The request may have been cut off part way, so the connection is out of step
+                        if (leave()) {
+                            break;
+                        }
+                    }
+                }
+
+                if (framed && !broken) {
+                    Job exit = new Job(null, null, null, 0, 0);
+                    exit.requestId = nextRequestId++;
+                    Frames.writeRequest(connection.frameOutput(), exit.requestId, 0, "EXIT");
+                    connection.frameOutput().flush();
+                    inFlight.put(exit);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // Writing EXIT; every job has been taken by then
+                System.err.println("Error on sync connection: " + e.getMessage());
+                leave();
+            } finally {
+                if (receiver != null) {
+                    try {
+                        inFlight.put(END_OF_JOBS);
+                        receiver.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                connection.abort();
+            }
+        }
+
+        // Gives up this sender's connection. Returns true if other senders
+        // are left to take the remaining files; the last one keeps taking
+        // jobs and failing them, so the stages before it never block
+        private boolean leave() {
+            connection.abort();
+            if (broken) {
+                return liveSenders.get() > 0;
+            }
+            broken = true;
+            return liveSenders.decrementAndGet() > 0;
+        }
+
+        private void flush(boolean framed) {
+            if (framed && !broken) {
+                try {
+                    connection.frameOutput().flush();
+                } catch (IOException e) {
+                    // The receiver fails the requests in flight
+                    connection.abort();
+                }
+            }
+        }
+
+        private void write(Job job) throws Exception {
+            DataOutputStream out = connection.frameOutput();
+            Frames.writeRequest(out, job.requestId, bodyLength(job), "UPLOAD " + job.remoteName);
+            if (job.encrypted) {
+                // Left in the buffer, so a run of small files goes out in few packets
+                for (int offset = 0; offset < job.data.length; offset += Frames.MAX_DATA_LENGTH) {
+                    Frames.write(out, Frames.DATA, job.requestId, job.data, offset,
+                            Math.min(Frames.MAX_DATA_LENGTH, job.data.length - offset));
+                }
+                job.data = null;
+            } else {
+                try (OutputStream body = new Frames.BodyOutputStream(out, job.requestId)) {
+                    writeBody(job, body);
+                }
+            }
+        }
+
+        private long bodyLength(Job job) {
+            return job.encrypted ? job.data.length : ChunkedCipher.encryptedLength(job.prepared.length());
+        }
+
+        private void writeBody(Job job, OutputStream out) throws Exception {
+            if (job.encrypted) {
+                out.write(job.data);
+                job.data = null;
+                return;
+            }
+            try (InputStream in = new BufferedInputStream(new FileInputStream(job.prepared.source))) {
+                ChunkedCipher.encrypt(key, in, job.prepared.length(), out, job.prepared.magic);
+            } finally {
+                job.prepared.close();
+            }
+        }
+
+        // Reads the answers in the order the requests were written
+        private void receive() {
+            boolean lost = false;
+            try {
+                while (true) {
+                    Job job = inFlight.take();
+                    if (job == END_OF_JOBS) {
+                        break;
+                    }
+                    if (lost) {
+                        if (job.path != null) {
+                            fail(job, "Connection lost");
+                        }
+                        continue;
+                    }
+
+                    try {
+                        String response = null;
+                        Frames.Frame frame;
+                        while ((frame = Frames.read(connection.frameInput())) != null && frame.type != Frames.END) {
+                            if (frame.requestId != job.requestId || frame.type != Frames.RESPONSE) {
+                                throw new IOException("Unexpected frame for request " + job.requestId);
+                            }
+                            response = frame.text();
+                        }
+                        if (frame == null) {
+                            throw new IOException("Connection closed by server");
+                        }
+                        if (job.path == null) {
+                            // The answer to EXIT
+                            continue;
+                        }
+                        if (response != null && response.startsWith("SUCCESS")) {
+                            succeed(job);
+                        } else {
+                            fail(job, response == null ? "No answer" : response);
+                        }
+                    } catch (IOException e) {
+                        lost = true;
+                        connection.abort();
+                        if (job.path != null) {
+                            fail(job, e.getMessage());
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,608 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-user index of file metadata for LIST.
+ *
+ * A user's index holds the name, size (as STAT reports it), modification time
+ * and SHA-256 of every file of the user, kept sorted by name, by size and by
+ * time so LIST can filter by prefix and page through a large directory
+ * without listing it. The index is loaded the first time it is needed: from
+ * .index/<user>.idx in the first storage root if none of the user's
+ * directories has changed since that file was written, otherwise by scanning
+ * them (see StorageLayout). After that the server's own writes keep it
+ * current, as does a WatchService on the user's directories, and it is written
+ * back a few seconds after it changes. At most MAX_WATCHES directories are
+ * watched in all (-Dserver.index.maxWatches), since the OS limits them: with
+ * hashed fan-out a user has up to 257 directories per root at fan-out 1 and
+ * 65,793 at 2, and a user who does not fit is not watched. Hashed directories
+ * created after a user's index was loaded are not watched either. For those,
+ * changes made outside the server only show up once the server restarts,
+ * because a changed directory makes the next load scan again. The file is deleted as
+ * soon as the index changes, so after a crash the next load scans again.
+ * Hashes (of the stored bytes; for deduplicated files, of the manifest) are
+ * filled in by a background thread once a file has stopped changing.
+ */
+class FileIndex {
+    private static final String INDEX_DIR = ".index";
+    // Directory watches across all users; the OS limits them (Linux: fs.inotify.max_user_watches)
+    private static final int MAX_WATCHES = Integer.getInteger("server.index.maxWatches", 4096);
+    private static final byte[] MAGIC = {'S', 'F', 'T', 'I'};
+    private static final int VERSION = 2;
+    private static final int HASH_LENGTH = 32;
+    private static final long HASH_DELAY_MILLIS = 2000;
+    private static final long FLUSH_INTERVAL_SECONDS = 5;
+
+    enum Sort { NAME, SIZE, MTIME }
+
+    static final class Entry {
+        final String name;
+        // Size as the client sees it, and the length of the stored file
+        final long size;
+        final long length;
+        final long modified;
+        // Compression the client applied before encrypting, see ChunkedCipher.codec
+        final String codec;
+        // SHA-256 of the stored file, or null until it has been computed
+        final byte[] hash;
+
+        Entry(String name, long size, long length, long modified, String codec, byte[] hash) {
+            this.name = name;
+            this.size = size;
+            this.length = length;
+            this.modified = modified;
+            this.codec = codec;
+            this.hash = hash;
+        }
+
+        private long key(Sort sort) {
+            return sort == Sort.SIZE ? size : sort == Sort.MTIME ? modified : 0;
+        }
+    }
+
+    static final class Page {
+        final List<Entry> entries;
+        // Continues the listing after this page, or null on the last page
+        final String cursor;
+        // Whether the user has no files at all
+        final boolean empty;
+
+        private Page(List<Entry> entries, String cursor, boolean empty) {
+            this.entries = entries;
+            this.cursor = cursor;
+            this.empty = empty;
+        }
+    }
+
+    private static final Comparator<Entry> BY_NAME = Comparator.comparing(entry -> entry.name);
+    private static final Comparator<Entry> BY_SIZE =
+            Comparator.<Entry>comparingLong(entry -> entry.size).thenComparing(BY_NAME);
+    private static final Comparator<Entry> BY_MTIME =
+            Comparator.<Entry>comparingLong(entry -> entry.modified).thenComparing(BY_NAME);
+
+    private final StorageLayout layout;
+    private final ChunkStore chunkStore;
+    private final Map<String, UserIndex> indexes = new ConcurrentHashMap<>();
+    private final Set<String> pendingHashes = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService background = Executors.newScheduledThreadPool(2, task -> {
+        Thread thread = new Thread(task, "file-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private WatchService watcher;
+    private final Map<WatchKey, UserIndex> watched = new ConcurrentHashMap<>();
+
+    FileIndex(StorageLayout layout, ChunkStore chunkStore) {
+        this.layout = layout;
+        this.chunkStore = chunkStore;
+        background.scheduleWithFixedDelay(this::flushAll, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns up to limit entries (no limit if limit <= 0) whose names start
+     * with prefix, in the given order, starting after cursor if it is set.
+     */
+    Page list(String user, String prefix, Sort sort, boolean descending, int limit, String cursor)
+            throws IOException {
+        UserIndex index = load(user);
+        NavigableSet<Entry> view = index.view(sort);
+
+        if (cursor != null) {
+            Entry after = decodeCursor(cursor, sort);
+            view = descending ? view.headSet(after, false).descendingSet() : view.tailSet(after, false);
+        } else if (sort == Sort.NAME && !prefix.isEmpty()) {
+            view = descending
+                    ? view.headSet(probe(prefix + Character.MAX_VALUE), true).descendingSet()
+                    : view.tailSet(probe(prefix), true);
+        } else if (descending) {
+            view = view.descendingSet();
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        String next = null;
+        for (Entry entry : view) {
+            if (!entry.name.startsWith(prefix)) {
+                if (sort == Sort.NAME) {
+                    // Names with the prefix are contiguous, so the rest cannot match
+                    break;
+                }
+                continue;
+            }
+            if (limit > 0 && entries.size() == limit) {
+                next = encodeCursor(entries.get(entries.size() - 1), sort);
+                break;
+            }
+            entries.add(entry);
+        }
+        return new Page(entries, next, index.byName.isEmpty());
+    }
+
+    // Brings one file's entry up to date after the server has written it
+    void refresh(String user, String name) {
+        UserIndex index = indexes.get(user);
+        if (index == null || !index.loaded) {
+            // Loading scans the directory anyway
+            return;
+        }
+        try {
+            index.refresh(name);
+        } catch (IOException e) {
+            System.err.println("Cannot index " + user + "/" + name + ": " + e.getMessage());
+        }
+    }
+
+    // Writes every index that changed since it was last written
+    void flushAll() {
+        for (UserIndex index : indexes.values()) {
+            try {
+                index.save();
+            } catch (IOException e) {
+                System.err.println("Cannot save file index for " + index.user + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private UserIndex load(String user) throws IOException {
+        UserIndex index = indexes.computeIfAbsent(user, UserIndex::new);
+        index.load();
+        return index;
+    }
+
+    private static Entry probe(String name) {
+        return new Entry(name, 0, 0, 0, null, null);
+    }
+
+    // A cursor names the last entry of a page by its sort key and name
+    private static String encodeCursor(Entry entry, Sort sort) {
+        String text = sort + ":" + entry.key(sort) + ":" + entry.name;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Entry decodeCursor(String cursor, Sort sort) {
+        try {
+            String[] fields = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":", 3);
+            if (fields.length != 3 || !fields[0].equals(sort.toString())) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+            long key = Long.parseLong(fields[1]);
+            return new Entry(fields[2], key, 0, key, null, null);
+        } catch (IllegalArgumentException e) {
+            // Also covers bad Base64 and a bad number
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+
+    // Watches all of the user's directories, or none if they would take the
+    // watch count over MAX_WATCHES
+    private synchronized void watch(UserIndex index, List<Path> dirs) {
+        if (watched.size() + dirs.size() > MAX_WATCHES) {
+            System.out.println("Not watching the " + dirs.size() + " directories of " + index.user
+                    + "; changes made outside the server show up after a restart");
+            return;
+        }
+        for (Path dir : dirs) {
+            try {
+                if (watcher == null) {
+                    watcher = FileSystems.getDefault().newWatchService();
+                    Thread thread = new Thread(this::watchLoop, "file-index-watcher");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+                WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watched.put(key, index);
+            } catch (IOException e) {
+                // The index still follows the server's own writes
+                System.err.println("Cannot watch " + dir + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            UserIndex index = watched.get(key);
+            boolean overflow = false;
+            Set<String> names = new LinkedHashSet<>();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    overflow = true;
+                } else {
+                    names.add(event.context().toString());
+                }
+            }
+            if (!key.reset()) {
+                watched.remove(key);
+            }
+            if (index == null) {
+                continue;
+            }
+
+            try {
+                if (overflow) {
+                    index.rescan();
+                } else {
+                    for (String name : names) {
+                        index.refresh(name);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Cannot update file index for " + index.user + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void scheduleHash(UserIndex index, String name) {
+        if (pendingHashes.add(index.user + "/" + name)) {
+            background.schedule(() -> hash(index, name), HASH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void hash(UserIndex index, String name) {
+        pendingHashes.remove(index.user + "/" + name);
+        Entry entry = index.byName.get(name);
+        if (entry == null || entry.hash != null) {
+            return;
+        }
+        if (System.currentTimeMillis() - entry.modified < HASH_DELAY_MILLIS) {
+            // Still being written
+            scheduleHash(index, name);
+            return;
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            Path file = layout.locate(index.user, name);
+            if (file == null) {
+                return;
+            }
+            try (InputStream in = Files.newInputStream(file)) {
+                while ((bytesRead = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, bytesRead);
+                }
+            }
+            index.setHash(entry, digest.digest());
+        } catch (NoSuchFileException e) {
+            // Deleted; the watcher removes the entry
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.err.println("Cannot hash " + index.user + "/" + name + ": " + e.getMessage());
+        }
+    }
+
+    // Computes the entry for a file, keeping the old hash if the file is unchanged
+    private Entry describe(Path file, BasicFileAttributes attributes, Entry old) throws IOException {
+        long length = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        if (old != null && old.length == length && old.modified == modified) {
+            return old;
+        }
+        byte[] magic = new byte[ChunkedCipher.MAGIC.length];
+        try (InputStream in = Files.newInputStream(file)) {
+            ChunkedCipher.readFully(in, magic, 0, magic.length);
+        }
+        long size = DedupCipher.hasManifestMagic(magic) ? chunkStore.expandedLength(file.toFile()) : length;
+        return new Entry(file.getFileName().toString(), size, length, modified, ChunkedCipher.codec(magic), null);
+    }
+
+    private final class UserIndex {
+        final String user;
+        final Path indexFile;
+        final Map<String, Entry> byName = new ConcurrentHashMap<>();
+        final NavigableSet<Entry> sortedByName = new ConcurrentSkipListSet<>(BY_NAME);
+        final NavigableSet<Entry> sortedBySize = new ConcurrentSkipListSet<>(BY_SIZE);
+        final NavigableSet<Entry> sortedByMtime = new ConcurrentSkipListSet<>(BY_MTIME);
+        volatile boolean loaded;
+        // Changed since last saved; stale means the saved file no longer matches the directory
+        private boolean dirty;
+        private boolean stale;
+
+        UserIndex(String user) {
+            this.user = user;
+            this.indexFile = layout.home().resolve(INDEX_DIR).resolve(user + ".idx");
+        }
+
+        NavigableSet<Entry> view(Sort sort) {
+            return sort == Sort.SIZE ? sortedBySize : sort == Sort.MTIME ? sortedByMtime : sortedByName;
+        }
+
+        synchronized void load() throws IOException {
+            if (loaded) {
+                return;
+            }
+            // Watch first, so nothing that changes during the scan is missed
+            List<Path> dirs = layout.directories(user);
+            watch(this, dirs);
+
+            long dirModified = lastModified(dirs);
+            Map<String, Entry> saved = new HashMap<>();
+            long savedDirModified = read(saved);
+            if (savedDirModified == dirModified) {
+                for (Entry entry : saved.values()) {
+                    add(entry);
+                }
+                System.out.println("Loaded file index for " + user + ": " + byName.size() + " files");
+            } else {
+                scan(saved);
+                System.out.println("Indexed " + user + ": " + byName.size() + " files");
+            }
+
+            for (Entry entry : byName.values()) {
+                if (entry.hash == null) {
+                    scheduleHash(this, entry.name);
+                }
+            }
+            loaded = true;
+        }
+
+        synchronized void refresh(String name) throws IOException {
+            if (!StorageLayout.isValidName(name)) {
+                // Never stored, see StorageLayout.isValidName
+                return;
+            }
+
+            Path file = layout.locate(user, name);
+            BasicFileAttributes attributes = null;
+            if (file != null) {
+                try {
+                    attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    attributes = null;
+                }
+            }
+
+            Entry old = byName.get(name);
+            if (attributes == null || !attributes.isRegularFile()) {
+                if (old != null) {
+                    removeEntry(old);
+                    changed(true);
+                }
+                return;
+            }
+
+            Entry entry = describe(file, attributes, old);
+            if (entry != old) {
+                if (old != null) {
+                    removeEntry(old);
+                }
+                add(entry);
+                changed(true);
+                scheduleHash(this, name);
+            }
+        }
+
+        // Rebuilds the index from the directory, after the watcher lost events
+        synchronized void rescan() throws IOException {
+            Map<String, Entry> previous = new HashMap<>(byName);
+            for (Entry entry : previous.values()) {
+                removeEntry(entry);
+            }
+            scan(previous);
+            changed(true);
+            for (Entry entry : byName.values()) {
+                if (entry.hash == null) {
+                    scheduleHash(this, entry.name);
+                }
+            }
+        }
+
+        private void scan(Map<String, Entry> previous) throws IOException {
+            Map<String, Path> files = new HashMap<>();
+            for (Path file : layout.stored(user)) {
+                String name = file.getFileName().toString();
+                if (files.putIfAbsent(name, file) != null) {
+                    // Also where an earlier layout put it; the copy served is the one that counts
+                    files.put(name, layout.locate(user, name));
+                }
+            }
+            for (Map.Entry<String, Path> file : files.entrySet()) {
+                if (file.getValue() == null) {
+                    continue;
+                }
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(file.getValue(), BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (attributes.isRegularFile()) {
+                    add(describe(file.getValue(), attributes, previous.get(file.getKey())));
+                }
+            }
+        }
+
+        // The latest modification time of the user's directories
+        private long lastModified(List<Path> dirs) throws IOException {
+            long modified = 0;
+            for (Path dir : dirs) {
+                try {
+                    modified = Math.max(modified, Files.getLastModifiedTime(dir).toMillis());
+                } catch (NoSuchFileException e) {
+                    // Removed meanwhile, which changed its parent
+                }
+            }
+            return modified;
+        }
+
+        synchronized void setHash(Entry entry, byte[] hash) {
+            if (byName.get(entry.name) != entry) {
+                // Changed while it was being hashed; the newer entry gets its own hash
+                return;
+            }
+            removeEntry(entry);
+            add(new Entry(entry.name, entry.size, entry.length, entry.modified, entry.codec, hash));
+            changed(false);
+        }
+
+        private void add(Entry entry) {
+            byName.put(entry.name, entry);
+            sortedByName.add(entry);
+            sortedBySize.add(entry);
+            sortedByMtime.add(entry);
+        }
+
+        private void removeEntry(Entry entry) {
+            byName.remove(entry.name);
+            sortedByName.remove(entry);
+            sortedBySize.remove(entry);
+            sortedByMtime.remove(entry);
+        }
+
+        private void changed(boolean invalidatesSaved) {
+            dirty = true;
+            if (invalidatesSaved && !stale) {
+                stale = true;
+                try {
+                    Files.deleteIfExists(indexFile);
+                } catch (IOException e) {
+                    System.err.println("Cannot remove file index for " + user + ": " + e.getMessage());
+                }
+            }
+        }
+
+        /*
+         * Format: magic "SFTI", version (int), the latest modification time
+         * of the user's directories (long) and the entry count (int), then
+         * per entry the name (UTF), size, stored length and modification time
+         * (longs), the codec (UTF) and the hash length (byte, 0 or 32)
+         * followed by the hash.
+         */
+        synchronized void save() throws IOException {
+            if (!loaded || !dirty) {
+                return;
+            }
+            // Read before writing the entries, so a change made meanwhile makes the file outdated
+            long dirModified = lastModified(layout.directories(user));
+
+            Files.createDirectories(indexFile.getParent());
+            Path temp = Files.createTempFile(indexFile.getParent(), user, ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+                    out.write(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeLong(dirModified);
+                    out.writeInt(byName.size());
+                    for (Entry entry : byName.values()) {
+                        out.writeUTF(entry.name);
+                        out.writeLong(entry.size);
+                        out.writeLong(entry.length);
+                        out.writeLong(entry.modified);
+                        out.writeUTF(entry.codec);
+                        if (entry.hash == null) {
+                            out.writeByte(0);
+                        } else {
+                            out.writeByte(entry.hash.length);
+                            out.write(entry.hash);
+                        }
+                    }
+                }
+                Files.move(temp, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            dirty = false;
+            stale = false;
+        }
+
+        // Reads the saved index into entries; returns the directory time it was saved for, or -1
+        private long read(Map<String, Entry> entries) {
+            if (!Files.exists(indexFile)) {
+                return -1;
+            }
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(indexFile), 64 * 1024))) {
+                byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                if (!MessageDigest.isEqual(magic, MAGIC) || in.readInt() != VERSION) {
+                    throw new IOException("not an index file of this version");
+                }
+                long dirModified = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String name = in.readUTF();
+                    long size = in.readLong();
+                    long length = in.readLong();
+                    long modified = in.readLong();
+                    String codec = in.readUTF().intern();
+                    int hashLength = in.readUnsignedByte();
+                    byte[] hash = null;
+                    if (hashLength == HASH_LENGTH) {
+                        hash = new byte[HASH_LENGTH];
+                        in.readFully(hash);
+                    } else if (hashLength != 0) {
+                        throw new IOException("bad hash length");
+                    }
+                    entries.put(name, new Entry(name, size, length, modified, codec, hash));
+                }
+                return dirModified;
+            } catch (IOException e) {
+                String reason = e instanceof EOFException ? "truncated" : e.getMessage();
+                System.err.println("Ignoring file index for " + user + ": " + reason);
+                entries.clear();
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Server file I/O on FileChannel with pooled buffers.
+ *
+ * TLS connections are streams, so their data passes through a pooled array;
+ * file reads and writes go through the paired direct buffer, or a memory map
+ * for large reads. Connections on the plain listener are channels, and use
+ * transferTo (sendfile) for downloads. Uploads are received by WriteBehind,
+ * through direct buffers even on plain channels: every upload is checksummed
+ * as it arrives, which needs its bytes in memory, and transferFrom from a
+ * socket copies through a small buffer of its own anyway, so there is no
+ * zero-copy upload path.
+ *
+ * Tuning: -Dserver.io.bufferSize (default 256 KiB), -Dserver.io.pooledBuffers,
+ * the most direct buffers the pool allocates (default 64, see BufferPool), and
+ * -Dserver.io.mapThreshold, the smallest read that is memory mapped (default
+ * 16 MiB).
+ *
+ * Every method asks its TransferScheduler.Transfer for each block before
+ * moving it, which is where bandwidth limits are applied.
+ */
+class FileTransfer {
+    private static final int BUFFER_SIZE = Integer.getInteger("server.io.bufferSize", 256 * 1024);
+    // Also used by WriteBehind
+    static final BufferPool pool = new BufferPool(BUFFER_SIZE,
+            Integer.getInteger("server.io.pooledBuffers", 64));
+    private static final long MAP_THRESHOLD = Long.getLong("server.io.mapThreshold", 16L * 1024 * 1024);
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+    private FileTransfer() {
+    }
+
+    // Copies length bytes of file from position to out
+    static void send(FileChannel file, long position, long length, OutputStream out,
+                     TransferScheduler.Transfer transfer) throws IOException {
+        if (length >= MAP_THRESHOLD) {
+            sendMapped(file, position, length, out, transfer);
+        } else {
+            sendBuffered(file, position, length, out, transfer);
+        }
+    }
+
+    // Large reads copy straight out of the page cache
+    static void sendMapped(FileChannel file, long position, long length, OutputStream out,
+                           TransferScheduler.Transfer transfer) throws IOException {
+        BufferPool.PooledBuffer buffer = pool.acquire();
+        try {
+            long end = position + length;
+            while (position < end) {
+                long window = Math.min(MAP_WINDOW, end - position);
+                MappedByteBuffer mapped = file.map(FileChannel.MapMode.READ_ONLY, position, window);
+                while (mapped.hasRemaining()) {
+                    int n = Math.min(buffer.direct.capacity(), mapped.remaining());
+                    mapped.get(buffer.array(), 0, n);
+                    transfer.acquire(n);
+                    out.write(buffer.array(), 0, n);
+                }
+                position += window;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    static void sendBuffered(FileChannel file, long position, long length, OutputStream out,
+                             TransferScheduler.Transfer transfer) throws IOException {
+        BufferPool.PooledBuffer buffer = pool.acquire();
+        try {
+            ByteBuffer direct = buffer.direct;
+            long remaining = length;
+            while (remaining > 0) {
+                direct.clear().limit((int) Math.min(direct.capacity(), remaining));
+                int bytesRead = file.read(direct, position);
+                if (bytesRead == -1) {
+                    throw new EOFException("File shorter than expected");
+                }
+                direct.flip();
+                direct.get(buffer.array(), 0, bytesRead);
+                transfer.acquire(bytesRead);
+                out.write(buffer.array(), 0, bytesRead);
+                position += bytesRead;
+                remaining -= bytesRead;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    static void send(FileChannel file, long position, long length, WritableByteChannel out,
+                     TransferScheduler.Transfer transfer) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            // A throttled transfer goes one buffer's worth at a time
+            long step = transfer.isLimited() ? Math.min(BUFFER_SIZE, end - position) : end - position;
+            transfer.acquire((int) Math.min(step, Integer.MAX_VALUE));
+            long sent = file.transferTo(position, step, out);
+            if (sent <= 0 && position >= file.size()) {
+                throw new EOFException("File shorter than expected");
+            }
+            position += sent;
+        }
+    }
+
+    // Copies data held in a (direct) buffer to out through a pooled array
+    static void send(ByteBuffer data, OutputStream out, TransferScheduler.Transfer transfer) throws IOException {
+        BufferPool.PooledBuffer buffer = pool.acquire();
+        try {
+            while (data.hasRemaining()) {
+                int n = Math.min(buffer.direct.capacity(), data.remaining());
+                data.get(buffer.array(), 0, n);
+                transfer.acquire(n);
+                out.write(buffer.array(), 0, n);
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    static void send(ByteBuffer data, WritableByteChannel out, TransferScheduler.Transfer transfer)
+            throws IOException {
+        while (data.hasRemaining()) {
+            int n = Math.min(BUFFER_SIZE, data.remaining());
+            transfer.acquire(n);
+            ByteBuffer block = data.duplicate();
+            block.limit(block.position() + n);
+            while (block.hasRemaining()) {
+                out.write(block);
+            }
+            data.position(block.position());
+        }
+    }
+
+    // Copies any stream to out through a pooled array, for data that is not a plain file
+    static void copy(InputStream in, long length, OutputStream out, TransferScheduler.Transfer transfer)
+            throws IOException {
+        BufferPool.PooledBuffer buffer = pool.acquire();
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                int bytesRead = in.read(buffer.array(), 0, (int) Math.min(buffer.direct.capacity(), remaining));
+                if (bytesRead == -1) {
+                    throw new EOFException("Stream shorter than expected");
+                }
+                transfer.acquire(bytesRead);
+                out.write(buffer.array(), 0, bytesRead);
+                remaining -= bytesRead;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+}
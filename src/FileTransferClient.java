@@ -0,0 +1,152 @@
+import javax.crypto.SecretKey;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Thread-safe client API for scripts and other programs.
+ *
+ * Every call borrows an authenticated connection from a ConnectionPool and
+ * hands it back afterwards, so the TLS handshake and login are paid once per
+ * pooled connection instead of once per operation, and concurrent calls run
+ * on separate connections. Files are encrypted with the key derived from the
+ * password exactly as the interactive Client does, so either can download
+ * what the other uploaded. The trust store comes from the javax.net.ssl
+ * system properties, as for Client.
+ *
+ *   try (FileTransferClient client = new FileTransferClient("localhost", 8444, user, password, 4)) {
+ *       client.upload(new File("report.txt"), "report.txt", false);
+ *       client.download("report.txt", new File("copy.txt"));
+ *   }
+ */
+public class FileTransferClient implements Closeable {
+    private static final int DEFLATE_LEVEL = Integer.getInteger("client.deflateLevel", 6);
+
+    /** One page of LIST output. */
+    public static final class Listing {
+        // File names, or the detailed lines if the options included long
+        public final List<String> files;
+        // Pass as cursor=<value> for the next page; null on the last page
+        public final String cursor;
+
+        private Listing(List<String> files, String cursor) {
+            this.files = Collections.unmodifiableList(files);
+            this.cursor = cursor;
+        }
+    }
+
+    private interface Operation<T> {
+        T run(ClientConnection connection) throws Exception;
+    }
+
+    private final ConnectionPool pool;
+    private final SecretKey key;
+
+    public FileTransferClient(String host, int port, String username, String password, int maxConnections) {
+        this.pool = new ConnectionPool(host, port, username, password, maxConnections);
+        try {
+            this.key = Client.deriveKeyFromPassword(password);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /** Uploads file as remoteName, compressed first if compress is set and it helps. */
+    public void upload(File file, String remoteName, boolean compress) throws IOException {
+        Crc32c sent = new Crc32c();
+        String response = execute(connection -> {
+            sent.reset();
+            try (Compression.Prepared upload = Compression.prepare(file, compress ? DEFLATE_LEVEL : -1)) {
+                long plainLength = upload.length();
+                return connection.request("UPLOAD " + remoteName, ChunkedCipher.encryptedLength(plainLength),
+                        out -> {
+                            try (InputStream in = new BufferedInputStream(new FileInputStream(upload.source))) {
+                                ChunkedCipher.encrypt(key, in, plainLength, new CheckedOutputStream(out, sent),
+                                        upload.magic);
+                            }
+                        });
+            }
+        });
+        if (!response.startsWith("SUCCESS")) {
+            throw new IOException(response);
+        }
+        long stored = Crc32c.find(response);
+        if (stored != -1 && stored != sent.getValue()) {
+            throw new IOException("Checksum mismatch: sent crc32c=" + Crc32c.format(sent.getValue())
+                    + ", server stored " + Crc32c.format(stored));
+        }
+    }
+
+    /** Downloads remoteName into target, which is only replaced once the whole file has been decrypted. */
+    public void download(String remoteName, File target) throws IOException {
+        File partFile = new File(target.getPath() + ".part");
+        execute(connection -> {
+            BoundedInputStream body = connection.openDownload(remoteName);
+            CheckedInputStream received = new CheckedInputStream(body, new Crc32c());
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(partFile))) {
+                Client.decryptTo(key, received, body.remaining(), out);
+                Client.checkDownload(received, connection.bodyChecksum());
+            } catch (Exception e) {
+                partFile.delete();
+                throw e;
+            }
+            Files.move(partFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return null;
+        });
+    }
+
+    /** Lists files; options are those of the LIST command, for example "prefix=log sort=size limit=100". */
+    public Listing list(String options) throws IOException {
+        List<String> lines = execute(connection -> connection.list(options));
+        String first = lines.get(0);
+        if (first.startsWith("No files")) {
+            return new Listing(new ArrayList<>(), null);
+        }
+        if (!first.startsWith("Files: ")) {
+            throw new IOException(first);
+        }
+        String end = lines.get(lines.size() - 1);
+        return new Listing(new ArrayList<>(lines.subList(1, lines.size() - 1)),
+                end.startsWith("END ") ? end.substring(4) : null);
+    }
+
+    /** Connections opened so far; each one cost a handshake and a login. */
+    public long connectionsOpened() {
+        return pool.connectionsOpened();
+    }
+
+    private <T> T execute(Operation<T> operation) throws IOException {
+        ClientConnection connection = pool.borrow();
+        try {
+            T result = operation.run(connection);
+            pool.release(connection);
+            return result;
+        } catch (Exception e) {
+            // The connection may have been left part way through a body
+            pool.discard(connection);
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+}
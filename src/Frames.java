@@ -0,0 +1,225 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary frame protocol, switched to after login with "PROTOCOL 2".
+ *
+ * Every frame is a one byte type, a four byte request id and a four byte
+ * payload length, followed by the payload. A client sends a REQUEST frame
+ * (body length plus command line) followed by the request body as DATA frames,
+ * and may send further requests without waiting. The server answers each
+ * request in order with RESPONSE lines and DATA frames, and closes it with an
+ * END frame. There are no READY/SIZE round trips in this mode.
+ */
+class Frames {
+    static final int VERSION = 2;
+    static final int HEADER_LENGTH = 9;
+    static final int MAX_DATA_LENGTH = 64 * 1024;
+    private static final int MAX_PAYLOAD_LENGTH = MAX_DATA_LENGTH + 1024;
+
+    static final byte REQUEST = 1;
+    static final byte DATA = 2;
+    static final byte RESPONSE = 3;
+    static final byte END = 4;
+
+    private Frames() {
+    }
+
+    static class Frame {
+        final byte type;
+        final int requestId;
+        final byte[] payload;
+
+        Frame(byte type, int requestId, byte[] payload) {
+            this.type = type;
+            this.requestId = requestId;
+            this.payload = payload;
+        }
+
+        String text() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+
+        // REQUEST payload: body length followed by the command line
+        long bodyLength() {
+            return ByteBuffer.wrap(payload).getLong();
+        }
+
+        String command() {
+            return new String(payload, 8, payload.length - 8, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Returns null if the stream ends cleanly between frames
+    static Frame read(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type == -1) {
+            return null;
+        }
+        int requestId = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+
+        Frame frame = new Frame((byte) type, requestId, payload);
+        if (frame.type == REQUEST && length < 8) {
+            throw new IOException("Malformed request frame");
+        }
+        return frame;
+    }
+
+    static void write(DataOutputStream out, byte type, int requestId, byte[] payload, int offset, int length)
+            throws IOException {
+        // One write per frame, so each frame goes out as few TLS records as possible
+        byte[] frame = new byte[HEADER_LENGTH + length];
+        ByteBuffer.wrap(frame).put(type).putInt(requestId).putInt(length).put(payload, offset, length);
+        out.write(frame);
+    }
+
+    static void writeText(DataOutputStream out, byte type, int requestId, String text) throws IOException {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        write(out, type, requestId, payload, 0, payload.length);
+    }
+
+    static void writeRequest(DataOutputStream out, int requestId, long bodyLength, String command) throws IOException {
+        byte[] commandBytes = command.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = ByteBuffer.allocate(8 + commandBytes.length).putLong(bodyLength).put(commandBytes).array();
+        write(out, REQUEST, requestId, payload, 0, payload.length);
+    }
+
+    // Writes a body as DATA frames of up to MAX_DATA_LENGTH bytes; the frame
+    // header is filled in at the front of the buffer before each write
+    static class BodyOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final int requestId;
+        private final byte[] buffer = new byte[HEADER_LENGTH + MAX_DATA_LENGTH];
+        private int count = HEADER_LENGTH;
+
+        BodyOutputStream(DataOutputStream out, int requestId) {
+            this.out = out;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                writeFrame();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == buffer.length) {
+                    writeFrame();
+                }
+                int n = Math.min(length, buffer.length - count);
+                System.arraycopy(data, offset, buffer, count, n);
+                count += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        private void writeFrame() throws IOException {
+            if (count > HEADER_LENGTH) {
+                ByteBuffer.wrap(buffer).put(DATA).putInt(requestId).putInt(count - HEADER_LENGTH);
+                out.write(buffer, 0, count);
+                count = HEADER_LENGTH;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeFrame();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The connection stays open for the next request
+            flush();
+        }
+    }
+
+    // Reads exactly one body of a known length from consecutive DATA frames
+    static class BodyInputStream extends InputStream {
+        private final DataInputStream in;
+        private final int requestId;
+        private long remaining;
+        private byte[] frame = new byte[0];
+        private int position;
+
+        BodyInputStream(DataInputStream in, int requestId, long length) {
+            this.in = in;
+            this.requestId = requestId;
+            this.remaining = length;
+        }
+
+        private boolean fill() throws IOException {
+            while (position == frame.length) {
+                if (remaining == 0) {
+                    return false;
+                }
+                Frame next = Frames.read(in);
+                if (next == null) {
+                    throw new EOFException("Connection closed during transfer");
+                }
+                if (next.type != DATA || next.requestId != requestId || next.payload.length > remaining) {
+                    throw new IOException("Unexpected frame in body of request " + requestId);
+                }
+                frame = next.payload;
+                position = 0;
+                remaining -= frame.length;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? frame[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(length, frame.length - position);
+            System.arraycopy(frame, position, buffer, offset, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return frame.length - position;
+        }
+
+        @Override
+        public void close() {
+            // The connection stays open for the next request
+        }
+
+        // Skips whatever the reader left unread, keeping the stream in sync
+        void drain() throws IOException {
+            position = frame.length;
+            while (fill()) {
+                position = frame.length;
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size, lock-free latency histogram in the style of HdrHistogram.
+ *
+ * Values are recorded in microseconds into log-linear buckets: exact below
+ * 64, and above that every power of two is split into 32 equal buckets, so a
+ * bucket is never wider than about 3% of its values. Recording is a few
+ * atomic increments and allocates nothing, so it can run on every command.
+ * Values above an hour are counted as an hour.
+ */
+class LatencyHistogram implements LatencyHistogramMXBean {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final long MAX_MICROS = 3_600_000_000L;
+
+    private final AtomicLongArray counts = new AtomicLongArray(index(MAX_MICROS) + 1);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos) {
+        long micros = Math.min(Math.max(nanos / 1000, 0), MAX_MICROS);
+        counts.incrementAndGet(index(micros));
+        count.increment();
+        sum.add(micros);
+        max.accumulate(micros);
+    }
+
+    private static int index(long micros) {
+        if (micros < LINEAR_LIMIT) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int mantissa = (int) (micros >>> shift);
+        return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+    }
+
+    // Largest value that falls in a bucket
+    private static long highestValue(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int exponent = (index - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        int mantissa = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((long) (mantissa + 1) << shift) - 1;
+    }
+
+    // Value in microseconds below which the given fraction of the recorded values fall
+    long percentile(double fraction) {
+        long total = 0;
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / 1000.0 / n;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return percentile(0.50) / 1000.0;
+    }
+
+    @Override
+    public double getP90Millis() {
+        return percentile(0.90) / 1000.0;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return percentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getP999Millis() {
+        return percentile(0.999) / 1000.0;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return max.get() / 1000.0;
+    }
+
+    // count=<n> mean=<ms> p50=<ms> p90=<ms> p99=<ms> p999=<ms> max=<ms>
+    String summary() {
+        return String.format("count=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f p999=%.2f max=%.2f", getCount(),
+                getMeanMillis(), getP50Millis(), getP90Millis(), getP99Millis(), getP999Millis(), getMaxMillis());
+    }
+}
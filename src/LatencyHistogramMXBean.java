@@ -0,0 +1,20 @@
+/**
+ * Latency distribution of one server operation, registered as
+ * SecureFileTransfer:type=Latency,name=<operation>. Times are in
+ * milliseconds and accurate to about 3%.
+ */
+public interface LatencyHistogramMXBean {
+    long getCount();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    double getMaxMillis();
+}
@@ -0,0 +1,675 @@
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking server engine, selected with -Dserver.engine=nio.
+ *
+ * A few selector event loops own every connection and run TLS through an
+ * SSLEngine. Decrypted input is queued per session, and the session's
+ * ClientHandler only borrows a thread from a bounded worker pool while a
+ * complete command is waiting or a command is in flight. Idle sessions
+ * therefore cost a selection key and an SSLEngine, but no thread and no
+ * network buffers.
+ *
+ * Since idle sessions are cheap to hold, the event loops close the ones that
+ * have not logged in within -Dserver.nio.handshakeTimeout seconds (default
+ * 30), or have sent nothing with no command in flight for
+ * -Dserver.nio.idleTimeout seconds (default 300, 0 for never). A command line
+ * must fit in INPUT_HIGH_WATER; a longer one fails the session.
+ */
+class NioServer {
+    // Reading from a session pauses while this much input is queued for its handler
+    private static final int INPUT_HIGH_WATER = 1024 * 1024;
+    // Handler writes block while this much output is waiting for the socket
+    private static final int OUTPUT_HIGH_WATER = 256 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final long HANDSHAKE_TIMEOUT_NANOS =
+            TimeUnit.SECONDS.toNanos(Long.getLong("server.nio.handshakeTimeout", 30));
+    private static final long IDLE_TIMEOUT_NANOS =
+            TimeUnit.SECONDS.toNanos(Long.getLong("server.nio.idleTimeout", 300));
+    // How often each event loop looks for sessions past those timeouts
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final int port;
+    private final SSLContext sslContext;
+    private final EventLoop[] eventLoops;
+    private final ExecutorService workers;
+    private final int workerCount;
+    private final int packetBufferSize;
+    private final int applicationBufferSize;
+
+    NioServer(int port, SSLContext sslContext, int eventLoopCount, int workerCount) throws IOException {
+        this.port = port;
+        this.sslContext = sslContext;
+        this.workerCount = workerCount;
+
+        SSLEngine probe = sslContext.createSSLEngine();
+        this.packetBufferSize = probe.getSession().getPacketBufferSize();
+        this.applicationBufferSize = probe.getSession().getApplicationBufferSize();
+
+        AtomicInteger workerIds = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, task -> {
+            Thread thread = new Thread(task, "nio-worker-" + workerIds.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop("nio-loop-" + i);
+        }
+    }
+
+    void run() throws IOException {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            for (EventLoop loop : eventLoops) {
+                loop.start();
+            }
+            System.out.println("Server started on port " + port + " (nio engine, " + eventLoops.length
+                    + " event loops, " + workerCount + " workers)");
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                System.out.println("Client connected: " + channel.socket().getInetAddress());
+
+                SSLEngine engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                eventLoops[next++ % eventLoops.length].register(channel, engine);
+            }
+        }
+    }
+
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Shared by every session on this loop; a session only keeps buffers of
+        // its own while it holds a partial TLS record or unsent ciphertext
+        private final ByteBuffer netInScratch = ByteBuffer.allocate(packetBufferSize);
+        private final ByteBuffer netOutScratch = ByteBuffer.allocate(packetBufferSize);
+        private final ByteBuffer appScratch = ByteBuffer.allocate(applicationBufferSize);
+        private long lastSweep = System.nanoTime();
+
+        EventLoop(String name) throws IOException {
+            super(name);
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel, SSLEngine engine) {
+            execute(() -> {
+                Session session = new Session(this, channel, engine);
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                    engine.beginHandshake();
+                    session.flushOutbound();
+                } catch (IOException e) {
+                    System.err.println("Error handling client: " + e.getMessage());
+                    session.close();
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != this) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(SWEEP_INTERVAL_MILLIS);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Session session = (Session) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                session.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                session.flushOutbound();
+                            }
+                        } catch (IOException e) {
+                            session.close();
+                        }
+                    }
+
+                    long now = System.nanoTime();
+                    if (now - lastSweep >= TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS)) {
+                        lastSweep = now;
+                        closeExpired(now);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Event loop error: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void closeExpired(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Session session = (Session) key.attachment();
+                if (session == null) {
+                    continue;
+                }
+                String reason = session.expired(now);
+                if (reason != null) {
+                    System.out.println("Closing session: " + reason);
+                    session.close();
+                }
+            }
+        }
+    }
+
+    private class Session implements Runnable {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SSLEngine engine;
+        private final SessionInput input = new SessionInput();
+        private final SessionOutput output = new SessionOutput();
+        private final Server.ClientHandler handler;
+        private SelectionKey key;
+
+        // Event loop state
+        private ByteBuffer pendingNetIn;
+        private ByteBuffer pendingNetOut;
+        private boolean promptSent;
+        private boolean closeRequested;
+        private boolean closed;
+        private final long openedAt = System.nanoTime();
+        private long lastActivity = openedAt;
+
+        // Worker state; scheduled and stalled are guarded by the input lock
+        private boolean scheduled;
+        private boolean stalled;
+        private volatile boolean authenticated;
+
+        Session(EventLoop loop, SocketChannel channel, SSLEngine engine) {
+            this.loop = loop;
+            this.channel = channel;
+            this.engine = engine;
+            this.handler = new Server.ClientHandler(input, output);
+            Server.metrics.connectionOpened();
+        }
+
+        void onReadable() throws IOException {
+            ByteBuffer netIn = pendingNetIn;
+            if (netIn == null) {
+                netIn = loop.netInScratch;
+                netIn.clear();
+            }
+
+            int read = channel.read(netIn);
+            if (read < 0) {
+                close();
+                return;
+            }
+            if (read > 0) {
+                lastActivity = System.nanoTime();
+            }
+
+            netIn.flip();
+            unwrap(netIn);
+            if (closed) {
+                return;
+            }
+
+            // Keep any partial TLS record until the rest of it arrives
+            if (!netIn.hasRemaining()) {
+                pendingNetIn = null;
+            } else if (netIn == pendingNetIn) {
+                netIn.compact();
+            } else {
+                pendingNetIn = ByteBuffer.allocate(packetBufferSize);
+                pendingNetIn.put(netIn);
+            }
+        }
+
+        private void unwrap(ByteBuffer netIn) throws IOException {
+            while (netIn.hasRemaining() && !closed) {
+                ByteBuffer app = loop.appScratch;
+                app.clear();
+                SSLEngineResult result = engine.unwrap(netIn, app);
+                app.flip();
+                if (app.hasRemaining()) {
+                    input.append(app);
+                }
+
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        return;
+                    case BUFFER_OVERFLOW:
+                        throw new SSLException("Unexpected TLS record size");
+                    case CLOSED:
+                        close();
+                        return;
+                    default:
+                        break;
+                }
+
+                boolean ranTasks = afterHandshakeStep(result);
+                if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                    flushOutbound();
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0 && !ranTasks) {
+                    return;
+                }
+            }
+        }
+
+        private boolean afterHandshakeStep(SSLEngineResult result) {
+            // Key exchange work is short, so it runs inline on the event loop
+            boolean ranTasks = false;
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+                ranTasks = true;
+            }
+
+            if (result.getHandshakeStatus() == HandshakeStatus.FINISHED && !promptSent) {
+                promptSent = true;
+                Server.metrics.handshakeFinished(System.nanoTime() - openedAt);
+                handler.sendLoginPrompt();
+            }
+            return ranTasks;
+        }
+
+        void flushOutbound() {
+            if (closed) {
+                return;
+            }
+
+            try {
+                while (true) {
+                    if (pendingNetOut != null) {
+                        if (channel.write(pendingNetOut) > 0) {
+                            lastActivity = System.nanoTime();
+                        }
+                        if (pendingNetOut.hasRemaining()) {
+                            setInterest(SelectionKey.OP_WRITE, true);
+                            return;
+                        }
+                        pendingNetOut = null;
+                    }
+
+                    if (engine.isOutboundDone()) {
+                        close();
+                        return;
+                    }
+
+                    HandshakeStatus status = engine.getHandshakeStatus();
+                    boolean handshaking = status != HandshakeStatus.NOT_HANDSHAKING
+                            && status != HandshakeStatus.FINISHED;
+                    if (handshaking && status != HandshakeStatus.NEED_WRAP) {
+                        break;
+                    }
+
+                    ByteBuffer net = loop.netOutScratch;
+                    net.clear();
+                    SSLEngineResult result;
+                    synchronized (output) {
+                        ByteBuffer source = handshaking ? EMPTY : output.head();
+                        if (source == null) {
+                            if (!closeRequested) {
+                                break;
+                            }
+                            engine.closeOutbound();
+                            continue;
+                        }
+                        result = engine.wrap(source, net);
+                        if (source != EMPTY) {
+                            output.consumed(source, result.bytesConsumed());
+                        }
+                    }
+                    afterHandshakeStep(result);
+
+                    net.flip();
+                    if (channel.write(net) > 0) {
+                        lastActivity = System.nanoTime();
+                    }
+                    if (net.hasRemaining()) {
+                        pendingNetOut = ByteBuffer.allocate(net.remaining());
+                        pendingNetOut.put(net);
+                        pendingNetOut.flip();
+                    }
+                }
+                setInterest(SelectionKey.OP_WRITE, false);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void setInterest(int op, boolean enabled) {
+            if (key != null && key.isValid()) {
+                int ops = key.interestOps();
+                key.interestOps(enabled ? ops | op : ops & ~op);
+            }
+        }
+
+        // Runs on a worker thread; handles command lines until the session goes idle
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    synchronized (input) {
+                        if (!hasWork()) {
+                            scheduled = false;
+                            failIfStalled();
+                            return;
+                        }
+                    }
+
+                    boolean keepOpen;
+                    if (authenticated) {
+                        keepOpen = handler.processNext();
+                    } else {
+                        keepOpen = authenticated = handler.authenticate(handler.readLine());
+                    }
+                    if (!keepOpen) {
+                        requestClose();
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error handling client: " + e.getMessage());
+                requestClose();
+            }
+        }
+
+        // A full command line, or at least a frame header once the client has
+        // switched to frames, is waiting; called with the input lock held
+        private boolean hasWork() {
+            return handler.isFramed() ? input.available() >= Frames.HEADER_LENGTH : input.hasLine();
+        }
+
+        // Called with the input lock held whenever new input arrives
+        private void scheduleIfReady() {
+            if (!scheduled && hasWork()) {
+                scheduled = true;
+                workers.execute(this);
+            }
+        }
+
+        // Called with the input lock held. Reading pauses at INPUT_HIGH_WATER
+        // queued bytes; if no worker is taking them and they hold no complete
+        // command (a command line that long, say), none ever arrives
+        private void failIfStalled() {
+            if (!scheduled && input.readPaused && !stalled) {
+                stalled = true;
+                loop.execute(() -> {
+                    try {
+                        // From the event loop, so this never waits for the output to drain
+                        output.write(("FAILED: Command line too long" + System.lineSeparator()).getBytes());
+                    } catch (IOException e) {
+                        // Closed already
+                    }
+                    closeRequested = true;
+                    flushOutbound();
+                });
+            }
+        }
+
+        // Returns why the session should be closed, or null; event loop side
+        String expired(long now) {
+            if (!authenticated) {
+                return now - openedAt > HANDSHAKE_TIMEOUT_NANOS ? "no login in time" : null;
+            }
+            if (IDLE_TIMEOUT_NANOS <= 0 || now - lastActivity <= IDLE_TIMEOUT_NANOS) {
+                return null;
+            }
+            synchronized (input) {
+                // A command in flight may take its time, a long download say
+                return scheduled ? null : "idle";
+            }
+        }
+
+        private void requestClose() {
+            loop.execute(() -> {
+                closeRequested = true;
+                flushOutbound();
+            });
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            Server.metrics.connectionClosed();
+            input.close();
+            output.close();
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            System.out.println("Client disconnected");
+        }
+
+        // Decrypted bytes waiting to be consumed by the handler
+        private class SessionInput extends InputStream {
+            private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+            private int headPosition;
+            private int available;
+            private boolean readPaused;
+            private boolean eof;
+
+            // Event loop side
+            synchronized void append(ByteBuffer data) {
+                byte[] chunk = new byte[data.remaining()];
+                data.get(chunk);
+                chunks.add(chunk);
+                available += chunk.length;
+                notifyAll();
+
+                if (available >= INPUT_HIGH_WATER && !readPaused) {
+                    readPaused = true;
+                    setInterest(SelectionKey.OP_READ, false);
+                }
+                scheduleIfReady();
+                failIfStalled();
+            }
+
+            synchronized boolean hasLine() {
+                int position = headPosition;
+                for (byte[] chunk : chunks) {
+                    for (int i = position; i < chunk.length; i++) {
+                        if (chunk[i] == '\n') {
+                            return true;
+                        }
+                    }
+                    position = 0;
+                }
+                return false;
+            }
+
+            @Override
+            public synchronized int read() throws IOException {
+                if (!awaitData()) {
+                    return -1;
+                }
+                byte[] head = chunks.peek();
+                int b = head[headPosition++] & 0xff;
+                if (headPosition == head.length) {
+                    chunks.poll();
+                    headPosition = 0;
+                }
+                available--;
+                resumeReadingIfDrained();
+                return b;
+            }
+
+            @Override
+            public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                if (!awaitData()) {
+                    return -1;
+                }
+
+                int total = 0;
+                while (total < length && !chunks.isEmpty()) {
+                    byte[] head = chunks.peek();
+                    int count = Math.min(length - total, head.length - headPosition);
+                    System.arraycopy(head, headPosition, buffer, offset + total, count);
+                    total += count;
+                    headPosition += count;
+                    if (headPosition == head.length) {
+                        chunks.poll();
+                        headPosition = 0;
+                    }
+                }
+                available -= total;
+                resumeReadingIfDrained();
+                return total;
+            }
+
+            private boolean awaitData() throws IOException {
+                while (available == 0) {
+                    if (eof) {
+                        return false;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                return true;
+            }
+
+            private void resumeReadingIfDrained() {
+                if (readPaused && available < INPUT_HIGH_WATER / 2) {
+                    readPaused = false;
+                    loop.execute(() -> setInterest(SelectionKey.OP_READ, true));
+                }
+            }
+
+            @Override
+            public synchronized int available() {
+                return available;
+            }
+
+            @Override
+            public synchronized void close() {
+                eof = true;
+                notifyAll();
+            }
+        }
+
+        // Plaintext waiting to be wrapped and written by the event loop
+        private class SessionOutput extends OutputStream {
+            private static final int CHUNK_SIZE = 16 * 1024;
+            private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+            private final AtomicBoolean flushScheduled = new AtomicBoolean();
+            private int queued;
+            private boolean outputClosed;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+                // The event loop only writes the login prompt, which never blocks
+                while (queued >= OUTPUT_HIGH_WATER && !outputClosed && Thread.currentThread() != loop) {
+                    flush();
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (outputClosed) {
+                    throw new IOException("Connection closed");
+                }
+
+                // Chunks are kept in read mode; small writes are appended to the tail
+                ByteBuffer tail = chunks.peekLast();
+                if (tail != null && tail.capacity() - tail.limit() >= length) {
+                    System.arraycopy(buffer, offset, tail.array(), tail.limit(), length);
+                    tail.limit(tail.limit() + length);
+                } else {
+                    ByteBuffer chunk = ByteBuffer.allocate(Math.max(length, CHUNK_SIZE));
+                    chunk.put(buffer, offset, length);
+                    chunk.flip();
+                    chunks.add(chunk);
+                }
+                queued += length;
+            }
+
+            @Override
+            public void flush() {
+                if (flushScheduled.compareAndSet(false, true)) {
+                    loop.execute(() -> {
+                        flushScheduled.set(false);
+                        flushOutbound();
+                    });
+                }
+            }
+
+            // Event loop side, called with this lock held
+            ByteBuffer head() {
+                return chunks.peek();
+            }
+
+            void consumed(ByteBuffer chunk, int bytes) {
+                if (!chunk.hasRemaining()) {
+                    chunks.poll();
+                }
+                if (bytes > 0) {
+                    queued -= bytes;
+                    notifyAll();
+                }
+            }
+
+            @Override
+            public synchronized void close() {
+                outputClosed = true;
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The ChunkedCipher format encrypted and decrypted on several cores.
+ *
+ * Every record has its own IV and tag and depends on nothing but the header
+ * and its index, so records can be processed in any order. The calling
+ * thread reads a batch of chunks, encrypts or decrypts it on a fork-join pool
+ * while it reads the next batch, and then writes the results in order, so
+ * the output is exactly what the sequential code produces. The pool has
+ * -Dclient.cryptoThreads threads (default: one per core); with one thread,
+ * ChunkedCipher does not use this class.
+ */
+class ParallelCipher {
+    static final int THREADS = Integer.getInteger("client.cryptoThreads", Runtime.getRuntime().availableProcessors());
+    // Smallest file, in chunks, worth spreading over the pool
+    static final int MIN_CHUNKS = 4;
+    private static final int BATCH_CHUNKS = Math.min(64, Math.max(2, THREADS * 2));
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    // Created on first use, so code that never encrypts large files starts no threads
+    private static final class Pool {
+        static final ForkJoinPool INSTANCE = new ForkJoinPool(Math.max(1, THREADS));
+    }
+
+    private static final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new IllegalStateException(TRANSFORMATION + " is not available", e);
+        }
+    });
+
+    // A run of consecutive chunks: plaintext and records side by side. The
+    // arrays are allocated as they are first used, so a small file costs little
+    private static final class Batch {
+        final int chunkSize;
+        final byte[][] plain = new byte[BATCH_CHUNKS][];
+        final byte[][] records = new byte[BATCH_CHUNKS][];
+        final int[] plainLengths = new int[BATCH_CHUNKS];
+        final int[] recordLengths = new int[BATCH_CHUNKS];
+        long firstIndex;
+        int count;
+        boolean containsLast;
+        volatile GeneralSecurityException failure;
+
+        Batch(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        // Makes sure slot i has its arrays
+        void prepare(int i) {
+            if (plain[i] == null) {
+                plain[i] = new byte[chunkSize];
+                records[i] = new byte[chunkSize + ChunkedCipher.CHUNK_OVERHEAD];
+            }
+        }
+
+        void process(byte[] header, SecretKey key, boolean encrypt) {
+            if (count < MIN_CHUNKS) {
+                // Not worth handing over to the pool
+                for (int i = 0; i < count; i++) {
+                    new ChunkTask(this, header, key, encrypt, i, i + 1).compute();
+                }
+            } else {
+                Pool.INSTANCE.invoke(new ChunkTask(this, header, key, encrypt, 0, count));
+            }
+        }
+    }
+
+    // Splits a batch in halves until single chunks are left, the usual fork-join way
+    private static final class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Batch batch;
+        private final byte[] header;
+        private final SecretKey key;
+        private final boolean encrypt;
+        private final int from;
+        private final int to;
+
+        ChunkTask(Batch batch, byte[] header, SecretKey key, boolean encrypt, int from, int to) {
+            this.batch = batch;
+            this.header = header;
+            this.key = key;
+            this.encrypt = encrypt;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ChunkTask(batch, header, key, encrypt, from, middle),
+                        new ChunkTask(batch, header, key, encrypt, middle, to));
+                return;
+            }
+            long index = batch.firstIndex + from;
+            boolean last = batch.containsLast && from == batch.count - 1;
+            try {
+                if (encrypt) {
+                    batch.recordLengths[from] = ChunkedCipher.encryptChunk(ciphers.get(), key, header, index, last,
+                            batch.plain[from], batch.plainLengths[from], batch.records[from]);
+                } else {
+                    batch.plainLengths[from] = ChunkedCipher.decryptChunk(ciphers.get(), key, header, index, last,
+                            batch.records[from], batch.recordLengths[from], batch.plain[from]);
+                }
+            } catch (GeneralSecurityException e) {
+                batch.failure = e;
+            }
+        }
+    }
+
+    private ParallelCipher() {
+    }
+
+    // Encrypts the records of plainLength bytes from in, after the header the caller has written
+    static void encrypt(SecretKey key, byte[] header, InputStream in, long plainLength, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        int chunkSize = ChunkedCipher.chunkSize(header);
+        long chunks = ChunkedCipher.chunkCount(plainLength, chunkSize);
+        DataInputStream dataIn = new DataInputStream(in);
+        Batch current = new Batch(chunkSize);
+        Batch next = new Batch(chunkSize);
+
+        long index = readPlain(dataIn, current, 0, chunks, plainLength, chunkSize);
+        while (true) {
+            Batch submitted = current;
+            ForkJoinTask<?> running = Pool.INSTANCE.submit(() -> submitted.process(header, key, true));
+            // Read ahead while the pool encrypts
+            boolean more = index < chunks;
+            if (more) {
+                index = readPlain(dataIn, next, index, chunks, plainLength, chunkSize);
+            }
+            running.join();
+            if (current.failure != null) {
+                throw current.failure;
+            }
+            for (int i = 0; i < current.count; i++) {
+                out.write(current.records[i], 0, current.recordLengths[i]);
+            }
+            if (!more) {
+                return;
+            }
+            Batch done = current;
+            current = next;
+            next = done;
+        }
+    }
+
+    private static long readPlain(DataInputStream in, Batch batch, long index, long chunks, long plainLength,
+                                  int chunkSize) throws IOException {
+        batch.firstIndex = index;
+        batch.count = 0;
+        while (batch.count < BATCH_CHUNKS && index < chunks) {
+            boolean last = index == chunks - 1;
+            int length = last ? (int) (plainLength % chunkSize) : chunkSize;
+            batch.prepare(batch.count);
+            in.readFully(batch.plain[batch.count], 0, length);
+            batch.plainLengths[batch.count] = length;
+            batch.count++;
+            index++;
+        }
+        batch.containsLast = index == chunks;
+        return index;
+    }
+
+    // Decrypts the records that follow header in in, up to the last one, to out
+    static void decrypt(SecretKey key, byte[] header, InputStream in, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        int chunkSize = ChunkedCipher.chunkSize(header);
+        Batch current = new Batch(chunkSize);
+        Batch next = new Batch(chunkSize);
+
+        readRecords(in, current, 0);
+        while (true) {
+            boolean more = !current.containsLast;
+            if (!more && current.firstIndex == 0) {
+                // The whole file is in one batch; no reading to overlap with
+                current.process(header, key, false);
+                if (current.failure != null) {
+                    throw current.failure;
+                }
+                for (int i = 0; i < current.count; i++) {
+                    out.write(current.plain[i], 0, current.plainLengths[i]);
+                }
+                return;
+            }
+            Batch submitted = current;
+            ForkJoinTask<?> running = Pool.INSTANCE.submit(() -> submitted.process(header, key, false));
+            if (more) {
+                readRecords(in, next, current.firstIndex + current.count);
+            }
+            running.join();
+            if (current.failure != null) {
+                throw current.failure;
+            }
+            for (int i = 0; i < current.count; i++) {
+                out.write(current.plain[i], 0, current.plainLengths[i]);
+            }
+            if (!more) {
+                return;
+            }
+            Batch done = current;
+            current = next;
+            next = done;
+        }
+    }
+
+    // The last record is the first one shorter than a full record
+    private static void readRecords(InputStream in, Batch batch, long index) throws IOException {
+        batch.firstIndex = index;
+        batch.count = 0;
+        batch.containsLast = false;
+        while (batch.count < BATCH_CHUNKS && !batch.containsLast) {
+            batch.prepare(batch.count);
+            byte[] record = batch.records[batch.count];
+            int recordLength = ChunkedCipher.readFully(in, record, 0, record.length);
+            if (recordLength < ChunkedCipher.CHUNK_OVERHEAD) {
+                throw new IOException("Truncated encrypted file");
+            }
+            batch.recordLengths[batch.count] = recordLength;
+            batch.containsLast = recordLength < record.length;
+            batch.count++;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Downloads one chunked encrypted file over several connections at once.
+ *
+ * The file is split into segments of whole encrypted records. Each worker
+ * connection fetches segments with DOWNLOAD_RANGE, decrypts them and writes
+ * the plaintext at its offset in a preallocated .part file. Finished segments
+ * are appended to a .progress file, so an interrupted download picks up where
+ * it stopped the next time it is run. A segment whose bytes do not match the
+ * CRC32C the server gives for the range, or whose records fail to decrypt,
+ * is fetched again on its own.
+ */
+class ParallelDownload {
+    // 128 records of 64 KiB, so each range request moves about 8 MiB
+    private static final long SEGMENT_CHUNKS = 128;
+    // Times a segment is fetched before its damage counts as a failure
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final SecretKey key;
+    private final int connections;
+
+    ParallelDownload(String host, int port, String username, String password, SecretKey key, int connections) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.key = key;
+        this.connections = Math.max(1, connections);
+    }
+
+    /**
+     * Downloads filename into outputFile. Returns false without downloading if
+     * the stored file is not in the chunked format and cannot be fetched by range.
+     */
+    boolean download(String filename, File outputFile) throws IOException {
+        long size;
+        byte[] header = new byte[ChunkedCipher.HEADER_LENGTH];
+        try (ClientConnection first = ClientConnection.open(host, port, username, password)) {
+            size = first.stat(filename);
+            if (size < 0) {
+                System.out.println("FAILED: File not found");
+                return true;
+            }
+            if (size < ChunkedCipher.HEADER_LENGTH) {
+                return false;
+            }
+
+            BoundedInputStream headerIn = first.openRange(filename, 0, header.length);
+            ChunkedCipher.readFully(headerIn, header, 0, header.length);
+            headerIn.drain();
+            if (!ChunkedCipher.hasMagic(header)) {
+                return false;
+            }
+        }
+
+        transfer(filename, outputFile, size, header);
+        return true;
+    }
+
+    private void transfer(String filename, File outputFile, long size, byte[] header) throws IOException {
+        int chunkSize = ChunkedCipher.chunkSize(header);
+        long plainLength = ChunkedCipher.plainLength(size, chunkSize);
+        long totalChunks = ChunkedCipher.chunkCount(plainLength, chunkSize);
+        long segments = (totalChunks + SEGMENT_CHUNKS - 1) / SEGMENT_CHUNKS;
+
+        File partFile = new File(outputFile.getPath() + ".part");
+        File progressFile = new File(outputFile.getPath() + ".progress");
+        String identity = size + " " + Base64.getEncoder().encodeToString(header);
+        Set<Long> done = loadProgress(progressFile, partFile, identity, plainLength);
+
+        ConcurrentLinkedQueue<Long> pending = new ConcurrentLinkedQueue<>();
+        for (long segment = 0; segment < segments; segment++) {
+            if (!done.contains(segment)) {
+                pending.add(segment);
+            }
+        }
+        if (!done.isEmpty()) {
+            System.out.println("Resuming download: " + done.size() + " of " + segments + " ranges already present");
+        }
+
+        long start = System.nanoTime();
+        List<Thread> workers = new ArrayList<>();
+        List<Long> failed = new ArrayList<>();
+
+        try (RandomAccessFile part = new RandomAccessFile(partFile, "rw");
+             PrintWriter progress = new PrintWriter(new FileWriter(progressFile, true))) {
+            part.setLength(plainLength);
+            FileChannel channel = part.getChannel();
+
+            int workerCount = Math.min(connections, Math.max(1, pending.size()));
+            for (int i = 0; i < workerCount; i++) {
+                Thread worker = new Thread(() -> {
+                    Long segment = null;
+                    try (ClientConnection c = ClientConnection.open(host, port, username, password)) {
+                        while ((segment = pending.poll()) != null) {
+                            long firstChunk = segment * SEGMENT_CHUNKS;
+                            long count = Math.min(SEGMENT_CHUNKS, totalChunks - firstChunk);
+                            long offset = ChunkedCipher.recordOffset(firstChunk, chunkSize);
+                            long end = Math.min(size, ChunkedCipher.recordOffset(firstChunk + count, chunkSize));
+
+                            for (int attempt = 1; ; attempt++) {
+                                String problem = fetch(c, filename, offset, end - offset, header, totalChunks,
+                                        firstChunk, count, channel);
+                                if (problem == null) {
+                                    break;
+                                }
+                                if (attempt == MAX_ATTEMPTS) {
+                                    throw new IOException(problem + " in range " + segment);
+                                }
+                                System.err.println(problem + " in range " + segment + ", fetching it again");
+                            }
+
+                            // Only record a range once its bytes are on disk
+                            channel.force(false);
+                            synchronized (progress) {
+                                progress.println(segment);
+                                progress.flush();
+                            }
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Download connection failed: " + e.getMessage());
+                        if (segment != null) {
+                            synchronized (failed) {
+                                failed.add(segment);
+                            }
+                        }
+                    }
+                }, "download-" + i);
+                workers.add(worker);
+                worker.start();
+            }
+
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Download interrupted");
+                }
+            }
+        }
+
+        long missing = failed.size() + pending.size();
+        if (missing > 0) {
+            System.out.println("Download incomplete: " + missing + " of " + segments
+                    + " ranges missing. Run PDOWNLOAD again to resume.");
+            return;
+        }
+
+        Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        progressFile.delete();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("File downloaded successfully: %s (%.1f MB/s over %d connections)%n",
+                filename, plainLength / 1e6 / Math.max(seconds, 1e-3), workers.size());
+    }
+
+    // Fetches one segment and writes its plaintext; returns what was wrong
+    // with the bytes received, or null if they were intact
+    private String fetch(ClientConnection c, String filename, long offset, long length, byte[] header,
+                         long totalChunks, long firstChunk, long count, FileChannel channel) throws Exception {
+        BoundedInputStream range = c.openRange(filename, offset, length);
+        CheckedInputStream checked = new CheckedInputStream(range, new Crc32c());
+        try {
+            ChunkedCipher.decryptRange(key, header, totalChunks, firstChunk, count, checked, channel);
+        } catch (AEADBadTagException e) {
+            return "Damaged data";
+        } finally {
+            range.drain();
+        }
+        long expected = c.bodyChecksum();
+        if (expected != -1 && checked.getChecksum().getValue() != expected) {
+            return "Checksum mismatch";
+        }
+        return null;
+    }
+
+    // Reads finished segment numbers, or starts a fresh record if the stored
+    // file changed or the partial file is missing
+    private static Set<Long> loadProgress(File progressFile, File partFile, String identity, long plainLength)
+            throws IOException {
+        Set<Long> done = new HashSet<>();
+        if (progressFile.exists() && partFile.exists() && partFile.length() == plainLength) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(progressFile))) {
+                if (identity.equals(reader.readLine())) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        try {
+                            done.add(Long.parseLong(line.trim()));
+                        } catch (NumberFormatException e) {
+                            // A line torn by an interrupted run; that range is fetched again
+                        }
+                    }
+                    return done;
+                }
+            }
+        }
+
+        partFile.delete();
+        try (PrintWriter writer = new PrintWriter(new FileWriter(progressFile))) {
+            writer.println(identity);
+        }
+        return done;
+    }
+}
@@ -0,0 +1,220 @@
+import javax.crypto.SecretKey;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Uploads one file over several connections at once through an upload session.
+ *
+ * The encrypted file is cut into parts of whole records, so any part can be
+ * encrypted on its own straight from its offset in the local file. Worker
+ * connections send parts with UPLOAD_PART and the server publishes the file
+ * only on UPLOAD_COMMIT. The session id and file header are kept in a local
+ * .upload file, so an interrupted upload asks the server which parts arrived
+ * and sends only the rest the next time it is run. Each part is encrypted
+ * into memory and sent with its CRC32C; if the server finds it damaged, that
+ * part alone is sent again.
+ */
+class ParallelUpload {
+    // 128 records of 64 KiB, so each part moves about 8 MiB
+    private static final long PART_CHUNKS = 128;
+    // Times a part is sent before its damage counts as a failure
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final SecretKey key;
+    private final int connections;
+
+    ParallelUpload(String host, int port, String username, String password, SecretKey key, int connections) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.key = key;
+        this.connections = Math.max(1, connections);
+    }
+
+    void upload(String filename, File file) throws IOException {
+        long plainLength = file.length();
+        File recordFile = new File(file.getPath() + ".upload");
+
+        try (ClientConnection control = ClientConnection.open(host, port, username, password)) {
+            Properties record = loadRecord(recordFile, file);
+            Set<Integer> done = new HashSet<>();
+            if (record != null) {
+                String response = control.request("UPLOAD_STATUS " + record.getProperty("session"));
+                if (response.startsWith("PARTS")) {
+                    for (String part : response.substring(5).trim().split(" ")) {
+                        if (!part.isEmpty()) {
+                            done.add(Integer.parseInt(part));
+                        }
+                    }
+                } else {
+                    // The server no longer knows the session; start over
+                    record = null;
+                }
+            }
+
+            if (record == null) {
+                byte[] header = ChunkedCipher.newHeader(ChunkedCipher.DEFAULT_CHUNK_SIZE);
+                long encryptedLength = ChunkedCipher.encryptedLength(plainLength);
+                String response = control.request("UPLOAD_OPEN " + encryptedLength + " " + filename);
+                if (!response.startsWith("SESSION ")) {
+                    System.out.println(response);
+                    return;
+                }
+
+                record = new Properties();
+                record.setProperty("session", response.substring(8));
+                record.setProperty("header", Base64.getEncoder().encodeToString(header));
+                record.setProperty("size", Long.toString(plainLength));
+                record.setProperty("modified", Long.toString(file.lastModified()));
+                try (Writer writer = new FileWriter(recordFile)) {
+                    record.store(writer, "Upload of " + filename);
+                }
+            }
+
+            String session = record.getProperty("session");
+            byte[] header = Base64.getDecoder().decode(record.getProperty("header"));
+            if (!transfer(session, header, file, plainLength, done)) {
+                return;
+            }
+
+            String response = control.request("UPLOAD_COMMIT " + session);
+            System.out.println(response);
+            if (response.startsWith("SUCCESS")) {
+                recordFile.delete();
+            }
+        }
+    }
+
+    // Sends every part not in done; returns false if some part is still missing
+    private boolean transfer(String session, byte[] header, File file, long plainLength, Set<Integer> done)
+            throws IOException {
+        int chunkSize = ChunkedCipher.chunkSize(header);
+        long totalChunks = ChunkedCipher.chunkCount(plainLength, chunkSize);
+        long encryptedLength = ChunkedCipher.encryptedLength(plainLength, chunkSize);
+        int parts = (int) ((totalChunks + PART_CHUNKS - 1) / PART_CHUNKS);
+
+        ConcurrentLinkedQueue<Integer> pending = new ConcurrentLinkedQueue<>();
+        for (int part = 0; part < parts; part++) {
+            if (!done.contains(part)) {
+                pending.add(part);
+            }
+        }
+        if (!done.isEmpty()) {
+            System.out.println("Resuming upload: " + done.size() + " of " + parts + " parts already sent");
+        }
+
+        long start = System.nanoTime();
+        List<Thread> workers = new ArrayList<>();
+        List<Integer> failed = new ArrayList<>();
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+
+            int workerCount = Math.min(connections, Math.max(1, pending.size()));
+            for (int i = 0; i < workerCount; i++) {
+                Thread worker = new Thread(() -> {
+                    Integer part = null;
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    try (ClientConnection c = ClientConnection.open(host, port, username, password)) {
+                        while ((part = pending.poll()) != null) {
+                            long firstChunk = part * PART_CHUNKS;
+                            long count = Math.min(PART_CHUNKS, totalChunks - firstChunk);
+                            // Part 0 also carries the file header
+                            long offset = part == 0 ? 0 : ChunkedCipher.recordOffset(firstChunk, chunkSize);
+                            long end = Math.min(encryptedLength,
+                                    ChunkedCipher.recordOffset(firstChunk + count, chunkSize));
+
+                            buffer.reset();
+                            CheckedOutputStream encrypted = new CheckedOutputStream(buffer, new Crc32c());
+                            if (firstChunk == 0) {
+                                encrypted.write(header);
+                            }
+                            ChunkedCipher.encryptRange(key, header, plainLength, firstChunk, count, channel,
+                                    encrypted);
+                            long crc = encrypted.getChecksum().getValue();
+
+                            String response = c.uploadPart(session, part, offset, end - offset, crc, buffer::writeTo);
+                            for (int attempt = 1; attempt < MAX_ATTEMPTS
+                                    && response.startsWith("FAILED: Checksum mismatch"); attempt++) {
+                                System.err.println("Part " + part + " arrived damaged, sending it again");
+                                response = c.uploadPart(session, part, offset, end - offset, crc, buffer::writeTo);
+                            }
+                            if (!response.startsWith("SUCCESS")) {
+                                throw new IOException(response);
+                            }
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Upload connection failed: " + e.getMessage());
+                        if (part != null) {
+                            synchronized (failed) {
+                                failed.add(part);
+                            }
+                        }
+                    }
+                }, "upload-" + i);
+                workers.add(worker);
+                worker.start();
+            }
+
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Upload interrupted");
+                }
+            }
+        }
+
+        int missing = failed.size() + pending.size();
+        if (missing > 0) {
+            System.out.println("Upload incomplete: " + missing + " of " + parts
+                    + " parts missing. Run PUPLOAD again to resume.");
+            return false;
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Sent %d parts (%.1f MB/s over %d connections)%n",
+                parts - done.size(), (encryptedLength / 1e6) * (parts - done.size()) / parts / Math.max(seconds, 1e-3),
+                workers.size());
+        return true;
+    }
+
+    // Returns the saved session for this file, or null if there is none or
+    // the file changed since it was started
+    private static Properties loadRecord(File recordFile, File file) throws IOException {
+        if (!recordFile.exists()) {
+            return null;
+        }
+        Properties record = new Properties();
+        try (Reader reader = new FileReader(recordFile)) {
+            record.load(reader);
+        }
+        if (record.getProperty("session") == null || record.getProperty("header") == null
+                || !Long.toString(file.length()).equals(record.getProperty("size"))
+                || !Long.toString(file.lastModified()).equals(record.getProperty("modified"))) {
+            return null;
+        }
+        return record;
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves stored files to where the storage layout wants them, while the
+ * server keeps serving them.
+ *
+ * After a root is added to -Dserver.storage.roots (or the fan-out changed)
+ * some files are no longer at their StorageLayout.path. On start a background
+ * thread walks every user's files and moves those: across disks by copying
+ * into a temporary file on the new root and renaming it into place, within a
+ * disk by renaming. Until a file has moved it is served from where it is.
+ * The final rename happens under the layout's lock and only if no newer
+ * upload got there first and the file did not change during the copy;
+ * otherwise the old copy is dropped or left for the next pass. Copying is
+ * held to -Dserver.storage.rebalanceRate bytes per second (default 32 MiB).
+ */
+class Rebalancer {
+    // Copies are throttled in slices of this size
+    private static final long SLICE = 1024 * 1024;
+    private static final long RETRY_MINUTES = 5;
+
+    private final StorageLayout layout;
+    private final long bytesPerSecond;
+    private final AtomicLong moved = new AtomicLong();
+    private final AtomicLong bytesMoved = new AtomicLong();
+    private final AtomicLong removed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile String state = "idle";
+
+    Rebalancer(StorageLayout layout, long bytesPerSecond) {
+        this.layout = layout;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    void start() {
+        Thread thread = new Thread(this::run, "rebalancer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // The line STATS adds for the rebalancer
+    List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add("rebalance state=" + state + " rate=" + bytesPerSecond + " moved=" + moved.get()
+                + " bytes=" + bytesMoved.get() + " removed=" + removed.get() + " failed=" + failed.get());
+        return lines;
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                state = "running";
+                long before = moved.get();
+                int left = pass();
+                if (moved.get() > before) {
+                    System.out.println("Rebalanced storage: " + (moved.get() - before) + " files moved");
+                }
+                if (left == 0) {
+                    state = "done";
+                    return;
+                }
+                // Files that changed or could not be moved get another try
+                state = "waiting, " + left + " files left";
+                TimeUnit.MINUTES.sleep(RETRY_MINUTES);
+            }
+        } catch (InterruptedException e) {
+            state = "stopped";
+        }
+    }
+
+    // Moves every misplaced file once; returns how many are still misplaced
+    private int pass() throws InterruptedException {
+        int left = 0;
+        for (String user : layout.users()) {
+            List<Path> files;
+            try {
+                files = layout.stored(user);
+            } catch (IOException e) {
+                System.err.println("Cannot list files of " + user + ": " + e.getMessage());
+                left++;
+                continue;
+            }
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (file.equals(layout.path(user, name))) {
+                    continue;
+                }
+                try {
+                    if (!move(user, name, file)) {
+                        left++;
+                    }
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                    left++;
+                    System.err.println("Cannot move " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        return left;
+    }
+
+    // Returns false if the file changed meanwhile and has to be tried again
+    private boolean move(String user, String name, Path from) throws IOException, InterruptedException {
+        Path target = layout.path(user, name);
+        Path root = layout.root(user, name);
+        BasicFileAttributes before;
+        try {
+            before = Files.readAttributes(from, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return true;
+        }
+
+        List<Path> temps = new ArrayList<>();
+        // Temporary file -> where it goes
+        Map<Path, Path> copies = new LinkedHashMap<>();
+        try {
+            if (!from.startsWith(root) && !Files.exists(target)) {
+                Path temp = WriteBehind.createTempFile(root, user);
+                temps.add(temp);
+                copy(from, temp);
+                Files.setLastModifiedTime(temp, before.lastModifiedTime());
+                for (String dir : StorageLayout.COMPANION_DIRS) {
+                    Path companion = layout.companion(from, dir);
+                    if (Files.isRegularFile(companion)) {
+                        Path companionTemp = WriteBehind.createTempFile(root, user);
+                        temps.add(companionTemp);
+                        Files.copy(companion, companionTemp, StandardCopyOption.REPLACE_EXISTING,
+                                StandardCopyOption.COPY_ATTRIBUTES);
+                        copies.put(companionTemp, layout.companion(target, dir));
+                    }
+                }
+                copies.put(temp, target);
+            }
+
+            synchronized (layout.lock(user, name)) {
+                if (Files.exists(target)) {
+                    // Uploaded again since the layout changed; this copy is older
+                    layout.remove(from);
+                    removed.incrementAndGet();
+                    return true;
+                }
+                BasicFileAttributes now;
+                try {
+                    now = Files.readAttributes(from, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    return true;
+                }
+                if (now.size() != before.size() || !now.lastModifiedTime().equals(before.lastModifiedTime())) {
+                    return false;
+                }
+
+                if (copies.isEmpty()) {
+                    // Same disk; a rename does it
+                    for (String dir : StorageLayout.COMPANION_DIRS) {
+                        Path companion = layout.companion(from, dir);
+                        if (Files.isRegularFile(companion)) {
+                            copies.put(companion, layout.companion(target, dir));
+                        }
+                    }
+                    copies.put(from, target);
+                }
+                // The file itself last, so it never appears without its metadata
+                for (Map.Entry<Path, Path> copy : copies.entrySet()) {
+                    Files.createDirectories(copy.getValue().getParent());
+                    Files.move(copy.getKey(), copy.getValue(), StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+                layout.remove(from);
+            }
+            moved.incrementAndGet();
+            bytesMoved.addAndGet(before.size());
+            return true;
+        } finally {
+            for (Path temp : temps) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    private void copy(Path from, Path to) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(to, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long n = in.transferTo(position, Math.min(SLICE, size - position), out);
+                if (n <= 0) {
+                    // Shrunk meanwhile; the check before the rename notices
+                    break;
+                }
+                position += n;
+                TransferScheduler.pace(start, position, bytesPerSecond);
+            }
+            out.force(false);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * The rsync weak checksum over a fixed-length window, which can be moved
+ * forward one byte at a time in constant time.
+ */
+class RollingChecksum {
+    private final int length;
+    private int a;
+    private int b;
+
+    RollingChecksum(byte[] data, int offset, int length) {
+        this.length = length;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+    }
+
+    static int of(byte[] data, int offset, int length) {
+        return new RollingChecksum(data, offset, length).value();
+    }
+
+    int length() {
+        return length;
+    }
+
+    // Drops out from the front of the window and adds in at the end
+    void roll(byte out, byte in) {
+        a += (in & 0xff) - (out & 0xff);
+        b += a - length * (out & 0xff);
+    }
+
+    int value() {
+        return (a & 0xffff) | (b << 16);
+    }
+}
@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-reads stored files in the background and checks them against their
+ * saved checksums, so a file damaged on disk is found before someone
+ * downloads it.
+ *
+ * VERIFY queues a user's files, or one of them. With -Dserver.scrubInterval
+ * (hours, default 0 for never) every user's files are queued again at that
+ * interval. Reading is held to -Dserver.scrubRate bytes per second (default
+ * 16 MiB) so a scrub does not take the disk away from transfers. Files that
+ * have no checksum yet, such as those stored before checksums were kept, get
+ * one the first time they are checked.
+ */
+class Scrubber {
+    private final StorageLayout layout;
+    private final Checksums checksums;
+    private final long bytesPerSecond;
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    // user/name -> what is wrong with it, until it is checked again and found good
+    private final Map<String, String> damaged = new ConcurrentHashMap<>();
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    Scrubber(StorageLayout layout, Checksums checksums, long bytesPerSecond) {
+        this.layout = layout;
+        this.checksums = checksums;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    void start(long intervalHours) {
+        Thread thread = new Thread(this::run, "scrubber");
+        thread.setDaemon(true);
+        thread.start();
+        if (intervalHours > 0) {
+            Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread timer = new Thread(task, "scrub-timer");
+                timer.setDaemon(true);
+                return timer;
+            }).scheduleWithFixedDelay(this::queueAll, intervalHours, intervalHours, TimeUnit.HOURS);
+        }
+    }
+
+    // Queues every file of user; returns how many
+    int queue(String user) throws IOException {
+        Set<String> names = new TreeSet<>();
+        for (Path file : layout.stored(user)) {
+            names.add(file.getFileName().toString());
+        }
+        for (String name : names) {
+            queue(user, name);
+        }
+        return names.size();
+    }
+
+    void queue(String user, String name) {
+        String key = user + "/" + name;
+        if (queued.add(key)) {
+            queue.add(key);
+        }
+    }
+
+    private void queueAll() {
+        for (String user : layout.users()) {
+            try {
+                queue(user);
+            } catch (IOException e) {
+                System.err.println("Cannot list files of " + user + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // What the last checks found wrong with user's files: name -> description
+    Map<String, String> damaged(String user) {
+        Map<String, String> files = new TreeMap<>();
+        for (Map.Entry<String, String> entry : damaged.entrySet()) {
+            if (entry.getKey().startsWith(user + "/")) {
+                files.put(entry.getKey().substring(user.length() + 1), entry.getValue());
+            }
+        }
+        return files;
+    }
+
+    int pending() {
+        return queued.size();
+    }
+
+    // The lines STATS adds for the scrubber
+    List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add("scrub rate=" + bytesPerSecond + " queued=" + pending() + " checked=" + checked.get()
+                + " recorded=" + recorded.get() + " bytes=" + bytesRead.get() + " damaged=" + damaged.size());
+        for (Map.Entry<String, String> entry : new TreeMap<>(damaged).entrySet()) {
+            lines.add("damaged " + entry.getKey() + ": " + entry.getValue());
+        }
+        return lines;
+    }
+
+    private void run() {
+        while (true) {
+            String key;
+            try {
+                key = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            queued.remove(key);
+            String[] parts = key.split("/", 2);
+            try {
+                check(parts[0], parts[1]);
+            } catch (IOException e) {
+                System.err.println("Cannot verify " + key + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void check(String user, String name) throws IOException, InterruptedException {
+        String key = user + "/" + name;
+        Path file = layout.locate(user, name);
+        if (file == null) {
+            damaged.remove(key);
+            return;
+        }
+        BasicFileAttributes before;
+        try {
+            before = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            damaged.remove(key);
+            return;
+        }
+        Checksums.Record saved = checksums.get(user, name);
+
+        Checksums.Builder builder = new Checksums.Builder();
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Checksums.BLOCK_SIZE);
+            int n;
+            while ((n = channel.read(buffer)) != -1) {
+                buffer.flip();
+                builder.update(buffer);
+                buffer.clear();
+                bytesRead.addAndGet(n);
+                TransferScheduler.pace(start, builder.length(), bytesPerSecond);
+            }
+        }
+
+        BasicFileAttributes after;
+        try {
+            after = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            // Moved by the Rebalancer while it was read; check it where it is now
+            queue(user, name);
+            return;
+        }
+        if (after.size() != before.size() || !after.lastModifiedTime().equals(before.lastModifiedTime())) {
+            // Rewritten while it was read; the new version gets its own checksum
+            damaged.remove(key);
+            return;
+        }
+        checked.incrementAndGet();
+
+        if (saved == null) {
+            checksums.save(user, name, builder);
+            recorded.incrementAndGet();
+            damaged.remove(key);
+            return;
+        }
+        Checksums.Record found = builder.finish(saved.modified);
+        int block = saved.firstMismatch(found);
+        if (found.crc == saved.crc && block < 0) {
+            damaged.remove(key);
+            return;
+        }
+        String problem = "crc32c " + Crc32c.format(found.crc) + " instead of " + Crc32c.format(saved.crc)
+                + ", first bad block at offset " + (long) Math.max(block, 0) * Checksums.BLOCK_SIZE;
+        damaged.put(key, problem);
+        System.err.println("Checksum mismatch in " + key + ": " + problem);
+    }
+}
@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The directory with the server's secrets: the accounts file and the ticket
+ * signing key.
+ *
+ * It is -Dserver.secrets (default server_secrets), kept apart from the storage
+ * roots that hold what users upload, and on file systems with POSIX
+ * permissions it and the files in it are readable by the server's account
+ * only. Secrets that older versions kept in the first storage root are moved
+ * here the first time it is opened.
+ */
+final class Secrets {
+    private static final String[] FILES = {".users", ".ticket-key"};
+
+    private Secrets() {
+    }
+
+    // Creates the directory if needed and moves in the secrets left in oldRoot
+    static Path directory(Path oldRoot) throws IOException {
+        Path dir = Paths.get(System.getProperty("server.secrets", "server_secrets"));
+        Files.createDirectories(dir);
+        restrict(dir, "rwx------");
+        for (String name : FILES) {
+            Path old = oldRoot.resolve(name);
+            Path target = dir.resolve(name);
+            if (Files.exists(old) && !Files.exists(target)) {
+                try {
+                    Files.move(old, target);
+                    System.out.println("Moved " + old + " to " + target);
+                } catch (FileAlreadyExistsException e) {
+                    // Another process moved it first
+                }
+            }
+            if (Files.exists(target)) {
+                restrict(target, "rw-------");
+            }
+        }
+        Files.deleteIfExists(oldRoot.resolve(".users.lock"));
+        return dir;
+    }
+
+    // Writes a new file that only the owner can read; fails if it exists
+    static void createFile(Path file, byte[] data) throws IOException {
+        Set<OpenOption> options = new HashSet<>(Arrays.asList(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+        try (SeekableByteChannel channel = file.getFileSystem().supportedFileAttributeViews().contains("posix")
+                ? Files.newByteChannel(file, options,
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+                : Files.newByteChannel(file, options)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private static void restrict(Path path, String permissions) throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+        if (view != null) {
+            view.setPermissions(PosixFilePermissions.fromString(permissions));
+        }
+    }
+}
@@ -1,43 +1,129 @@
 import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLSocket;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
-import java.util.HashMap;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class Server {
     private static final int PORT = 8444;
-    private static final String SERVER_STORAGE_DIR = "server_storage";
-    private static final Map<String, String> userCredentials = new HashMap<>();
-    private static final Map<String, SecretKey> userEncryptionKeys = new HashMap<>();
-
-    static {
-        // Initialize some users (in real-world, this would be a database)
-        try {
-            addUser("Wild", "password123");
-            addUser("Yadav", "12345678");
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
+    // Where files are kept: -Dserver.storage.roots and -Dserver.storage.fanout, see ShardedLayout
+    private static final StorageLayout layout = StorageLayout.configured();
+    // Opened in main, see Secrets
+    private static UserStore users;
+    private static SessionTickets tickets;
+    static final ServerMetrics metrics = new ServerMetrics();
+    // Commands that move a file body, counted as in-flight transfers
+    private static final Set<String> TRANSFER_COMMANDS = new HashSet<>(Arrays.asList("UPLOAD", "UPLOAD_PART",
+            "CHUNK_PUT", "MANIFEST_PUT", "DOWNLOAD", "DOWNLOAD_RANGE", "SIGNATURES"));
+    // Users allowed to run STATS, set with -Dserver.admins as a comma separated list
+    private static final Set<String> ADMINS = new HashSet<>(
+            Arrays.asList(System.getProperty("server.admins", "").split(",")));
+    private static final UploadSessions uploadSessions = new UploadSessions(layout);
+    private static final ChunkStore chunkStore = new ChunkStore(layout);
+    private static final FileIndex fileIndex = new FileIndex(layout, chunkStore);
+    // -Dserver.cache.size is the memory budget for hot downloads (0 turns the
+    // cache off) and -Dserver.cache.maxObject the largest file it will hold
+    private static final BlobCache blobCache = new BlobCache(
+            Long.getLong("server.cache.size", 64L * 1024 * 1024),
+            Long.getLong("server.cache.maxObject", 8L * 1024 * 1024));
+    // Bandwidth limits in bytes per second (0 for none): -Dserver.bandwidth for
+    // all transfers together, -Dserver.userBandwidth for each user's; transfers
+    // up to -Dserver.smallTransfer bytes are never held back
+    private static final TransferScheduler scheduler = new TransferScheduler(
+            Long.getLong("server.bandwidth", 0),
+            Long.getLong("server.userBandwidth", 0),
+            Long.getLong("server.smallTransfer", 1024 * 1024),
+            System.getProperty("server.userWeights", ""));
+    private static final Checksums checksums = new Checksums(layout);
+    // -Dserver.scrubRate limits how fast VERIFY reads, in bytes per second
+    private static final Scrubber scrubber = new Scrubber(layout, checksums,
+            Long.getLong("server.scrubRate", 16L * 1024 * 1024));
+    // -Dserver.storage.rebalanceRate limits how fast files move to a new root, in bytes per second
+    private static final Rebalancer rebalancer = new Rebalancer(layout,
+            Long.getLong("server.storage.rebalanceRate", 32L * 1024 * 1024));
 
     public static void main(String[] args) {
         // Create server storage directory if it doesn't exist
         createStorageDirectory();
+        for (Path root : layout.roots()) {
+            WriteBehind.cleanUp(root);
+        }
+        scrubber.start(Long.getLong("server.scrubInterval", 0));
+        rebalancer.start();
+
+        // -Dserver.ticketLifetime is how long a session ticket stays valid, in seconds
+        try {
+            Path secrets = Secrets.directory(layout.home());
+            users = new UserStore(secrets);
+            createDefaultUsers();
+            tickets = new SessionTickets(secrets, users,
+                    Long.getLong("server.ticketLifetime", 8 * 3600) * 1000);
+        } catch (IOException e) {
+            System.err.println("Cannot open the user store: " + e.getMessage());
+            return;
+        }
+
+        if (blobCache.isEnabled()) {
+            registerCacheBean();
+        }
+        try {
+            metrics.register();
+            ManagementFactory.getPlatformMBeanServer().registerMBean(scheduler,
+                    new ObjectName("SecureFileTransfer:type=Scheduler"));
+        } catch (JMException e) {
+            System.err.println("Cannot register server metrics: " + e.getMessage());
+        }
+
+        // Save the file indexes on shutdown, so the next start does not rescan
+        Runtime.getRuntime().addShutdownHook(new Thread(fileIndex::flushAll, "file-index-flush"));
 
         System.setProperty("javax.net.ssl.keyStore", "server_keystore.jks");
         System.setProperty("javax.net.ssl.keyStorePassword", "password");
 
+        // -Dserver.plainPort opens an extra listener without TLS, bound to
+        // loopback unless -Dserver.plainBind says otherwise; only for use on
+        // the same host or a trusted internal network
+        Integer plainPort = Integer.getInteger("server.plainPort");
+        if (plainPort != null) {
+            startPlainListener(System.getProperty("server.plainBind", "127.0.0.1"), plainPort);
+        }
+
+        // -Dserver.engine=nio selects the event-loop engine; the default keeps
+        // one thread per connected client
+        String engine = System.getProperty("server.engine", "thread");
+        if ("nio".equalsIgnoreCase(engine)) {
+            try {
+                int eventLoops = Integer.getInteger("server.nio.eventLoops", Runtime.getRuntime().availableProcessors());
+                int workers = Integer.getInteger("server.nio.workers", 64);
+                new NioServer(PORT, SSLContext.getDefault(), eventLoops, workers).run();
+            } catch (Exception e) {
+                System.err.println("Server error: " + e.getMessage());
+                e.printStackTrace();
+            }
+            return;
+        }
+
         try {
             SSLServerSocketFactory ssf = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
             SSLServerSocket serverSocket = (SSLServerSocket) ssf.createServerSocket(PORT);
@@ -57,77 +143,142 @@ public class Server {
         }
     }
 
-    private static void createStorageDirectory() {
-        File dir = new File(SERVER_STORAGE_DIR);
-        if (!dir.exists()) {
-            if (dir.mkdir()) {
-                System.out.println("Created server storage directory");
-            } else {
-                System.err.println("Failed to create server storage directory");
-            }
+    private static void startPlainListener(String bindAddress, int port) {
+        try {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(bindAddress, port));
+            System.out.println("Plain listener started on " + bindAddress + ":" + port);
+
+            Thread acceptor = new Thread(() -> {
+                while (true) {
+                    try {
+                        SocketChannel channel = serverChannel.accept();
+                        System.out.println("Client connected: " + channel.socket().getInetAddress() + " (plain)");
+                        new ClientHandler(channel).start();
+                    } catch (IOException e) {
+                        System.err.println("Plain listener error: " + e.getMessage());
+                    }
+                }
+            }, "plain-listener");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        } catch (IOException e) {
+            System.err.println("Cannot start plain listener: " + e.getMessage());
         }
     }
 
-    private static void addUser(String username, String password) throws NoSuchAlgorithmException {
-        // Hash the password before storing it
-        String hashedPassword = hashPassword(password);
-        userCredentials.put(username, hashedPassword);
-
-        // Generate an encryption key for this user derived from their password
-        SecretKey key = deriveKeyFromPassword(password);
-        userEncryptionKeys.put(username, key);
-
-        // Create user directory
-        File userDir = new File(SERVER_STORAGE_DIR + File.separator + username);
-        if (!userDir.exists()) {
-            userDir.mkdir();
+    private static void registerCacheBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(blobCache,
+                    new ObjectName("SecureFileTransfer:type=BlobCache"));
+        } catch (JMException e) {
+            System.err.println("Cannot register cache statistics: " + e.getMessage());
         }
+        System.out.println("Download cache: " + blobCache.getCapacity() / (1024 * 1024) + " MiB");
     }
 
-    private static String hashPassword(String password) throws NoSuchAlgorithmException {
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        byte[] hashedBytes = md.digest(password.getBytes());
-        return Base64.getEncoder().encodeToString(hashedBytes);
+    private static void createStorageDirectory() {
+        for (Path root : layout.roots()) {
+            File dir = root.toFile();
+            if (!dir.exists()) {
+                if (dir.mkdirs()) {
+                    System.out.println("Created server storage directory " + dir);
+                } else {
+                    System.err.println("Failed to create server storage directory " + dir);
+                }
+            }
+        }
     }
 
-    private static SecretKey deriveKeyFromPassword(String password) throws NoSuchAlgorithmException {
-        // In a real system, you would use a proper key derivation function like PBKDF2
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        byte[] key = md.digest(password.getBytes());
-        return new SecretKeySpec(key, "AES");
+    // The first start creates the demo accounts; manage accounts with UserStore afterwards
+    private static void createDefaultUsers() throws IOException {
+        if (users.exists()) {
+            return;
+        }
+        users.setPassword("Wild", "password123");
+        users.setPassword("Yadav", "12345678");
     }
 
-    private static class ClientHandler extends Thread {
-        private final SSLSocket clientSocket;
-        private BufferedReader in;
+    static class ClientHandler extends Thread {
+        private final Socket clientSocket;
+        // Set for connections on the plain listener, which can use zero-copy transfers
+        private final SocketChannel plainChannel;
         private PrintWriter out;
         private DataInputStream dataIn;
         private DataOutputStream dataOut;
         private String authenticatedUser = null;
+        // Totals of the authenticated user; null before login
+        private ServerMetrics.UserStats userStats;
+        // Name the running command's latency is recorded under
+        private String commandName;
+
+        // Set once the client switches to the binary frame protocol
+        private volatile boolean framed = false;
+        private int requestId;
+        private long requestBodyLength;
+        private Frames.BodyInputStream requestBody;
 
         public ClientHandler(SSLSocket socket) {
             this.clientSocket = socket;
+            this.plainChannel = null;
+        }
+
+        ClientHandler(SocketChannel channel) {
+            this.clientSocket = channel.socket();
+            this.plainChannel = channel;
+        }
+
+        // Used by NioServer, which owns the connection and drives the handler
+        // one line at a time from its worker pool
+        ClientHandler(InputStream input, OutputStream output) {
+            this.clientSocket = null;
+            this.plainChannel = null;
+            openStreams(input, output);
+        }
+
+        private void openStreams(InputStream input, OutputStream output) {
+            // Command lines and file data share one stream, so lines are read
+            // from dataIn directly rather than through a read-ahead Reader
+            OutputStream counted = new CountingOutputStream(output);
+            out = new PrintWriter(counted, true);
+            dataIn = new DataInputStream(new CountingInputStream(input));
+            dataOut = new DataOutputStream(counted);
         }
 
         @Override
         public void run() {
+            metrics.connectionOpened();
             try {
+                if (clientSocket instanceof SSLSocket) {
+                    // Otherwise the handshake would happen within the first read
+                    long start = System.nanoTime();
+                    ((SSLSocket) clientSocket).startHandshake();
+                    metrics.handshakeFinished(System.nanoTime() - start);
+                }
+
                 // Set up the input and output streams
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-                dataIn = new DataInputStream(clientSocket.getInputStream());
-                dataOut = new DataOutputStream(clientSocket.getOutputStream());
+                if (plainChannel != null) {
+                    // Unbuffered input, so no body bytes are read ahead of a
+                    // transfer that goes straight to the channel
+                    openStreams(Channels.newInputStream(plainChannel),
+                            new BufferedOutputStream(Channels.newOutputStream(plainChannel), 64 * 1024));
+                } else {
+                    openStreams(new BufferedInputStream(clientSocket.getInputStream()), clientSocket.getOutputStream());
+                }
 
                 // Handle client authentication
-                if (authenticate()) {
+                sendLoginPrompt();
+                String credentials = readLine();
+                if (credentials != null && authenticate(credentials)) {
                     // Main command loop
-                    processCommands();
+                    while (processNext()) {
+                        // Keep serving commands until EXIT or disconnect
+                    }
                 }
             } catch (IOException e) {
                 System.err.println("Error handling client: " + e.getMessage());
             } finally {
                 try {
-                    if (in != null) in.close();
                     if (out != null) out.close();
                     if (dataIn != null) dataIn.close();
                     if (dataOut != null) dataOut.close();
@@ -135,156 +286,901 @@ public class Server {
                     System.out.println("Client disconnected");
                 } catch (IOException e) {
                     e.printStackTrace();
+                } finally {
+                    metrics.connectionClosed();
                 }
             }
         }
 
-        private boolean authenticate() throws IOException {
-            out.println("Please login with username:password");
-            String credentials = in.readLine();
-            String[] parts = credentials.split(":");
-
-            if (parts.length != 2) {
-                out.println("FAILED: Invalid credentials format");
-                return false;
+        String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            int b;
+            while ((b = dataIn.read()) != -1 && b != '\n') {
+                line.write(b);
+            }
+            if (b == -1 && line.size() == 0) {
+                return null;
             }
+            String text = line.toString();
+            return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+        }
 
-            String username = parts[0];
-            String password = parts[1];
+        void sendLoginPrompt() {
+            out.println("Please login with username:password");
+        }
 
+        // Takes "username:password", or "TICKET <ticket>" from a client that logged in before
+        boolean authenticate(String credentials) {
+            long start = System.nanoTime();
+            boolean success = false;
             try {
-                String hashedPassword = hashPassword(password);
-                if (userCredentials.containsKey(username) &&
-                        userCredentials.get(username).equals(hashedPassword)) {
-                    authenticatedUser = username;
-                    out.println("SUCCESS: Authenticated as " + username);
-                    return true;
+                String user;
+                if (credentials.startsWith("TICKET ")) {
+                    user = tickets.verify(credentials.substring(7).trim());
+                    if (user == null) {
+                        out.println("FAILED: Invalid or expired ticket");
+                        return false;
+                    }
                 } else {
-                    out.println("FAILED: Invalid username or password");
-                    return false;
+                    String[] parts = credentials.split(":", 2);
+                    if (parts.length != 2) {
+                        out.println("FAILED: Invalid credentials format");
+                        return false;
+                    }
+                    UserStore.Account account = users.authenticate(parts[0], parts[1]);
+                    if (account == null) {
+                        out.println("FAILED: Invalid username or password");
+                        return false;
+                    }
+                    user = account.name;
                 }
-            } catch (NoSuchAlgorithmException e) {
+
+                // Accounts added while the server runs get their directories on first login
+                for (Path root : layout.roots()) {
+                    Files.createDirectories(root.resolve(user));
+                }
+                authenticatedUser = user;
+                userStats = metrics.user(user);
+                success = true;
+                out.println("SUCCESS: Authenticated as " + user);
+                return true;
+            } catch (IOException e) {
+                System.err.println("Authentication error: " + e.getMessage());
                 out.println("FAILED: Server authentication error");
                 return false;
+            } finally {
+                metrics.loginFinished(System.nanoTime() - start, success);
             }
         }
 
-        private void processCommands() throws IOException {
-            String command;
-            while ((command = in.readLine()) != null) {
-                String[] parts = command.split(" ", 2);
-                String action = parts[0].toUpperCase();
+        boolean isFramed() {
+            return framed;
+        }
 
-                switch (action) {
-                    case "UPLOAD":
-                        if (parts.length < 2) {
-                            out.println("FAILED: Missing filename");
-                            continue;
-                        }
-                        handleUpload(parts[1]);
+        // Reads and runs the next command line or request frame; returns
+        // false once the session should end
+        boolean processNext() throws IOException {
+            if (!framed) {
+                String command = readLine();
+                return command != null && processCommand(command);
+            }
+
+            Frames.Frame frame = Frames.read(dataIn);
+            if (frame == null) {
+                return false;
+            }
+            if (frame.type != Frames.REQUEST) {
+                throw new IOException("Expected a request frame");
+            }
+
+            requestId = frame.requestId;
+            requestBodyLength = frame.bodyLength();
+            if (requestBodyLength < 0) {
+                // No body can follow; the request is answered without running it
+                reply("FAILED: Invalid body length");
+                endRequest();
+                return true;
+            }
+            requestBody = new Frames.BodyInputStream(dataIn, requestId, requestBodyLength);
+            boolean keepOpen = processCommand(frame.command());
+
+            // Skip any body the command did not consume, then close the request
+            requestBody.drain();
+            endRequest();
+            return keepOpen;
+        }
+
+        private void endRequest() throws IOException {
+            Frames.write(dataOut, Frames.END, requestId, new byte[0], 0, 0);
+            dataOut.flush();
+        }
+
+        // Runs one command and records its latency; returns false once the session should end
+        private boolean processCommand(String command) throws IOException {
+            long start = System.nanoTime();
+            String action = command.split(" ", 2)[0].toUpperCase();
+            commandName = action;
+            boolean transfer = TRANSFER_COMMANDS.contains(action);
+            if (transfer) {
+                metrics.transferStarted(userStats);
+            }
+            try {
+                return runCommand(command);
+            } finally {
+                if (transfer) {
+                    metrics.transferFinished();
+                }
+                metrics.commandFinished(commandName, userStats, System.nanoTime() - start);
+            }
+        }
+
+        private boolean runCommand(String command) throws IOException {
+            String[] parts = command.split(" ", 2);
+            String action = parts[0].toUpperCase();
+
+            switch (action) {
+                case "UPLOAD":
+                    if (parts.length < 2) {
+                        reply("FAILED: Missing filename");
                         break;
-                    case "DOWNLOAD":
-                        if (parts.length < 2) {
-                            out.println("FAILED: Missing filename");
-                            continue;
-                        }
-                        handleDownload(parts[1]);
+                    }
+                    handleUpload(parts[1]);
+                    break;
+                case "DOWNLOAD":
+                    if (parts.length < 2) {
+                        reply("FAILED: Missing filename");
                         break;
-                    case "LIST":
-                        handleListFiles();
+                    }
+                    handleDownload(parts[1]);
+                    break;
+                case "DOWNLOAD_RANGE":
+                    handleDownloadRange(parts.length < 2 ? "" : parts[1]);
+                    break;
+                case "UPLOAD_OPEN":
+                    handleUploadOpen(parts.length < 2 ? "" : parts[1]);
+                    break;
+                case "UPLOAD_PART":
+                    handleUploadPart(parts.length < 2 ? "" : parts[1]);
+                    break;
+                case "UPLOAD_STATUS":
+                case "UPLOAD_COMMIT":
+                case "UPLOAD_ABORT":
+                    handleUploadSession(action, parts.length < 2 ? "" : parts[1].trim());
+                    break;
+                case "CHUNK_QUERY":
+                    handleChunkQuery(parts.length < 2 ? "" : parts[1]);
+                    break;
+                case "CHUNK_PUT":
+                    handleChunkPut();
+                    break;
+                case "MANIFEST_PUT":
+                    if (parts.length < 2) {
+                        reply("FAILED: Missing filename");
                         break;
-                    case "EXIT":
-                        out.println("Goodbye!");
-                        return;
-                    default:
-                        out.println("FAILED: Unknown command");
+                    }
+                    handleManifestPut(parts[1]);
+                    break;
+                case "SIGNATURES":
+                    if (parts.length < 2) {
+                        reply("FAILED: Missing filename");
+                        break;
+                    }
+                    handleSignatures(parts[1]);
+                    break;
+                case "STAT":
+                    if (parts.length < 2) {
+                        reply("FAILED: Missing filename");
+                        break;
+                    }
+                    handleStat(parts[1]);
+                    break;
+                case "LIST":
+                    handleListFiles(parts.length < 2 ? "" : parts[1]);
+                    break;
+                case "VERIFY":
+                    handleVerify(parts.length < 2 ? "" : parts[1]);
+                    break;
+                case "VERIFY_STATUS":
+                    handleVerifyStatus();
+                    break;
+                case "PING":
+                    reply("PONG");
+                    break;
+                case "TICKET":
+                    handleTicket();
+                    break;
+                case "STATS":
+                    handleStats();
+                    break;
+                case "PROTOCOL":
+                    if (framed || parts.length < 2 || !parts[1].trim().equals(String.valueOf(Frames.VERSION))) {
+                        reply("FAILED: Unsupported protocol");
+                        break;
+                    }
+                    out.println("PROTOCOL " + Frames.VERSION);
+                    framed = true;
+                    break;
+                case "EXIT":
+                    reply("Goodbye!");
+                    return false;
+                default:
+                    // Recorded together, so made-up commands cannot grow the metrics without bound
+                    commandName = "UNKNOWN";
+                    reply("FAILED: Unknown command");
+            }
+            return true;
+        }
+
+        // The helpers below hide the difference between the text protocol and
+        // the frame protocol from the command handlers
+
+        private void reply(String line) throws IOException {
+            if (framed) {
+                Frames.writeText(dataOut, Frames.RESPONSE, requestId, line);
+                dataOut.flush();
+            } else {
+                out.println(line);
+            }
+        }
+
+        // Answers FAILED for a name no file can have; a body sent with the
+        // command is skipped with the rest of the frame, and in text mode the
+        // client sends none without READY
+        private boolean checkName(String filename) throws IOException {
+            if (StorageLayout.isValidName(filename)) {
+                return true;
+            }
+            reply("FAILED: Invalid filename");
+            return false;
+        }
+
+        private long readBodyLength() throws IOException {
+            return framed ? requestBodyLength : dataIn.readLong();
+        }
+
+        private InputStream openBody(long length) throws IOException {
+            if (framed) {
+                return requestBody;
+            }
+            // Text mode waits for READY so the client knows the upload was accepted
+            out.println("READY");
+            return new BoundedInputStream(dataIn, length);
+        }
+
+        private OutputStream openBodyOutput() throws IOException {
+            if (framed) {
+                return new Frames.BodyOutputStream(dataOut, requestId);
+            }
+            // Text mode waits for the client to confirm it is ready to receive
+            String response = readLine();
+            return "READY".equals(response) ? dataOut : null;
+        }
+
+        // Copies a request body into file, with the disk writes behind the
+        // reads and checksummed as it is read; plain text-mode connections
+        // read straight from the socket channel
+        private void receiveBody(InputStream body, long length, FileChannel file, long position,
+                                 Checksums.Builder checksum) throws IOException {
+            try (TransferScheduler.Transfer transfer = scheduler.start(authenticatedUser, length)) {
+                if (plainChannel != null && !framed) {
+                    WriteBehind.receive(checksum.wrap(plainChannel), length, file, position, transfer);
+                    metrics.bytesIn(userStats, length);
+                } else {
+                    WriteBehind.receive(checksum.wrap(body), length, file, position, transfer);
+                }
+            }
+        }
+
+        // Sends part of a file as a response body; plain text-mode
+        // connections use transferTo
+        private void sendBody(OutputStream body, FileChannel file, long position, long length) throws IOException {
+            try (TransferScheduler.Transfer transfer = scheduler.start(authenticatedUser, length)) {
+                if (plainChannel != null && !framed) {
+                    body.flush();
+                    FileTransfer.send(file, position, length, plainChannel, transfer);
+                    metrics.bytesOut(userStats, length);
+                } else {
+                    FileTransfer.send(file, position, length, body, transfer);
+                    body.flush();
+                }
+            }
+        }
+
+        // Sends cached data as a response body
+        private void sendBody(OutputStream body, List<ByteBuffer> data) throws IOException {
+            long length = 0;
+            for (ByteBuffer buffer : data) {
+                length += buffer.remaining();
+            }
+            try (TransferScheduler.Transfer transfer = scheduler.start(authenticatedUser, length)) {
+                if (plainChannel != null && !framed) {
+                    body.flush();
+                    for (ByteBuffer buffer : data) {
+                        metrics.bytesOut(userStats, buffer.remaining());
+                        FileTransfer.send(buffer, plainChannel, transfer);
+                    }
+                } else {
+                    for (ByteBuffer buffer : data) {
+                        FileTransfer.send(buffer, body, transfer);
+                    }
+                    body.flush();
                 }
             }
         }
 
+        private String cacheKey(String filename) {
+            return authenticatedUser + "/" + filename;
+        }
+
+        // TICKET; answers "TICKET <ticket> <expiry in epoch milliseconds>"
+        private void handleTicket() throws IOException {
+            UserStore.Account account = users.get(authenticatedUser);
+            if (account == null) {
+                reply("FAILED: Unknown user");
+                return;
+            }
+            long expires = System.currentTimeMillis() + tickets.lifetimeMillis();
+            reply("TICKET " + tickets.issue(account, expires) + " " + expires);
+        }
+
+        // STATS; answers "STATS <n>", n lines of metrics and "END"
+        private void handleStats() throws IOException {
+            if (!ADMINS.contains(authenticatedUser)) {
+                reply("FAILED: Not an administrator");
+                return;
+            }
+            List<String> lines = metrics.report();
+            lines.addAll(scheduler.report());
+            lines.addAll(scrubber.report());
+            lines.addAll(rebalancer.report());
+            reply("STATS " + lines.size());
+            for (String line : lines) {
+                reply(line);
+            }
+            reply("END");
+        }
+
+        // Called after a file in the user's directory has been written
+        private void fileChanged(String filename) {
+            blobCache.invalidate(cacheKey(filename));
+            fileIndex.refresh(authenticatedUser, filename);
+        }
+
         private void handleUpload(String filename) throws IOException {
             try {
                 // Read file size
-                long fileSize = dataIn.readLong();
-
-                // Prepare file path
-                Path filePath = Paths.get(SERVER_STORAGE_DIR, authenticatedUser, filename);
+                long fileSize = readBodyLength();
+                if (!checkName(filename)) {
+                    return;
+                }
 
-                out.println("READY");
+                blobCache.invalidate(cacheKey(filename));
 
-                // Read the encrypted file
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                long totalBytesRead = 0;
+                InputStream body = openBody(fileSize);
 
-                try (FileOutputStream fileOut = new FileOutputStream(filePath.toFile())) {
-                    while (totalBytesRead < fileSize &&
-                            (bytesRead = dataIn.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalBytesRead))) != -1) {
-                        fileOut.write(buffer, 0, bytesRead);
-                        totalBytesRead += bytesRead;
+                // Read the encrypted file into a temporary file on the root it
+                // goes to, and only put it in place once complete, so a partial
+                // upload is never listed
+                Path temp = WriteBehind.createTempFile(layout.root(authenticatedUser, filename), authenticatedUser);
+                Checksums.Builder checksum = new Checksums.Builder();
+                try {
+                    try (FileChannel file = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                        receiveBody(body, fileSize, file, 0, checksum);
+                        WriteBehind.commit(file);
                     }
+                    layout.store(temp, authenticatedUser, filename);
+                } finally {
+                    Files.deleteIfExists(temp);
                 }
+                Checksums.Record record = checksums.save(authenticatedUser, filename, checksum);
 
-                out.println("SUCCESS: File uploaded successfully");
+                // Index the file before answering, so a LIST sent after the
+                // answer, on any connection, already shows the new version
+                fileChanged(filename);
+                reply("SUCCESS: File uploaded successfully" + checksumWord(record));
                 System.out.println("File uploaded: " + filename + " by " + authenticatedUser);
 
             } catch (IOException e) {
-                out.println("FAILED: " + e.getMessage());
+                fileChanged(filename);
+                reply("FAILED: " + e.getMessage());
                 e.printStackTrace();
             }
         }
 
+        // UPLOAD_OPEN <size> <filename>
+        private void handleUploadOpen(String arguments) throws IOException {
+            String[] args = arguments.split(" ", 2);
+            try {
+                if (args.length < 2) {
+                    reply("FAILED: Usage UPLOAD_OPEN <size> <filename>");
+                    return;
+                }
+                String id = uploadSessions.open(authenticatedUser, Long.parseLong(args[0]), args[1]);
+                reply("SESSION " + id);
+            } catch (NumberFormatException e) {
+                reply("FAILED: Invalid size");
+            } catch (IOException e) {
+                reply("FAILED: " + e.getMessage());
+            }
+        }
+
+        // UPLOAD_PART <session> <part> <offset> [<crc32c>], followed by the
+        // part's data; a part that does not match its checksum is not kept
+        private void handleUploadPart(String arguments) throws IOException {
+            long length = readBodyLength();
+            String[] args = arguments.split(" ");
+            int part;
+            long offset;
+            long crc;
+            try {
+                part = Integer.parseInt(args[1]);
+                offset = Long.parseLong(args[2]);
+                crc = args.length > 3 ? Long.parseLong(args[3], 16) : -1;
+            } catch (RuntimeException e) {
+                reply("FAILED: Usage UPLOAD_PART <session> <part> <offset> [<crc32c>]");
+                return;
+            }
+
+            try {
+                // Before READY, so a part that cannot be stored is never sent
+                uploadSessions.checkPart(authenticatedUser, args[0], part, offset, length);
+            } catch (IOException e) {
+                reply("FAILED: " + e.getMessage());
+                return;
+            }
+
+            InputStream body = openBody(length);
+            try {
+                try (TransferScheduler.Transfer transfer = scheduler.start(authenticatedUser, length)) {
+                    uploadSessions.writePart(authenticatedUser, args[0], part, offset, length, crc, body, transfer);
+                }
+                reply("SUCCESS: Part " + part + " stored");
+            } catch (IOException e) {
+                // The client sends the whole part after READY; read the rest so
+                // it is not taken for commands (framed bodies are drained anyway)
+                if (body instanceof BoundedInputStream) {
+                    ((BoundedInputStream) body).drain();
+                }
+                reply("FAILED: " + e.getMessage());
+            }
+        }
+
+        private void handleUploadSession(String action, String id) throws IOException {
+            try {
+                switch (action) {
+                    case "UPLOAD_STATUS":
+                        StringBuilder response = new StringBuilder("PARTS");
+                        for (int part : uploadSessions.parts(authenticatedUser, id).keySet()) {
+                            response.append(' ').append(part);
+                        }
+                        reply(response.toString());
+                        break;
+                    case "UPLOAD_COMMIT":
+                        String filename = uploadSessions.commit(authenticatedUser, id);
+                        // Parts arrive out of order, so the file is read once to checksum it
+                        Checksums.Record record = checksums.compute(authenticatedUser, filename);
+                        fileChanged(filename);
+                        reply("SUCCESS: File uploaded successfully" + checksumWord(record));
+                        System.out.println("File uploaded: " + filename + " by " + authenticatedUser);
+                        break;
+                    default:
+                        uploadSessions.abort(authenticatedUser, id);
+                        reply("SUCCESS: Upload aborted");
+                }
+            } catch (IOException e) {
+                reply("FAILED: " + e.getMessage());
+            }
+        }
+
+        // CHUNK_QUERY <id> <id> ...; answers with the positions of the ids not stored yet
+        private void handleChunkQuery(String arguments) throws IOException {
+            StringBuilder response = new StringBuilder("MISSING");
+            String[] ids = arguments.trim().split(" ");
+            for (int i = 0; i < ids.length; i++) {
+                byte[] id = DedupCipher.parseId(ids[i]);
+                if (id == null) {
+                    reply("FAILED: Invalid chunk id");
+                    return;
+                }
+                if (!chunkStore.has(authenticatedUser, id)) {
+                    response.append(' ').append(i);
+                }
+            }
+            reply(response.toString());
+        }
+
+        // CHUNK_PUT, followed by chunks of id, length and blob
+        private void handleChunkPut() throws IOException {
+            long length = readBodyLength();
+            DataInputStream body = new DataInputStream(openBody(length));
+            byte[] id = new byte[DedupCipher.ID_LENGTH];
+            byte[] blob = new byte[DedupCipher.MAX_BLOB_LENGTH];
+            int stored = 0;
+            String error = null;
+
+            try {
+                long remaining = length;
+                while (remaining > 0) {
+                    body.readFully(id);
+                    int blobLength = body.readInt();
+                    if (blobLength < 0 || blobLength > blob.length) {
+                        // The rest of the body cannot be parsed, so the stream is lost
+                        throw new IOException("Invalid chunk length: " + blobLength);
+                    }
+                    body.readFully(blob, 0, blobLength);
+                    remaining -= id.length + 4 + blobLength;
+
+                    if (error == null) {
+                        if (chunkStore.put(authenticatedUser, id, blob, blobLength)) {
+                            stored++;
+                        } else {
+                            error = "Chunk " + DedupCipher.hex(id) + " does not match its id";
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                reply("FAILED: " + e.getMessage());
+                throw e;
+            }
+            reply(error == null ? "SUCCESS: " + stored + " chunks stored" : "FAILED: " + error);
+        }
+
+        // MANIFEST_PUT <filename>, followed by the manifest
+        private void handleManifestPut(String filename) throws IOException {
+            long length = readBodyLength();
+            if (!checkName(filename)) {
+                return;
+            }
+            InputStream body = openBody(length);
+            try {
+                chunkStore.putManifest(authenticatedUser, filename, body, length);
+                checksums.compute(authenticatedUser, filename);
+                fileChanged(filename);
+                reply("SUCCESS: File uploaded successfully");
+                System.out.println("File uploaded: " + filename + " by " + authenticatedUser + " (deduplicated)");
+            } catch (IOException e) {
+                reply("FAILED: " + e.getMessage());
+            }
+        }
+
+        // Sends the manifest of a chunked file as is; its entries are the
+        // block signatures SYNC matches against
+        private void handleSignatures(String filename) throws IOException {
+            if (!checkName(filename)) {
+                return;
+            }
+            Path filePath = layout.locate(authenticatedUser, filename);
+            if (filePath == null) {
+                reply("FAILED: File not found");
+                return;
+            }
+            File file = filePath.toFile();
+            if (!ChunkStore.isManifest(file)) {
+                reply("FAILED: No signatures for this file");
+                return;
+            }
+
+            try (FileChannel manifest = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = manifest.size();
+                reply("SIZE " + size);
+                OutputStream body = openBodyOutput();
+                if (body != null) {
+                    sendBody(body, manifest, 0, size);
+                }
+            }
+        }
+
+        // Deduplicated files are stored as manifests and sent expanded
+        private long storedLength(File file) throws IOException {
+            return ChunkStore.isManifest(file) ? chunkStore.expandedLength(file) : file.length();
+        }
+
         private void handleDownload(String filename) throws IOException {
-            Path filePath = Paths.get(SERVER_STORAGE_DIR, authenticatedUser, filename);
+            sendFile(filename, 0, Long.MAX_VALUE);
+        }
+
+        // DOWNLOAD_RANGE <offset> <length> <filename>
+        private void handleDownloadRange(String arguments) throws IOException {
+            String[] args = arguments.split(" ", 3);
+            long offset;
+            long length;
+            try {
+                offset = Long.parseLong(args[0]);
+                length = args.length == 3 ? Long.parseLong(args[1]) : -1;
+            } catch (NumberFormatException e) {
+                offset = -1;
+                length = -1;
+            }
+            if (offset < 0 || length < 0) {
+                reply("FAILED: Usage DOWNLOAD_RANGE <offset> <length> <filename>");
+                return;
+            }
+            sendFile(args[2], offset, length);
+        }
+
+        private void handleStat(String filename) throws IOException {
+            if (!checkName(filename)) {
+                return;
+            }
+            Path filePath = layout.locate(authenticatedUser, filename);
+            if (filePath == null) {
+                reply("FAILED: File not found");
+                return;
+            }
             File file = filePath.toFile();
+            if (ChunkStore.isManifest(file)) {
+                reply("SIZE " + storedLength(file));
+            } else {
+                Checksums.Record record = checksums.get(authenticatedUser, filename);
+                reply("SIZE " + file.length() + checksumWord(record));
+            }
+        }
+
+        // " crc32c=<hex>" for a reply, or nothing if the checksum is not known
+        private static String checksumWord(Checksums.Record record) {
+            return record == null ? "" : " crc32c=" + Crc32c.format(record.crc);
+        }
+
+        // The checksum word for sending length bytes at offset of a plain
+        // stored file, if its saved checksum still matches the file
+        private String rangeChecksum(Path filePath, String filename, long fileLength, long modified, long offset,
+                                     long length) throws IOException {
+            Checksums.Record record = checksums.get(authenticatedUser, filename);
+            if (record == null || !record.matches(fileLength, modified)) {
+                return "";
+            }
+            if (offset == 0 && length == record.length) {
+                return checksumWord(record);
+            }
+            try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                return " crc32c=" + Crc32c.format(record.range(channel, offset, length));
+            }
+        }
+
+        // VERIFY [<filename>]; checks the user's files, or one of them, against
+        // their checksums in the background
+        private void handleVerify(String filename) throws IOException {
+            filename = filename.trim();
+            if (filename.isEmpty()) {
+                try {
+                    int count = scrubber.queue(authenticatedUser);
+                    reply("SUCCESS: Verifying " + count + " files in the background");
+                } catch (IOException e) {
+                    reply("FAILED: " + e.getMessage());
+                }
+                return;
+            }
+            if (!checkName(filename)) {
+                return;
+            }
+            if (layout.locate(authenticatedUser, filename) == null) {
+                reply("FAILED: File not found");
+                return;
+            }
+            scrubber.queue(authenticatedUser, filename);
+            reply("SUCCESS: Verifying " + filename + " in the background");
+        }
 
-            if (!file.exists() || !file.isFile()) {
-                out.println("FAILED: File not found");
+        // VERIFY_STATUS; answers "VERIFY <n>", a line per damaged file of the
+        // user and "END", where n counts the lines before END
+        private void handleVerifyStatus() throws IOException {
+            Map<String, String> damaged = scrubber.damaged(authenticatedUser);
+            reply("VERIFY " + (damaged.size() + 1));
+            reply("Files waiting to be verified: " + scrubber.pending());
+            for (Map.Entry<String, String> entry : damaged.entrySet()) {
+                reply("DAMAGED " + entry.getKey() + ": " + entry.getValue());
+            }
+            reply("END");
+        }
+
+        // Sends up to length bytes starting at offset; the SIZE reply carries
+        // the number of bytes actually sent once the range is clipped to the file
+        private void sendFile(String filename, long offset, long length) throws IOException {
+            if (!checkName(filename)) {
                 return;
             }
+            // Wherever the layout has it, which may be an old root until the Rebalancer moves it
+            Path filePath = layout.locate(authenticatedUser, filename);
+            if (filePath == null) {
+                reply("FAILED: File not found");
+                return;
+            }
+            File file = filePath.toFile();
+
+            // Taken before the file is examined, see BlobCache.load
+            long cacheVersion = blobCache.version();
+            long fileLength = file.length();
+            long modified = file.lastModified();
+            BlobCache.Entry cached = blobCache.acquire(cacheKey(filename), fileLength, modified);
 
             try {
                 // Send file size
-                long fileSize = file.length();
-                out.println("SIZE " + fileSize);
+                boolean manifest = cached == null && ChunkStore.isManifest(file);
+                long storedLength = cached != null ? cached.length()
+                        : manifest ? chunkStore.expandedLength(file) : fileLength;
+                long fileSize = Math.max(0, Math.min(length, storedLength - offset));
+                String checksum = manifest || (cached != null && ChunkStore.isManifest(file)) ? ""
+                        : rangeChecksum(filePath, filename, fileLength, modified, Math.min(offset, storedLength),
+                        fileSize);
+                reply("SIZE " + fileSize + checksum);
 
                 // Wait for client to be ready
-                String response = in.readLine();
-                if (!"READY".equals(response)) {
+                OutputStream body = openBodyOutput();
+                if (body == null) {
                     return;
                 }
 
-                // Send the encrypted file
-                byte[] buffer = new byte[4096];
-                int bytesRead;
+                // Whole downloads of a file that is not cached yet may bring it into the cache
+                if (cached == null && offset == 0 && fileSize == storedLength && blobCache.accepts(storedLength)) {
+                    cached = blobCache.load(cacheKey(filename), fileLength, modified, storedLength, cacheVersion,
+                            () -> manifest
+                                    ? Channels.newChannel(chunkStore.openExpanded(authenticatedUser, file))
+                                    : FileChannel.open(filePath, StandardOpenOption.READ));
+                }
 
-                try (FileInputStream fileIn = new FileInputStream(file)) {
-                    while ((bytesRead = fileIn.read(buffer)) != -1) {
-                        dataOut.write(buffer, 0, bytesRead);
+                // Send the encrypted file
+                if (cached != null) {
+                    sendBody(body, blobCache.buffers(cached, offset, fileSize));
+                } else if (manifest) {
+                    try (InputStream expanded = chunkStore.openExpanded(authenticatedUser, file)) {
+                        long skipped = 0;
+                        while (skipped < offset && skipped < storedLength) {
+                            long n = expanded.skip(offset - skipped);
+                            if (n <= 0) {
+                                break;
+                            }
+                            skipped += n;
+                        }
+                        try (TransferScheduler.Transfer transfer = scheduler.start(authenticatedUser, fileSize)) {
+                            FileTransfer.copy(expanded, fileSize, body, transfer);
+                        }
+                        body.flush();
+                    }
+                } else {
+                    try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                        sendBody(body, channel, offset, fileSize);
                     }
-                    dataOut.flush();
                 }
 
-                System.out.println("File downloaded: " + filename + " by " + authenticatedUser);
+                if (fileSize == storedLength) {
+                    System.out.println("File downloaded: " + filename + " by " + authenticatedUser);
+                }
 
             } catch (IOException e) {
-                out.println("FAILED: " + e.getMessage());
+                reply("FAILED: " + e.getMessage());
                 e.printStackTrace();
+            } finally {
+                if (cached != null) {
+                    blobCache.release(cached);
+                }
             }
         }
 
-        private void handleListFiles() {
-            File userDir = new File(SERVER_STORAGE_DIR + File.separator + authenticatedUser);
-            String[] files = userDir.list();
+        // LIST [prefix=<text>] [sort=name|size|mtime] [order=asc|desc] [limit=<n>] [cursor=<token>] [long]
+        // Answers "Files: <n>", one line per file and "END", followed by a
+        // cursor for the next page when the listing was cut off by limit
+        private void handleListFiles(String arguments) throws IOException {
+            String prefix = "";
+            FileIndex.Sort sort = FileIndex.Sort.NAME;
+            boolean descending = false;
+            int limit = 0;
+            String cursor = null;
+            boolean details = false;
 
-            if (files == null || files.length == 0) {
-                out.println("No files found");
-            } else {
-                out.println("Files: " + files.length);
-                for (String file : files) {
-                    out.println(file);
+            try {
+                for (String option : arguments.trim().split(" +")) {
+                    if (option.isEmpty()) {
+                        continue;
+                    }
+                    if (option.equalsIgnoreCase("long")) {
+                        details = true;
+                        continue;
+                    }
+                    String[] pair = option.split("=", 2);
+                    if (pair.length != 2) {
+                        throw new IllegalArgumentException("Invalid option " + option);
+                    }
+                    switch (pair[0].toLowerCase()) {
+                        case "prefix":
+                            prefix = pair[1];
+                            break;
+                        case "sort":
+                            try {
+                                sort = FileIndex.Sort.valueOf(pair[1].toUpperCase());
+                            } catch (IllegalArgumentException e) {
+                                throw new IllegalArgumentException("Invalid sort " + pair[1]);
+                            }
+                            break;
+                        case "order":
+                            if (!pair[1].equalsIgnoreCase("asc") && !pair[1].equalsIgnoreCase("desc")) {
+                                throw new IllegalArgumentException("Invalid order " + pair[1]);
+                            }
+                            descending = pair[1].equalsIgnoreCase("desc");
+                            break;
+                        case "limit":
+                            limit = Integer.parseInt(pair[1]);
+                            break;
+                        case "cursor":
+                            cursor = pair[1];
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Invalid option " + option);
+                    }
+                }
+
+                FileIndex.Page page = fileIndex.list(authenticatedUser, prefix, sort, descending, limit, cursor);
+                if (page.empty) {
+                    reply("No files found");
+                    return;
+                }
+
+                reply("Files: " + page.entries.size());
+                for (FileIndex.Entry entry : page.entries) {
+                    reply(details ? describe(entry, checksums.get(authenticatedUser, entry.name)) : entry.name);
+                }
+                reply(page.cursor == null ? "END" : "END " + page.cursor);
+            } catch (IllegalArgumentException e) {
+                reply("FAILED: " + (e instanceof NumberFormatException ? "Invalid limit" : e.getMessage()));
+            }
+        }
+
+        // <size> <modified> <sha-256 or -> <crc32c or -> <codec> <name>; the
+        // name comes last as it may contain spaces
+        private static String describe(FileIndex.Entry entry, Checksums.Record record) {
+            String hash = entry.hash == null ? "-" : DedupCipher.hex(entry.hash);
+            String crc = record == null || !record.matches(entry.length, entry.modified)
+                    ? "-" : Crc32c.format(record.crc);
+            return entry.size + " " + Instant.ofEpochMilli(entry.modified) + " " + hash + " " + crc + " "
+                    + entry.codec + " " + entry.name;
+        }
+
+        // Counts what the handler reads, for the metrics of the server and the user
+        private class CountingInputStream extends FilterInputStream {
+            CountingInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    metrics.bytesIn(userStats, 1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    metrics.bytesIn(userStats, n);
                 }
-                out.println("END");
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                metrics.bytesIn(userStats, skipped);
+                return skipped;
+            }
+        }
+
+        private class CountingOutputStream extends FilterOutputStream {
+            CountingOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                metrics.bytesOut(userStats, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                metrics.bytesOut(userStats, len);
             }
         }
     }
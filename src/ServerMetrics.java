@@ -0,0 +1,261 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server instrumentation: connection and transfer gauges, byte counters,
+ * latency histograms for the TLS handshake, login and every command, and
+ * totals per user.
+ *
+ * The counters are LongAdders and the histograms lock-free, so connection
+ * threads update them without contending. Everything is published over JMX
+ * once register() has run, and as text by the STATS command. A background
+ * thread samples the byte counters every second to give the rates over the
+ * last minute.
+ */
+class ServerMetrics implements ServerMetricsMXBean {
+    private static final String DOMAIN = "SecureFileTransfer";
+    private static final int RATE_WINDOW_SECONDS = 60;
+
+    /** Totals for one user. */
+    static final class UserStats implements UserStatsMXBean {
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final LongAdder commands = new LongAdder();
+        private final LongAdder transfers = new LongAdder();
+
+        @Override
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        @Override
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        @Override
+        public long getCommands() {
+            return commands.sum();
+        }
+
+        @Override
+        public long getTransfers() {
+            return transfers.sum();
+        }
+    }
+
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LongAdder totalConnections = new LongAdder();
+    private final AtomicInteger inFlightTransfers = new AtomicInteger();
+    private final LongAdder loginFailures = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LatencyHistogram handshake = new LatencyHistogram();
+    private final LatencyHistogram login = new LatencyHistogram();
+    private final Map<String, LatencyHistogram> commands = new ConcurrentHashMap<>();
+    private final Map<String, UserStats> users = new ConcurrentHashMap<>();
+
+    // Byte totals at the end of each of the last RATE_WINDOW_SECONDS seconds,
+    // oldest first; guarded by this
+    private final long[] inSamples = new long[RATE_WINDOW_SECONDS + 1];
+    private final long[] outSamples = new long[RATE_WINDOW_SECONDS + 1];
+    private int samples;
+
+    private volatile MBeanServer mbeanServer;
+
+    ServerMetrics() {
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // Publishes this and every histogram and user, now and as they are created
+    void register() throws JMException {
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        mbeanServer.registerMBean(this, new ObjectName(DOMAIN + ":type=Server"));
+        registerLatency("HANDSHAKE", handshake);
+        registerLatency("LOGIN", login);
+        for (Map.Entry<String, LatencyHistogram> entry : commands.entrySet()) {
+            registerLatency(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, UserStats> entry : users.entrySet()) {
+            registerUser(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void registerLatency(String name, LatencyHistogram histogram) {
+        register(histogram, DOMAIN + ":type=Latency,name=" + ObjectName.quote(name));
+    }
+
+    private void registerUser(String name, UserStats stats) {
+        register(stats, DOMAIN + ":type=User,name=" + ObjectName.quote(name));
+    }
+
+    private void register(Object bean, String name) {
+        MBeanServer server = mbeanServer;
+        if (server == null) {
+            return;
+        }
+        try {
+            ObjectName objectName = new ObjectName(name);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(bean, objectName);
+            }
+        } catch (JMException e) {
+            // Registered by another thread in the meantime
+        }
+    }
+
+    void connectionOpened() {
+        activeConnections.incrementAndGet();
+        totalConnections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    void handshakeFinished(long nanos) {
+        handshake.record(nanos);
+    }
+
+    void loginFinished(long nanos, boolean success) {
+        login.record(nanos);
+        if (!success) {
+            loginFailures.increment();
+        }
+    }
+
+    void transferStarted(UserStats user) {
+        inFlightTransfers.incrementAndGet();
+        user.transfers.increment();
+    }
+
+    void transferFinished() {
+        inFlightTransfers.decrementAndGet();
+    }
+
+    void commandFinished(String command, UserStats user, long nanos) {
+        LatencyHistogram histogram = commands.get(command);
+        if (histogram == null) {
+            histogram = commands.computeIfAbsent(command, name -> new LatencyHistogram());
+            registerLatency(command, histogram);
+        }
+        histogram.record(nanos);
+        user.commands.increment();
+    }
+
+    // user is null before login
+    void bytesIn(UserStats user, long count) {
+        bytesIn.add(count);
+        if (user != null) {
+            user.bytesIn.add(count);
+        }
+    }
+
+    void bytesOut(UserStats user, long count) {
+        bytesOut.add(count);
+        if (user != null) {
+            user.bytesOut.add(count);
+        }
+    }
+
+    UserStats user(String name) {
+        UserStats stats = users.get(name);
+        if (stats == null) {
+            stats = users.computeIfAbsent(name, key -> new UserStats());
+            registerUser(name, stats);
+        }
+        return stats;
+    }
+
+    private synchronized void sample() {
+        if (samples == inSamples.length) {
+            System.arraycopy(inSamples, 1, inSamples, 0, samples - 1);
+            System.arraycopy(outSamples, 1, outSamples, 0, samples - 1);
+            samples--;
+        }
+        inSamples[samples] = bytesIn.sum();
+        outSamples[samples] = bytesOut.sum();
+        samples++;
+    }
+
+    private synchronized double rate(long[] totals) {
+        return samples < 2 ? 0 : (double) (totals[samples - 1] - totals[0]) / (samples - 1);
+    }
+
+    // The lines STATS answers with
+    List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add("connections active=" + getActiveConnections() + " total=" + getTotalConnections()
+                + " transfers=" + getInFlightTransfers() + " loginFailures=" + getLoginFailures());
+        lines.add(String.format("bytes in=%d out=%d inPerSecond=%.0f outPerSecond=%.0f", getBytesIn(), getBytesOut(),
+                getBytesInPerSecond(), getBytesOutPerSecond()));
+        lines.add("latency HANDSHAKE " + handshake.summary());
+        lines.add("latency LOGIN " + login.summary());
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(commands).entrySet()) {
+            lines.add("latency " + entry.getKey() + " " + entry.getValue().summary());
+        }
+        for (Map.Entry<String, UserStats> entry : new TreeMap<>(users).entrySet()) {
+            UserStats stats = entry.getValue();
+            lines.add("user " + entry.getKey() + " in=" + stats.getBytesIn() + " out=" + stats.getBytesOut()
+                    + " commands=" + stats.getCommands() + " transfers=" + stats.getTransfers());
+        }
+        return lines;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    @Override
+    public long getTotalConnections() {
+        return totalConnections.sum();
+    }
+
+    @Override
+    public int getInFlightTransfers() {
+        return inFlightTransfers.get();
+    }
+
+    @Override
+    public long getLoginFailures() {
+        return loginFailures.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getBytesInPerSecond() {
+        return rate(inSamples);
+    }
+
+    @Override
+    public double getBytesOutPerSecond() {
+        return rate(outSamples);
+    }
+}
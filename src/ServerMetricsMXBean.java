@@ -0,0 +1,25 @@
+/**
+ * Connection, transfer and throughput figures of the server, registered as
+ * SecureFileTransfer:type=Server. Latencies are published per operation as
+ * SecureFileTransfer:type=Latency and totals per user as
+ * SecureFileTransfer:type=User.
+ */
+public interface ServerMetricsMXBean {
+    int getActiveConnections();
+
+    long getTotalConnections();
+
+    // Uploads and downloads whose body is being sent or received
+    int getInFlightTransfers();
+
+    long getLoginFailures();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    // Averages over the last minute
+    double getBytesInPerSecond();
+
+    double getBytesOutPerSecond();
+}
@@ -0,0 +1,96 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Signed, expiring session tickets, so a client that reconnects can log in
+ * without the password check.
+ *
+ * A ticket is base64url("name:epoch:expires") + "." + base64url(HMAC-SHA256 of
+ * that), signed with a key kept in .ticket-key of the secrets directory (see
+ * Secrets) so tickets stay valid across restarts; deleting the key file revokes them all. A ticket is
+ * only accepted while the account exists with the epoch it was issued for, so
+ * a new password or a removed account ends the tickets issued before.
+ */
+class SessionTickets {
+    private static final int KEY_LENGTH = 32;
+
+    private final UserStore users;
+    private final long lifetimeMillis;
+    private final SecretKeySpec key;
+
+    SessionTickets(Path secrets, UserStore users, long lifetimeMillis) throws IOException {
+        this.users = users;
+        this.lifetimeMillis = lifetimeMillis;
+        this.key = new SecretKeySpec(loadKey(secrets.resolve(".ticket-key")), "HmacSHA256");
+    }
+
+    private static byte[] loadKey(Path keyFile) throws IOException {
+        if (!Files.exists(keyFile)) {
+            byte[] key = new byte[KEY_LENGTH];
+            new SecureRandom().nextBytes(key);
+            try {
+                Secrets.createFile(keyFile, key);
+                return key;
+            } catch (FileAlreadyExistsException e) {
+                // Another process created it first
+            }
+        }
+        byte[] key = Files.readAllBytes(keyFile);
+        if (key.length != KEY_LENGTH) {
+            throw new IOException("Malformed ticket key " + keyFile);
+        }
+        return key;
+    }
+
+    long lifetimeMillis() {
+        return lifetimeMillis;
+    }
+
+    String issue(UserStore.Account account, long expires) {
+        String payload = Base64.getUrlEncoder().withoutPadding().encodeToString(
+                (account.name + ":" + account.epoch + ":" + expires).getBytes(StandardCharsets.UTF_8));
+        return payload + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(sign(payload));
+    }
+
+    // Returns the user a ticket was issued to, or null if it is forged, expired or revoked
+    String verify(String ticket) throws IOException {
+        int dot = ticket.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        String payload = ticket.substring(0, dot);
+        try {
+            if (!MessageDigest.isEqual(sign(payload), Base64.getUrlDecoder().decode(ticket.substring(dot + 1)))) {
+                return null;
+            }
+            String[] fields = new String(Base64.getUrlDecoder().decode(payload), StandardCharsets.UTF_8).split(":");
+            if (fields.length != 3 || Long.parseLong(fields[2]) < System.currentTimeMillis()) {
+                return null;
+            }
+            UserStore.Account account = users.get(fields[0]);
+            return account != null && account.epoch == Long.parseLong(fields[1]) ? account.name : null;
+        } catch (IllegalArgumentException e) {
+            // Not base64 or not a number
+            return null;
+        }
+    }
+
+    private byte[] sign(String payload) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+}
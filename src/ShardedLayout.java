@@ -0,0 +1,338 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Spreads users' files over several storage roots, typically one per disk,
+ * by consistent hashing, and over hashed subdirectories inside each root.
+ *
+ * -Dserver.storage.roots lists the roots, comma separated (default
+ * server_storage); the first also holds the server's indexes and chunks. Each root
+ * owns VIRTUAL_NODES points on a hash ring, and a file goes to the root that
+ * owns the first point after the SHA-256 of "<user>/<name>", so adding a root
+ * only moves the share of files the new root takes over. With
+ * -Dserver.storage.fanout=n (0 to 3, default 0) files go n directories deeper,
+ * named after further bytes of the same hash, as in <root>/<user>/3f/a1/<name>
+ * for 2, so no directory holds more than a few thousand of a user's files.
+ * One root and no fan-out is the plain server_storage/<user>/<name>.
+ *
+ * A root's points come from its path, so keep the paths of existing roots
+ * when adding one. Files found where another list of roots or another
+ * fan-out put them are still served until the Rebalancer moves them.
+ */
+final class ShardedLayout implements StorageLayout {
+    static final int MAX_FANOUT = 3;
+    private static final int VIRTUAL_NODES = 128;
+    private static final int LOCKS = 256;
+    // Bytes of the hash that place a file on the ring; the fan-out uses the ones after
+    private static final int POSITION_BYTES = 8;
+    // Names of the hashed fan-out directories
+    private static final Pattern FANOUT_NAME = Pattern.compile("[0-9a-f]{2}");
+
+    private final List<Path> roots;
+    private final int fanout;
+    private final NavigableMap<Long, Path> ring = new TreeMap<>();
+    private final Object[] locks = new Object[LOCKS];
+
+    ShardedLayout(List<Path> roots, int fanout) {
+        if (roots.isEmpty()) {
+            throw new IllegalArgumentException("No storage roots");
+        }
+        if (fanout < 0 || fanout > MAX_FANOUT) {
+            throw new IllegalArgumentException("Fan-out must be 0 to " + MAX_FANOUT);
+        }
+        this.roots = Collections.unmodifiableList(new ArrayList<>(roots));
+        this.fanout = fanout;
+        for (Path root : roots) {
+            String id = root.toAbsolutePath().normalize().toString();
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(position(hash(id + "#" + i)), root);
+            }
+        }
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    static ShardedLayout fromProperties() {
+        List<Path> roots = new ArrayList<>();
+        for (String root : System.getProperty("server.storage.roots", "server_storage").split(",")) {
+            if (!root.trim().isEmpty()) {
+                roots.add(Paths.get(root.trim()));
+            }
+        }
+        return new ShardedLayout(roots, Integer.getInteger("server.storage.fanout", 0));
+    }
+
+    @Override
+    public Path home() {
+        return roots.get(0);
+    }
+
+    @Override
+    public List<Path> roots() {
+        return roots;
+    }
+
+    @Override
+    public Path root(String user, String name) {
+        checkName(name);
+        return root(hash(user + "/" + name));
+    }
+
+    @Override
+    public Path path(String user, String name) {
+        checkName(name);
+        byte[] digest = hash(user + "/" + name);
+        return place(root(digest), user, name, fanout, digest);
+    }
+
+    @Override
+    public Path locate(String user, String name) {
+        if (!StorageLayout.isValidName(name)) {
+            return null;
+        }
+        byte[] digest = hash(user + "/" + name);
+        Path path = place(root(digest), user, name, fanout, digest);
+        if (Files.isRegularFile(path)) {
+            return path;
+        }
+        for (Path candidate : candidates(user, name, digest)) {
+            if (Files.isRegularFile(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<Path> stored(String user) throws IOException {
+        List<Path> files = new ArrayList<>();
+        walk(user, files);
+        return files;
+    }
+
+    @Override
+    public List<Path> directories(String user) throws IOException {
+        List<Path> directories = new ArrayList<>();
+        for (Path root : roots) {
+            Path home = root.resolve(user);
+            if (Files.isDirectory(home)) {
+                directories.add(home);
+                addFanoutDirectories(home, MAX_FANOUT, directories);
+            }
+        }
+        return directories;
+    }
+
+    @Override
+    public Set<String> users() {
+        Set<String> users = new TreeSet<>();
+        for (Path root : roots) {
+            File[] dirs = root.toFile().listFiles(file -> file.isDirectory() && !file.getName().startsWith("."));
+            if (dirs != null) {
+                for (File dir : dirs) {
+                    users.add(dir.getName());
+                }
+            }
+        }
+        return users;
+    }
+
+    @Override
+    public Path companion(Path file, String dir) {
+        for (Path root : roots) {
+            if (file.startsWith(root)) {
+                return root.resolve(dir).resolve(root.relativize(file));
+            }
+        }
+        throw new IllegalArgumentException(file + " is not in a storage root");
+    }
+
+    @Override
+    public Object lock(String user, String name) {
+        return locks[(user + "/" + name).hashCode() & (LOCKS - 1)];
+    }
+
+    @Override
+    public void store(Path temp, String user, String name) throws IOException {
+        // Both are checked before anything is resolved, so neither can make
+        // the directories below create anything outside the user's directory
+        if (!StorageLayout.isValidName(name)) {
+            throw new IOException("Invalid filename");
+        }
+        if (!StorageLayout.isValidName(user)) {
+            throw new IOException("Invalid user");
+        }
+        byte[] digest = hash(user + "/" + name);
+        Path root = root(digest);
+        Path target = place(root, user, name, fanout, digest);
+        if (!target.normalize().getParent().startsWith(root.resolve(user).normalize())) {
+            throw new IOException("Invalid filename");
+        }
+        Files.createDirectories(target.getParent());
+
+        Path copy = null;
+        if (!temp.startsWith(root)) {
+            // Staged on another root before a root was added; a rename cannot cross disks
+            copy = WriteBehind.createTempFile(root, user);
+            Files.copy(temp, copy, StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel file = FileChannel.open(copy, StandardOpenOption.WRITE)) {
+                WriteBehind.commit(file);
+            }
+        }
+        try {
+            synchronized (lock(user, name)) {
+                Files.move(copy != null ? copy : temp, target, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                // An older version elsewhere would otherwise be moved over this one
+                for (Path candidate : candidates(user, name, digest)) {
+                    remove(candidate);
+                }
+            }
+        } finally {
+            if (copy != null) {
+                Files.deleteIfExists(copy);
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    @Override
+    public void remove(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+        Files.deleteIfExists(file);
+        for (String dir : COMPANION_DIRS) {
+            Files.deleteIfExists(companion(file, dir));
+        }
+    }
+
+    // Every place other than path() where a layout of these roots could have put the file
+    private List<Path> candidates(String user, String name, byte[] digest) {
+        Path path = place(root(digest), user, name, fanout, digest);
+        List<Path> candidates = new ArrayList<>();
+        for (Path root : roots) {
+            for (int depth = 0; depth <= MAX_FANOUT; depth++) {
+                Path candidate = place(root, user, name, depth, digest);
+                if (!candidate.equals(path)) {
+                    candidates.add(candidate);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    // Adds the hashed directories below dir, down to depth levels. Only
+    // two-hex-digit names can be one, so other entries are never stat'ed;
+    // this runs on every index load and save
+    private static void addFanoutDirectories(Path dir, int depth, List<Path> directories) throws IOException {
+        if (depth == 0) {
+            return;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir,
+                entry -> FANOUT_NAME.matcher(entry.getFileName().toString()).matches())) {
+            for (Path entry : entries) {
+                if (Files.isDirectory(entry)) {
+                    directories.add(entry);
+                    addFanoutDirectories(entry, depth - 1, directories);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Removed meanwhile
+        }
+    }
+
+    // Collects user's files, in the places some fan-out would put them
+    private void walk(String user, List<Path> files) throws IOException {
+        for (Path root : roots) {
+            Path home = root.resolve(user);
+            if (!Files.isDirectory(home)) {
+                continue;
+            }
+            Files.walkFileTree(home, EnumSet.noneOf(FileVisitOption.class), MAX_FANOUT + 1,
+                    new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                            if (attributes.isRegularFile()) {
+                                String name = file.getFileName().toString();
+                                int depth = home.relativize(file).getNameCount() - 1;
+                                if (file.equals(place(root, user, name, depth, hash(user + "/" + name)))) {
+                                    files.add(file);
+                                }
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(Path file, IOException e) {
+                            // Removed while walking
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+        }
+    }
+
+    private static void checkName(String name) {
+        if (!StorageLayout.isValidName(name)) {
+            throw new IllegalArgumentException("Invalid filename: " + name);
+        }
+    }
+
+    private Path root(byte[] digest) {
+        if (roots.size() == 1) {
+            return roots.get(0);
+        }
+        Map.Entry<Long, Path> owner = ring.ceilingEntry(position(digest));
+        return (owner != null ? owner : ring.firstEntry()).getValue();
+    }
+
+    private static Path place(Path root, String user, String name, int depth, byte[] digest) {
+        Path dir = root.resolve(user);
+        for (int i = 0; i < depth; i++) {
+            dir = dir.resolve(String.format("%02x", digest[POSITION_BYTES + i] & 0xFF));
+        }
+        return dir.resolve(name);
+    }
+
+    private static long position(byte[] digest) {
+        long position = 0;
+        for (int i = 0; i < POSITION_BYTES; i++) {
+            position = position << 8 | (digest[i] & 0xFF);
+        }
+        return position;
+    }
+
+    private static byte[] hash(String key) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Where users' files are kept on disk.
+ *
+ * A layout puts each of a user's files at a path under one of the storage
+ * roots. New versions are always stored at path(); locate() also finds a file
+ * at a place an earlier configuration put it, so files stay reachable after a
+ * root is added until the Rebalancer has moved them. Metadata kept per file,
+ * such as its checksum record, lives under a hidden directory of the same
+ * root at the same relative path (see companion), so it moves with the file.
+ * The server's indexes and chunks are under home(); accounts and tickets are
+ * kept apart from the roots, see Secrets.
+ *
+ * File names come from clients, so a layout only accepts names for which
+ * isValidName holds: a single path element that is not hidden.
+ */
+interface StorageLayout {
+    // Directories of per-file metadata that follow their files around
+    List<String> COMPANION_DIRS = Collections.singletonList(Checksums.CHECKSUM_DIR);
+
+    // The first root, which holds the server's own data
+    Path home();
+
+    List<Path> roots();
+
+    // The root the file belongs on; temporary files renamed into place go there too
+    Path root(String user, String name);
+
+    // Where the file belongs
+    Path path(String user, String name);
+
+    // Where the file is stored now, or null if it is not stored anywhere
+    Path locate(String user, String name);
+
+    // Every stored copy of user's files, including copies not at their path() yet
+    List<Path> stored(String user) throws IOException;
+
+    // Every directory holding user's files, for noticing that they changed
+    List<Path> directories(String user) throws IOException;
+
+    // Users with a directory on any root
+    Set<String> users();
+
+    // Where the metadata in dir (one of COMPANION_DIRS) for a stored file goes
+    Path companion(Path file, String dir);
+
+    // Held while a file is put in place or moved, so a move never overwrites a newer upload
+    Object lock(String user, String name);
+
+    // Renames a complete temporary file into place as user's file name and
+    // removes copies left elsewhere by an earlier layout
+    void store(Path temp, String user, String name) throws IOException;
+
+    // Deletes a stored copy of a file, if it is a file, and its metadata
+    void remove(Path file) throws IOException;
+
+    // A name a client may give a file: no separators, no "..", and not hidden
+    // like the server's own files and directories, which all start with "."
+    static boolean isValidName(String name) {
+        return name != null && !name.isEmpty() && !name.startsWith(".") && !name.contains("/")
+                && !name.contains("\\") && !name.contains("..") && name.indexOf('\0') < 0;
+    }
+
+    // The layout set with -Dserver.storage.roots and -Dserver.storage.fanout
+    static StorageLayout configured() {
+        return ShardedLayout.fromProperties();
+    }
+}
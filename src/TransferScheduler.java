@@ -0,0 +1,346 @@
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shares the server's bandwidth between transfers, so one user pulling a
+ * huge file cannot starve everyone else.
+ *
+ * The copy loops ask for each block before they move it. A block first
+ * waits on its user's token bucket (-Dserver.userBandwidth, bytes per
+ * second), then on the global one (-Dserver.bandwidth). Transfers waiting
+ * for global bandwidth are served in weighted fair order: each block is
+ * tagged with a virtual finish time, its size divided by the weight of the
+ * user (-Dserver.userWeights=name=weight,...), and the smallest tag goes
+ * next. Small transfers (-Dserver.smallTransfer, default 1 MiB) never wait,
+ * but their bytes are still charged to the buckets, so small downloads and
+ * the commands between transfers stay fast while large ones are throttled.
+ *
+ * Buckets may go into debt by one block, so a block is never split and a
+ * limit below the block size still works. Without limits, acquire returns at
+ * once and the scheduler only counts active transfers.
+ */
+class TransferScheduler implements TransferSchedulerMXBean {
+    // Tokens a bucket can save up while idle, in seconds of its rate
+    private static final double BURST_SECONDS = 0.25;
+    // The most a waiter sleeps before looking again, in case limits change
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // A transfer that is never throttled, for copies outside of a session
+    static final Transfer UNLIMITED = new Transfer(null, null, 0, true);
+
+    // For background jobs that hold their own rate rather than share the
+    // server's buckets (Scrubber, Rebalancer): sleeps until moving bytes since
+    // start (a System.nanoTime) has taken as long as bytesPerSecond allows;
+    // 0 or less is no limit
+    static void pace(long start, long bytes, long bytesPerSecond) throws InterruptedException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long due = start + (long) (bytes * 1e9 / bytesPerSecond);
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /** One upload or download; ask for every block before moving it. */
+    static final class Transfer implements AutoCloseable {
+        private final TransferScheduler scheduler;
+        private final UserState user;
+        private final int weight;
+        private final boolean small;
+        // Virtual finish time of this transfer's last block
+        private double lastTag;
+        private boolean closed;
+
+        private Transfer(TransferScheduler scheduler, UserState user, int weight, boolean small) {
+            this.scheduler = scheduler;
+            this.user = user;
+            this.weight = weight;
+            this.small = small;
+        }
+
+        // Whether blocks may have to wait, so callers can move data in smaller steps
+        boolean isLimited() {
+            return scheduler != null && !small && scheduler.hasLimits();
+        }
+
+        // Waits until bytes may be moved
+        void acquire(int bytes) throws InterruptedIOException {
+            if (scheduler != null) {
+                scheduler.acquire(this, bytes);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (scheduler != null && !closed) {
+                closed = true;
+                scheduler.active.decrementAndGet();
+            }
+        }
+    }
+
+    // Token bucket; guarded by the scheduler's lock for the global one, by itself for users
+    private static final class Bucket {
+        double tokens;
+        long lastRefill = System.nanoTime();
+
+        // Adds the tokens earned since the last refill and returns the balance
+        double refill(long rate, long now) {
+            if (rate <= 0) {
+                tokens = 0;
+            } else {
+                tokens = Math.min(tokens + (now - lastRefill) * rate / 1e9, rate * BURST_SECONDS);
+            }
+            lastRefill = now;
+            return tokens;
+        }
+    }
+
+    private static final class UserState {
+        final String name;
+        final Bucket bucket = new Bucket();
+        final LongAdder throttledNanos = new LongAdder();
+        volatile int weight = 1;
+
+        UserState(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final class Waiter implements Comparable<Waiter> {
+        final double tag;
+        final long sequence;
+
+        Waiter(double tag, long sequence) {
+            this.tag = tag;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int byTag = Double.compare(tag, other.tag);
+            return byTag != 0 ? byTag : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private volatile long globalBytesPerSecond;
+    private volatile long userBytesPerSecond;
+    private volatile long smallTransferBytes;
+    private final Map<String, UserState> users = new ConcurrentHashMap<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder throttledNanos = new LongAdder();
+
+    // Global bucket and fair queue
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Bucket global = new Bucket();
+    private final PriorityQueue<Waiter> waiting = new PriorityQueue<>();
+    private double virtualTime;
+    private long sequence;
+
+    TransferScheduler(long globalBytesPerSecond, long userBytesPerSecond, long smallTransferBytes,
+                      String userWeights) {
+        this.globalBytesPerSecond = globalBytesPerSecond;
+        this.userBytesPerSecond = userBytesPerSecond;
+        this.smallTransferBytes = smallTransferBytes;
+        for (String item : userWeights.split(",")) {
+            String[] pair = item.trim().split("=");
+            if (pair.length == 2) {
+                setUserWeight(pair[0], Integer.parseInt(pair[1]));
+            }
+        }
+    }
+
+    Transfer start(String user, long length) {
+        active.incrementAndGet();
+        UserState state = user(user);
+        return new Transfer(this, state, state.weight, length <= smallTransferBytes);
+    }
+
+    private UserState user(String name) {
+        return users.computeIfAbsent(name, UserState::new);
+    }
+
+    private boolean hasLimits() {
+        return globalBytesPerSecond > 0 || userBytesPerSecond > 0;
+    }
+
+    private void acquire(Transfer transfer, int bytes) throws InterruptedIOException {
+        if (!hasLimits()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            acquireUser(transfer, bytes);
+            acquireGlobal(transfer, bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        } finally {
+            long waited = System.nanoTime() - start;
+            throttledNanos.add(waited);
+            transfer.user.throttledNanos.add(waited);
+        }
+    }
+
+    private void acquireUser(Transfer transfer, int bytes) throws InterruptedException {
+        Bucket bucket = transfer.user.bucket;
+        while (true) {
+            long rate = userBytesPerSecond;
+            long wait;
+            synchronized (bucket) {
+                double tokens = bucket.refill(rate, System.nanoTime());
+                if (rate <= 0 || tokens >= 0 || transfer.small) {
+                    bucket.tokens -= rate <= 0 ? 0 : bytes;
+                    return;
+                }
+                wait = (long) (-tokens / rate * 1e9);
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.min(Math.max(wait, 1), MAX_WAIT_NANOS));
+        }
+    }
+
+    private void acquireGlobal(Transfer transfer, int bytes) throws InterruptedException {
+        lock.lock();
+        try {
+            if (transfer.small || globalBytesPerSecond <= 0) {
+                global.refill(globalBytesPerSecond, System.nanoTime());
+                global.tokens -= globalBytesPerSecond <= 0 ? 0 : bytes;
+                return;
+            }
+
+            double tag = Math.max(virtualTime, transfer.lastTag) + (double) bytes / transfer.weight;
+            transfer.lastTag = tag;
+            Waiter waiter = new Waiter(tag, sequence++);
+            waiting.add(waiter);
+            try {
+                while (true) {
+                    long rate = globalBytesPerSecond;
+                    double tokens = global.refill(rate, System.nanoTime());
+                    if (waiting.peek() == waiter && (rate <= 0 || tokens >= 0)) {
+                        global.tokens -= rate <= 0 ? 0 : bytes;
+                        virtualTime = tag;
+                        return;
+                    }
+                    long wait = waiting.peek() == waiter ? (long) (-tokens / rate * 1e9) : MAX_WAIT_NANOS;
+                    changed.awaitNanos(Math.min(Math.max(wait, 1), MAX_WAIT_NANOS));
+                }
+            } finally {
+                waiting.remove(waiter);
+                // The next in line may go now
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The lines STATS adds for the scheduler
+    List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add("scheduler global=" + globalBytesPerSecond + " user=" + userBytesPerSecond + " small="
+                + smallTransferBytes + " active=" + getActiveTransfers() + " waiting=" + getWaitingTransfers()
+                + " throttledMs=" + getThrottledMillis());
+        for (Map.Entry<String, Long> entry : getThrottledMillisByUser().entrySet()) {
+            lines.add("throttled " + entry.getKey() + " weight=" + getUserWeight(entry.getKey()) + " ms="
+                    + entry.getValue());
+        }
+        return lines;
+    }
+
+    private void limitsChanged() {
+        lock.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getGlobalBytesPerSecond() {
+        return globalBytesPerSecond;
+    }
+
+    @Override
+    public void setGlobalBytesPerSecond(long bytesPerSecond) {
+        globalBytesPerSecond = Math.max(0, bytesPerSecond);
+        limitsChanged();
+    }
+
+    @Override
+    public long getUserBytesPerSecond() {
+        return userBytesPerSecond;
+    }
+
+    @Override
+    public void setUserBytesPerSecond(long bytesPerSecond) {
+        userBytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    @Override
+    public long getSmallTransferBytes() {
+        return smallTransferBytes;
+    }
+
+    @Override
+    public void setSmallTransferBytes(long bytes) {
+        smallTransferBytes = Math.max(0, bytes);
+    }
+
+    @Override
+    public int getUserWeight(String user) {
+        UserState state = users.get(user);
+        return state == null ? 1 : state.weight;
+    }
+
+    // Applies to transfers started afterwards
+    @Override
+    public void setUserWeight(String user, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weights start at 1");
+        }
+        user(user).weight = weight;
+    }
+
+    @Override
+    public int getActiveTransfers() {
+        return active.get();
+    }
+
+    @Override
+    public int getWaitingTransfers() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.sum());
+    }
+
+    @Override
+    public Map<String, Long> getThrottledMillisByUser() {
+        Map<String, Long> throttled = new TreeMap<>();
+        for (UserState state : users.values()) {
+            throttled.put(state.name, TimeUnit.NANOSECONDS.toMillis(state.throttledNanos.sum()));
+        }
+        return throttled;
+    }
+}
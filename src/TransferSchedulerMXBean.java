@@ -0,0 +1,36 @@
+import java.util.Map;
+
+/**
+ * Limits and counters of the server's TransferScheduler, registered as
+ * SecureFileTransfer:type=Scheduler. The limits can be changed while the
+ * server runs, for example from jconsole; 0 means no limit.
+ */
+public interface TransferSchedulerMXBean {
+    long getGlobalBytesPerSecond();
+
+    void setGlobalBytesPerSecond(long bytesPerSecond);
+
+    long getUserBytesPerSecond();
+
+    void setUserBytesPerSecond(long bytesPerSecond);
+
+    // Transfers up to this size are never held back
+    long getSmallTransferBytes();
+
+    void setSmallTransferBytes(long bytes);
+
+    // Share of the global bandwidth a user's transfers get relative to others (default 1)
+    int getUserWeight(String user);
+
+    void setUserWeight(String user, int weight);
+
+    int getActiveTransfers();
+
+    // Transfers waiting for bandwidth right now
+    int getWaitingTransfers();
+
+    // Time transfers have spent waiting for bandwidth, in total and per user
+    long getThrottledMillis();
+
+    Map<String, Long> getThrottledMillisByUser();
+}
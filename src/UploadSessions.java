@@ -0,0 +1,197 @@
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Resumable, multi-connection upload sessions.
+ *
+ * A session is opened for a final size and filename. The client then sends
+ * numbered parts, each with its byte offset, possibly over several
+ * connections at once. Parts are written in place into a staging file under
+ * .staging/<user>/ of the storage root the file goes to, and recorded once
+ * they are on disk, so a client can ask which parts survived a disconnect (or
+ * a server restart) and send only the rest. A part sent with its CRC32C is only recorded if it
+ * arrived intact, so a damaged part costs one part, not the upload. Commit
+ * checks that the parts cover the whole file and renames the staging file
+ * into place atomically.
+ */
+class UploadSessions {
+    private static final String STAGING_DIR = ".staging";
+
+    private final StorageLayout layout;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+    UploadSessions(StorageLayout layout) {
+        this.layout = layout;
+    }
+
+    String open(String user, long size, String filename) throws IOException {
+        if (size < 0) {
+            throw new IOException("Invalid size");
+        }
+        if (!StorageLayout.isValidName(filename)) {
+            // Checked here too, so a session never holds a name commit would refuse
+            throw new IOException("Invalid filename");
+        }
+
+        byte[] idBytes = new byte[16];
+        random.nextBytes(idBytes);
+        StringBuilder id = new StringBuilder();
+        for (byte b : idBytes) {
+            id.append(String.format("%02x", b));
+        }
+
+        Path dir = layout.root(user, filename).resolve(STAGING_DIR).resolve(user);
+        Files.createDirectories(dir);
+        try (RandomAccessFile data = new RandomAccessFile(dir.resolve(id + ".data").toFile(), "rw")) {
+            data.setLength(size);
+        }
+        Files.createFile(dir.resolve(id + ".parts"));
+
+        Properties session = new Properties();
+        session.setProperty("filename", filename);
+        session.setProperty("size", Long.toString(size));
+        try (Writer writer = new FileWriter(dir.resolve(id + ".session").toFile())) {
+            session.store(writer, "Upload session");
+        }
+        return id.toString();
+    }
+
+    // Throws if the session does not exist or the part does not fit in it
+    void checkPart(String user, String id, int part, long offset, long length) throws IOException {
+        Properties session = load(sessionDir(user, id), id);
+        long size = Long.parseLong(session.getProperty("size"));
+        if (part < 0 || offset < 0 || length < 0 || length > size - offset) {
+            throw new IOException("Part outside of file");
+        }
+    }
+
+    // Writes one part at its offset; the part only counts once it is fully on
+    // disk and, if crc is not -1, matches that CRC32C
+    void writePart(String user, String id, int part, long offset, long length, long crc, InputStream body,
+                   TransferScheduler.Transfer transfer) throws IOException {
+        checkPart(user, id, part, offset, length);
+        Path dir = sessionDir(user, id);
+
+        Crc32c checksum = new Crc32c();
+        try (FileChannel channel = FileChannel.open(dir.resolve(id + ".data"), StandardOpenOption.WRITE)) {
+            WriteBehind.receive(new CheckedInputStream(body, checksum), length, channel, offset, transfer);
+            channel.force(false);
+        } catch (EOFException e) {
+            throw new IOException("Incomplete part " + part);
+        }
+        if (crc != -1 && checksum.getValue() != crc) {
+            // The client sends the part again; its bytes are overwritten then
+            throw new IOException("Checksum mismatch in part " + part);
+        }
+
+        synchronized (lock(user, id)) {
+            try (PrintWriter parts = new PrintWriter(new FileWriter(dir.resolve(id + ".parts").toFile(), true))) {
+                parts.println(part + " " + offset + " " + length);
+            }
+        }
+    }
+
+    // Part number to {offset, length}; a part sent twice keeps its latest copy
+    TreeMap<Integer, long[]> parts(String user, String id) throws IOException {
+        Path dir = sessionDir(user, id);
+        TreeMap<Integer, long[]> parts = new TreeMap<>();
+        synchronized (lock(user, id)) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(dir.resolve(id + ".parts").toFile()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.trim().split(" ");
+                    if (fields.length == 3) {
+                        parts.put(Integer.parseInt(fields[0]),
+                                new long[]{Long.parseLong(fields[1]), Long.parseLong(fields[2])});
+                    }
+                }
+            }
+        }
+        return parts;
+    }
+
+    // Returns the committed filename
+    String commit(String user, String id) throws IOException {
+        Path dir = sessionDir(user, id);
+        Properties session = load(dir, id);
+        String filename = session.getProperty("filename");
+        long size = Long.parseLong(session.getProperty("size"));
+
+        // The parts, sorted by offset, must leave no gap
+        TreeMap<Long, Long> extents = new TreeMap<>();
+        for (long[] part : parts(user, id).values()) {
+            extents.merge(part[0], part[1], Math::max);
+        }
+        long covered = 0;
+        for (Map.Entry<Long, Long> extent : extents.entrySet()) {
+            if (extent.getKey() > covered) {
+                break;
+            }
+            covered = Math.max(covered, extent.getKey() + extent.getValue());
+        }
+        if (covered < size) {
+            throw new IOException("Missing data from offset " + covered);
+        }
+
+        layout.store(dir.resolve(id + ".data"), user, filename);
+        delete(user, dir, id);
+        return filename;
+    }
+
+    void abort(String user, String id) throws IOException {
+        Path dir = sessionDir(user, id);
+        Files.deleteIfExists(dir.resolve(id + ".data"));
+        delete(user, dir, id);
+    }
+
+    private void delete(String user, Path dir, String id) throws IOException {
+        Files.deleteIfExists(dir.resolve(id + ".parts"));
+        Files.deleteIfExists(dir.resolve(id + ".session"));
+        locks.remove(user + "/" + id);
+    }
+
+    // The staging directory holding a session, on whichever root it was opened
+    private Path sessionDir(String user, String id) throws IOException {
+        // Session ids are generated hex strings; anything else could escape the staging directory
+        if (id.matches("[0-9a-f]{32}")) {
+            for (Path root : layout.roots()) {
+                Path dir = root.resolve(STAGING_DIR).resolve(user);
+                if (Files.exists(dir.resolve(id + ".session"))) {
+                    return dir;
+                }
+            }
+        }
+        throw new IOException("Unknown upload session");
+    }
+
+    private static Properties load(Path dir, String id) throws IOException {
+        Properties session = new Properties();
+        try (Reader reader = new FileReader(dir.resolve(id + ".session").toFile())) {
+            session.load(reader);
+        }
+        return session;
+    }
+
+    private Object lock(String user, String id) {
+        return locks.computeIfAbsent(user + "/" + id, key -> new Object());
+    }
+}
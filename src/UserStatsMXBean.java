@@ -0,0 +1,13 @@
+/**
+ * Totals for one user since the server started, registered as
+ * SecureFileTransfer:type=User,name=<user>.
+ */
+public interface UserStatsMXBean {
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getCommands();
+
+    long getTransfers();
+}
@@ -0,0 +1,258 @@
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * User accounts, saved in .users of the secrets directory (see Secrets) and
+ * shared by all connections.
+ *
+ * Each line of the file is "name:iterations:salt:hash:epoch", with the
+ * password hashed by salted PBKDF2. Accounts are held in a ConcurrentHashMap,
+ * so logins never wait for each other, and the file is read again when it
+ * changes on disk, so accounts managed with
+ *
+ *   java -cp out UserStore add|passwd|remove|list [name]
+ *
+ * take effect on a running server. Writers hold a lock on .users.lock and
+ * replace the file atomically. The epoch goes up when the password changes,
+ * which invalidates the session tickets issued before.
+ */
+class UserStore {
+    private static final int ITERATIONS = 100_000;
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_BITS = 256;
+    // How often logins look at the file for changes
+    private static final long RELOAD_INTERVAL_MILLIS = 1000;
+    private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    static final class Account {
+        final String name;
+        final int iterations;
+        final byte[] salt;
+        final byte[] hash;
+        final long epoch;
+
+        Account(String name, int iterations, byte[] salt, byte[] hash, long epoch) {
+            this.name = name;
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+            this.epoch = epoch;
+        }
+    }
+
+    private final Path file;
+    private final Path lockFile;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+    // Size and modification time of the file when it was last read
+    private volatile String loadedVersion = "";
+    private volatile long lastCheck;
+
+    UserStore(Path secrets) {
+        this.file = secrets.resolve(".users");
+        this.lockFile = secrets.resolve(".users.lock");
+    }
+
+    boolean exists() {
+        return Files.exists(file);
+    }
+
+    // Returns the account if the password is right, otherwise null
+    Account authenticate(String name, String password) throws IOException {
+        Account account = get(name);
+        if (account == null) {
+            return null;
+        }
+        byte[] hash = hash(password, account.salt, account.iterations);
+        return MessageDigest.isEqual(hash, account.hash) ? account : null;
+    }
+
+    Account get(String name) throws IOException {
+        reloadIfChanged();
+        return accounts.get(name);
+    }
+
+    // Adds an account, or sets a new password for an existing one
+    void setPassword(String name, String password) throws IOException {
+        if (!VALID_NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("User names are 1 to 64 letters, digits, '_' or '-'");
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        byte[] hash = hash(password, salt, ITERATIONS);
+        update(current -> {
+            Account old = current.get(name);
+            current.put(name, new Account(name, ITERATIONS, salt, hash, old == null ? 1 : old.epoch + 1));
+        });
+    }
+
+    void remove(String name) throws IOException {
+        update(current -> current.remove(name));
+    }
+
+    Map<String, Account> accounts() throws IOException {
+        reloadIfChanged();
+        return new TreeMap<>(accounts);
+    }
+
+    private interface Change {
+        void apply(Map<String, Account> current);
+    }
+
+    // Applies a change to the file as it is now, under the writers' lock
+    private synchronized void update(Change change) throws IOException {
+        try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Released when the channel is closed
+            lockChannel.lock();
+            Map<String, Account> current = read();
+            change.apply(current);
+
+            Path temp = Files.createTempFile(file.getParent(), "users", ".tmp");
+            try {
+                try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                    Base64.Encoder encoder = Base64.getEncoder();
+                    for (Account account : current.values()) {
+                        writer.write(account.name + ":" + account.iterations + ":" + encoder.encodeToString(account.salt)
+                                + ":" + encoder.encodeToString(account.hash) + ":" + account.epoch + "\n");
+                    }
+                }
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        lastCheck = 0;
+        reloadIfChanged();
+    }
+
+    private void reloadIfChanged() throws IOException {
+        long now = System.currentTimeMillis();
+        if (now - lastCheck < RELOAD_INTERVAL_MILLIS) {
+            return;
+        }
+        synchronized (this) {
+            if (now - lastCheck < RELOAD_INTERVAL_MILLIS) {
+                return;
+            }
+            lastCheck = now;
+            String version;
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                version = attributes.size() + ":" + attributes.lastModifiedTime().toMillis();
+            } catch (NoSuchFileException e) {
+                version = "";
+            }
+            if (version.equals(loadedVersion)) {
+                return;
+            }
+
+            Map<String, Account> current = read();
+            accounts.putAll(current);
+            accounts.keySet().retainAll(current.keySet());
+            loadedVersion = version;
+            System.out.println("Loaded " + current.size() + " user accounts");
+        }
+    }
+
+    private Map<String, Account> read() throws IOException {
+        Map<String, Account> current = new TreeMap<>();
+        if (!Files.exists(file)) {
+            return current;
+        }
+        Base64.Decoder decoder = Base64.getDecoder();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split(":");
+            try {
+                current.put(fields[0], new Account(fields[0], Integer.parseInt(fields[1]), decoder.decode(fields[2]),
+                        decoder.decode(fields[3]), Long.parseLong(fields[4])));
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed line in " + file + ": " + fields[0]);
+            }
+        }
+        return current;
+    }
+
+    private static byte[] hash(String password, byte[] salt, int iterations) throws IOException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot hash password", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    // Manages the accounts of the server started with the same -Dserver.storage.roots
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || (!args[0].equals("list") && args.length < 2)) {
+            System.err.println("Usage: java UserStore add|passwd|remove <name>, or java UserStore list");
+            System.exit(1);
+        }
+
+        Path storageRoot = StorageLayout.configured().home();
+        Files.createDirectories(storageRoot);
+        UserStore store = new UserStore(Secrets.directory(storageRoot));
+
+        switch (args[0]) {
+            case "add":
+            case "passwd":
+                if (args[0].equals("add") && store.get(args[1]) != null) {
+                    System.err.println("User " + args[1] + " exists; use passwd to change the password");
+                    System.exit(1);
+                }
+                store.setPassword(args[1], readPassword());
+                Files.createDirectories(storageRoot.resolve(args[1]));
+                System.out.println("Saved user " + args[1]);
+                break;
+            case "remove":
+                store.remove(args[1]);
+                System.out.println("Removed user " + args[1] + "; the files are kept");
+                break;
+            case "list":
+                for (Account account : store.accounts().values()) {
+                    System.out.println(account.name);
+                }
+                break;
+            default:
+                System.err.println("Unknown action " + args[0]);
+                System.exit(1);
+        }
+    }
+
+    private static String readPassword() throws IOException {
+        Console console = System.console();
+        if (console != null) {
+            return new String(console.readPassword("Password: "));
+        }
+        String line = new BufferedReader(new InputStreamReader(System.in)).readLine();
+        if (line == null || line.isEmpty()) {
+            throw new IOException("No password given");
+        }
+        return line;
+    }
+}
@@ -0,0 +1,207 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Upload writes that run behind the network reads.
+ *
+ * The connection thread reads a block into a pooled buffer and hands it to
+ * a small pool of disk writer threads, then reads the next block while the
+ * previous one is written, so a slow disk write no longer stops the socket
+ * and a slow socket no longer leaves the disk idle. Each upload has a ring
+ * of -Dserver.io.writeBehindBuffers blocks (default 8) in flight; when they
+ * are all waiting for the disk, the reader waits too, which pushes back on
+ * the client through TCP. -Dserver.io.diskThreads sets the writer pool
+ * (default 2). With 0 buffers the connection thread writes the blocks itself,
+ * which costs less CPU when the disk never stalls (page cache, fast SSD).
+ *
+ * Uploads are written to a temporary file in .incoming/<user> of the storage
+ * root the file goes to, and renamed into place once complete, so LIST never
+ * shows a partial file.
+ * -Dserver.fsync chooses when the data is forced to disk: none, commit
+ * (before the rename, the default) or periodic (every
+ * -Dserver.fsync.interval milliseconds while writing, default 1000).
+ */
+class WriteBehind {
+    private static final String INCOMING_DIR = ".incoming";
+    private static final int RING_SIZE = Integer.getInteger("server.io.writeBehindBuffers", 8);
+    private static final long FSYNC_INTERVAL_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("server.fsync.interval", 1000));
+
+    enum Fsync { NONE, COMMIT, PERIODIC }
+
+    static final Fsync FSYNC = Fsync.valueOf(System.getProperty("server.fsync", "commit").toUpperCase());
+
+    private static final ExecutorService writers = Executors.newFixedThreadPool(
+            Integer.getInteger("server.io.diskThreads", 2), task -> {
+                Thread thread = new Thread(task, "disk-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // Reads the next block into buffer; returns the number of bytes, or -1 at the end of the stream
+    private interface BlockReader {
+        int read(BufferPool.PooledBuffer buffer, int maxLength) throws IOException;
+    }
+
+    private WriteBehind() {
+    }
+
+    // Writes exactly length bytes from in to file at position
+    static void receive(InputStream in, long length, FileChannel file, long position,
+                        TransferScheduler.Transfer transfer) throws IOException {
+        receive((buffer, maxLength) -> {
+            int bytesRead = in.read(buffer.array(), 0, maxLength);
+            if (bytesRead > 0) {
+                buffer.direct.put(buffer.array(), 0, bytesRead);
+            }
+            return bytesRead;
+        }, length, file, position, transfer);
+    }
+
+    static void receive(ReadableByteChannel in, long length, FileChannel file, long position,
+                        TransferScheduler.Transfer transfer) throws IOException {
+        receive((buffer, maxLength) -> {
+            buffer.direct.limit(maxLength);
+            return in.read(buffer.direct);
+        }, length, file, position, transfer);
+    }
+
+    private static void receive(BlockReader reader, long length, FileChannel file, long position,
+                                TransferScheduler.Transfer transfer) throws IOException {
+        if (RING_SIZE <= 0) {
+            receiveInline(reader, length, file, position, transfer);
+            return;
+        }
+        Semaphore ring = new Semaphore(RING_SIZE);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        AtomicLong lastForce = new AtomicLong(System.nanoTime());
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                ring.acquire();
+                if (failure.get() != null) {
+                    ring.release();
+                    break;
+                }
+                BufferPool.PooledBuffer buffer = FileTransfer.pool.acquire();
+                int bytesRead;
+                try {
+                    bytesRead = reader.read(buffer, (int) Math.min(buffer.direct.capacity(), remaining));
+                    if (bytesRead == -1) {
+                        throw new EOFException("Connection closed during transfer");
+                    }
+                    transfer.acquire(bytesRead);
+                } catch (IOException e) {
+                    FileTransfer.pool.release(buffer);
+                    ring.release();
+                    throw e;
+                }
+
+                long blockPosition = position;
+                writers.execute(() -> {
+                    try {
+                        ByteBuffer block = buffer.direct;
+                        block.flip();
+                        long at = blockPosition;
+                        while (block.hasRemaining()) {
+                            at += file.write(block, at);
+                        }
+                        long now = System.nanoTime();
+                        long last = lastForce.get();
+                        if (FSYNC == Fsync.PERIODIC && now - last >= FSYNC_INTERVAL_NANOS
+                                && lastForce.compareAndSet(last, now)) {
+                            file.force(false);
+                        }
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        FileTransfer.pool.release(buffer);
+                        ring.release();
+                    }
+                });
+                position += bytesRead;
+                remaining -= bytesRead;
+            }
+
+            // The file must not be closed or renamed under a write still running
+            ring.acquire(RING_SIZE);
+        } catch (InterruptedException e) {
+            ring.acquireUninterruptibly(RING_SIZE);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during transfer");
+        } catch (IOException e) {
+            ring.acquireUninterruptibly(RING_SIZE);
+            throw e;
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private static void receiveInline(BlockReader reader, long length, FileChannel file, long position,
+                                      TransferScheduler.Transfer transfer) throws IOException {
+        BufferPool.PooledBuffer buffer = FileTransfer.pool.acquire();
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                buffer.direct.clear();
+                int bytesRead = reader.read(buffer, (int) Math.min(buffer.direct.capacity(), remaining));
+                if (bytesRead == -1) {
+                    throw new EOFException("Connection closed during transfer");
+                }
+                transfer.acquire(bytesRead);
+                buffer.direct.flip();
+                while (buffer.direct.hasRemaining()) {
+                    position += file.write(buffer.direct, position);
+                }
+                remaining -= bytesRead;
+            }
+        } finally {
+            FileTransfer.pool.release(buffer);
+        }
+    }
+
+    // A file to upload into on storageRoot, outside of the user's directories
+    static Path createTempFile(Path storageRoot, String user) throws IOException {
+        Path dir = storageRoot.resolve(INCOMING_DIR).resolve(user);
+        Files.createDirectories(dir);
+        return Files.createTempFile(dir, "upload", ".part");
+    }
+
+    // Forces a finished upload to disk before it is renamed, if the policy says so
+    static void commit(FileChannel file) throws IOException {
+        if (FSYNC == Fsync.COMMIT) {
+            file.force(false);
+        }
+    }
+
+    // Deletes uploads left over from a server that stopped during them
+    static void cleanUp(Path storageRoot) {
+        File[] users = storageRoot.resolve(INCOMING_DIR).toFile().listFiles();
+        if (users == null) {
+            return;
+        }
+        for (File dir : users) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+        }
+    }
+}